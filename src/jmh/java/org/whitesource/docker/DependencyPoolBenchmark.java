@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.openjdk.jmh.annotations.*;
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap held by the projects of a host with 200 containers, with and without the {@link DependencyPool}.
+ * <p>
+ * The containers run 20 images that share their base packages and libraries. Every container gets its own instances
+ * of them, like the package managers and file scans return them. The heap held by the projects, and by the pool that
+ * shares their dependencies, is reported as the retainedMb counter.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=DependencyPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DependencyPoolBenchmark {
+
+    /* --- Static members --- */
+
+    private static final int IMAGE_COUNT = 20;
+    private static final int BASE_PACKAGES = 300;
+    private static final int IMAGE_PACKAGES = 100;
+    private static final int BASE_FILES = 400;
+    private static final int IMAGE_FILES = 200;
+
+    /* --- Members --- */
+
+    @Param({"200"})
+    private int containerCount;
+
+    /* --- Nested classes --- */
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        public long retainedMb;
+
+        private long usedBefore;
+
+        @Setup(Level.Iteration)
+        public void measureBefore() {
+            usedBefore = usedHeap();
+        }
+
+        void measureAfter() {
+            retainedMb = (usedHeap() - usedBefore) / (1024 * 1024);
+        }
+    }
+
+    /* --- Benchmarks --- */
+
+    @Benchmark
+    public List<AgentProjectInfo> separateInstances(Heap heap) {
+        List<AgentProjectInfo> projects = createProjects(null);
+        heap.measureAfter();
+        return projects;
+    }
+
+    @Benchmark
+    public List<AgentProjectInfo> dependencyPool(Heap heap) {
+        List<AgentProjectInfo> projects = createProjects(new DependencyPool());
+        heap.measureAfter();
+        return projects;
+    }
+
+    /* --- Private methods --- */
+
+    private List<AgentProjectInfo> createProjects(DependencyPool dependencyPool) {
+        List<AgentProjectInfo> projects = new ArrayList<>(containerCount);
+        for (int i = 0; i < containerCount; i++) {
+            AgentProjectInfo projectInfo = createProject(i % IMAGE_COUNT);
+            projects.add(dependencyPool == null ? projectInfo : dependencyPool.intern(projectInfo));
+        }
+        return projects;
+    }
+
+    private static AgentProjectInfo createProject(int image) {
+        AgentProjectInfo projectInfo = new AgentProjectInfo();
+        Collection<DependencyInfo> dependencies = projectInfo.getDependencies();
+        // new strings every time, like the ones read from the package managers and the scanned files
+        for (int i = 0; i < BASE_PACKAGES + IMAGE_PACKAGES; i++) {
+            String name = i < BASE_PACKAGES ? "lib" + i : "image" + image + "-lib" + i;
+            dependencies.add(new DependencyInfo(null, new StringBuilder(name).append("_1.0.").append(i).append("_amd64.deb").toString(),
+                    new StringBuilder("1.0.").append(i).toString()));
+        }
+        for (int i = 0; i < BASE_FILES + IMAGE_FILES; i++) {
+            int content = i < BASE_FILES ? i : (image + 1) * 100000 + i;
+            DependencyInfo dependencyInfo = new DependencyInfo(String.format("%040x", content));
+            dependencyInfo.setArtifactId(new StringBuilder("lib").append(content).append(".jar").toString());
+            dependencyInfo.setSystemPath(new StringBuilder("/usr/share/java/lib").append(content).append(".jar").toString());
+            dependencies.add(dependencyInfo);
+        }
+        return projectInfo;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dockerjava.api.model.Container;
+import org.openjdk.jmh.annotations.*;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-dependency and per-container work of {@link DockerAgent} that runs after the scan: the relativization of the
+ * system paths to the container and the container names.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=DockerAgentBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class DockerAgentBenchmark {
+
+    /* --- Static members --- */
+
+    private static final File EXTRACT_DIR = new File("/tmp/WhiteSource-Docker/WhiteSource-Docker-123/0123456789ab-456/image");
+    private static final String CONTAINER_JSON = "{\"Id\":\"0123456789abcdef\",\"Names\":[\"/benchmark_container\"]}";
+
+    /* --- Members --- */
+
+    @Param({"10000"})
+    private int dependencyCount;
+
+    private String[] systemPaths;
+    private List<DependencyInfo> dependencyInfos;
+    private Container container;
+
+    /* --- Setup --- */
+
+    @Setup
+    public void setUp() throws IOException {
+        systemPaths = new String[dependencyCount];
+        dependencyInfos = new ArrayList<>(dependencyCount);
+        for (int i = 0; i < dependencyCount; i++) {
+            systemPaths[i] = EXTRACT_DIR.getPath() + "/usr/lib/app" + (i % 50) + "/lib" + i + ".jar";
+            dependencyInfos.add(new DependencyInfo(String.valueOf(i)));
+        }
+        container = new ObjectMapper().readValue(CONTAINER_JSON, Container.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetSystemPaths() {
+        // the relativization modifies the dependencies in place
+        for (int i = 0; i < dependencyCount; i++) {
+            dependencyInfos.get(i).setSystemPath(systemPaths[i]);
+        }
+    }
+
+    /* --- Benchmarks --- */
+
+    @Benchmark
+    public List<DependencyInfo> relativizeSystemPaths() {
+        DockerAgent.relativizeSystemPaths(dependencyInfos, EXTRACT_DIR);
+        return dependencyInfos;
+    }
+
+    @Benchmark
+    public String getContainerName() {
+        return DockerAgent.getContainerName(container);
+    }
+}
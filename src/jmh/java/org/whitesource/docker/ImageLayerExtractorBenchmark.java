@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of a synthetic multi-layer 'docker save' archive by {@link ImageLayerExtractor}, from an in-memory stream
+ * so only the tar parsing, the path classification and the disk writes are measured.
+ * <p>
+ * Every layer replaces some files of the layer below and deletes others with whiteouts, most files don't match.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=ImageLayerExtractorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ImageLayerExtractorBenchmark {
+
+    /* --- Static members --- */
+
+    private static final String LAYER_FILE = "/layer.tar";
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final int MATCHING_FILE_SIZE = 16 * 1024;
+    private static final int OTHER_FILE_SIZE = 2 * 1024;
+
+    /* --- Members --- */
+
+    @Param({"2", "8"})
+    private int layerCount;
+
+    @Param({"2000"})
+    private int filesPerLayer;
+
+    private byte[] imageTar;
+    private File tempDir;
+    private File extractDir;
+    private File layersDir;
+
+    /* --- Setup --- */
+
+    @Setup
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("image-layer-extractor-benchmark").toFile();
+        extractDir = new File(tempDir, "extract");
+        layersDir = new File(tempDir, "layers");
+
+        Random random = new Random(layerCount);
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        StringBuilder manifestLayers = new StringBuilder();
+        for (int layer = 0; layer < layerCount; layer++) {
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            for (int i = 0; i < filesPerLayer; i++) {
+                int fileIndex = random.nextInt(filesPerLayer * 2);
+                String folder = "usr/lib/app" + (fileIndex % 50) + "/";
+                switch (i % 10) {
+                    case 0:
+                        files.put(folder + "lib" + fileIndex + ".jar", randomBytes(random, MATCHING_FILE_SIZE));
+                        break;
+                    case 1:
+                        files.put(folder + "lib" + fileIndex + ".so", randomBytes(random, MATCHING_FILE_SIZE));
+                        break;
+                    case 2:
+                        // delete a file of a lower layer
+                        files.put(folder + WHITEOUT_PREFIX + "lib" + fileIndex + ".jar", new byte[0]);
+                        break;
+                    default:
+                        files.put(folder + "file" + fileIndex + ".txt", randomBytes(random, OTHER_FILE_SIZE));
+                        break;
+                }
+            }
+            String layerName = String.format("%064x", layer) + LAYER_FILE;
+            image.put(layerName, createTar(files));
+            if (manifestLayers.length() > 0) {
+                manifestLayers.append(',');
+            }
+            manifestLayers.append('"').append(layerName).append('"');
+        }
+        // the manifest is written last, like 'docker save' does
+        String manifest = "[{\"Config\":\"config.json\",\"RepoTags\":[\"benchmark:latest\"],\"Layers\":[" + manifestLayers + "]}]";
+        image.put(MANIFEST_FILE, manifest.getBytes(StandardCharsets.UTF_8));
+        imageTar = createTar(image);
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanExtractDir() {
+        FileUtils.deleteQuietly(extractDir);
+        FileUtils.deleteQuietly(layersDir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    /* --- Benchmarks --- */
+
+    @Benchmark
+    public int extractAndMerge() throws IOException {
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, layersDir);
+        extractor.extract(new ByteArrayInputStream(imageTar));
+        return extractor.merge();
+    }
+
+    @Benchmark
+    public int extractHashInStream() throws IOException {
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, layersDir);
+        extractor.setHashInStream(true);
+        extractor.extract(new ByteArrayInputStream(imageTar));
+        return extractor.merge() + extractor.getHashedDependencies().size();
+    }
+
+    /* --- Private methods --- */
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] createTar(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream taos = new TarArchiveOutputStream(bytes)) {
+            taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+                entry.setSize(file.getValue().length);
+                taos.putArchiveEntry(entry);
+                taos.write(file.getValue());
+                taos.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
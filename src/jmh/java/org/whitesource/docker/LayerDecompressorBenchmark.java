@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decompression and tar walk of a gzip compressed layer, from an in-memory stream.
+ * <p>
+ * Every entry is hashed like the extractor hashes plain binaries in stream, so the reader does work of its own that
+ * the read-ahead inflater can overlap with. The baseline is the commons-compress gzip stream on the reading thread.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=LayerDecompressorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LayerDecompressorBenchmark {
+
+    /* --- Static members --- */
+
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final String[] WORDS = {"org", "whitesource", "docker", "layer", "class", "public", "static", "void",
+            "return", "import", "java", "util", "final", "private", "string", "int"};
+
+    /* --- Members --- */
+
+    @Param({"64"})
+    private int layerSizeMb;
+
+    private byte[] gzipLayer;
+
+    /* --- Setup --- */
+
+    @Setup
+    public void setUp() throws IOException {
+        // text compresses like the content of real layers, random bytes would not compress at all
+        Random random = new Random(layerSizeMb);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream taos = new TarArchiveOutputStream(new GZIPOutputStream(bytes))) {
+            int fileCount = layerSizeMb * 1024 * 1024 / FILE_SIZE;
+            for (int i = 0; i < fileCount; i++) {
+                byte[] content = randomText(random, FILE_SIZE);
+                TarArchiveEntry entry = new TarArchiveEntry("usr/lib/lib" + i + ".so");
+                entry.setSize(content.length);
+                taos.putArchiveEntry(entry);
+                taos.write(content);
+                taos.closeArchiveEntry();
+            }
+        }
+        gzipLayer = bytes.toByteArray();
+    }
+
+    /* --- Benchmarks --- */
+
+    @Benchmark
+    public int commonsCompress() throws IOException {
+        try (InputStream decompressed = new GzipCompressorInputStream(new ByteArrayInputStream(gzipLayer))) {
+            return walk(decompressed);
+        }
+    }
+
+    @Benchmark
+    public int decompressorOnReadingThread() throws IOException {
+        LayerDecompressor decompressor = new LayerDecompressor(0);
+        try (InputStream decompressed = decompressor.decompress(new BufferedInputStream(new ByteArrayInputStream(gzipLayer)))) {
+            return walk(decompressed);
+        }
+    }
+
+    @Benchmark
+    public int decompressorReadAhead() throws IOException {
+        LayerDecompressor decompressor = new LayerDecompressor(1);
+        try (InputStream decompressed = decompressor.decompress(new BufferedInputStream(new ByteArrayInputStream(gzipLayer)))) {
+            return walk(decompressed);
+        }
+    }
+
+    /* --- Private methods --- */
+
+    private static int walk(InputStream layerStream) throws IOException {
+        TarArchiveInputStream tais = new TarArchiveInputStream(layerStream);
+        int hash = 0;
+        TarArchiveEntry entry = tais.getNextTarEntry();
+        while (entry != null) {
+            hash += DigestUtils.sha1Hex(tais).hashCode();
+            entry = tais.getNextTarEntry();
+        }
+        return hash;
+    }
+
+    private static byte[] randomText(Random random, int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000)).append(' ');
+        }
+        return text.substring(0, size).getBytes();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.*;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming {@link PackageListParser} with the buffered parsers it replaced, on "dpkg -l" and "apk -vv info"
+ * output delivered in exec frames, and measures the {@link ContainerPackageExtractor} parsers of all four package managers.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=PackageListParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class PackageListParserBenchmark {
+
+    /* --- Static members --- */
+
+    private static final int FRAME_SIZE = 8192;
+    private static final String NON_ASCII_CHARS = "[^\\x20-\\x7e]";
+    private static final String EMPTY_STRING = "";
+    private static final String ARCH = "x86_64";
+
+    /* --- Members --- */
+
+    @Param({"100", "5000"})
+    private int packageCount;
+
+    private List<byte[]> debianFrames;
+    private List<byte[]> alpineFrames;
+    private String debianOutput;
+    private String rpmOutput;
+    private String alpineOutput;
+    private String archLinuxOutput;
+
+    /* --- Setup --- */
+
+    @Setup
+    public void setUp() {
+        StringBuilder debianOutput = new StringBuilder();
+        debianOutput.append("Desired=Unknown/Install/Remove/Purge/Hold\n");
+        debianOutput.append("||/ Name                Version           Architecture Description\n");
+        debianOutput.append("+++-===================-=================-============-==============================\n");
+        StringBuilder rpmOutput = new StringBuilder();
+        StringBuilder alpineOutput = new StringBuilder();
+        StringBuilder archLinuxOutput = new StringBuilder();
+        for (int i = 0; i < packageCount; i++) {
+            debianOutput.append("ii  libpackage").append(i).append(":amd64   1:2.").append(i)
+                    .append("-1+deb9u1    amd64        shared library number ").append(i).append(" \u2013 description\n");
+            rpmOutput.append("package").append(i).append("-2.").append(i).append("-11.el7.x86_64\n");
+            alpineOutput.append("package").append(i).append("-1.").append(i).append("-r0 - package number ").append(i).append('\n');
+            archLinuxOutput.append("package").append(i).append(" 1.").append(i).append("-2\n");
+        }
+        this.debianOutput = debianOutput.toString();
+        this.rpmOutput = rpmOutput.toString();
+        this.alpineOutput = alpineOutput.toString();
+        this.archLinuxOutput = archLinuxOutput.toString();
+        debianFrames = toFrames(this.debianOutput);
+        alpineFrames = toFrames(this.alpineOutput);
+    }
+
+    /* --- Benchmarks --- */
+
+    @Benchmark
+    public Collection<DependencyInfo> debianBuffered() {
+        return parseDebianPackagesBuffered(new String(collect(debianFrames)));
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> debianStreaming() {
+        return stream(new PackageListParser(PackageListParser.DEBIAN_SECTION, null), debianFrames);
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> alpineBuffered() {
+        return parseAlpinePackagesBuffered(new String(collect(alpineFrames)));
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> alpineStreaming() {
+        return stream(new PackageListParser(PackageListParser.ALPINE_SECTION, null), alpineFrames);
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> debianExtractor() {
+        return ContainerPackageExtractor.parseDebianPackages(debianOutput);
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> rpmExtractor() {
+        return ContainerPackageExtractor.parseRpmPackages(rpmOutput);
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> alpineExtractor() {
+        return ContainerPackageExtractor.parseAlpinePackages(alpineOutput);
+    }
+
+    @Benchmark
+    public Collection<DependencyInfo> archLinuxExtractor() {
+        return ContainerPackageExtractor.parseArchLinuxPackages(archLinuxOutput, ARCH);
+    }
+
+    /* --- Private methods --- */
+
+    private static List<byte[]> toFrames(String output) {
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> frames = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += FRAME_SIZE) {
+            frames.add(Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + FRAME_SIZE)));
+        }
+        return frames;
+    }
+
+    private static byte[] collect(List<byte[]> frames) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            outputStream.write(frame, 0, frame.length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static Collection<DependencyInfo> stream(PackageListParser parser, List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            parser.write(frame, 0, frame.length);
+        }
+        parser.close();
+        return parser.getPackages();
+    }
+
+    // the parsers before PackageListParser, kept here as the baseline
+
+    private static Collection<DependencyInfo> parseDebianPackagesBuffered(String linesStr) {
+        Collection<DependencyInfo> packages = new LinkedList<>();
+        String[] lines = linesStr.split("\\r?\\n");
+        for (String line : lines) {
+            line = line.replaceAll(NON_ASCII_CHARS, EMPTY_STRING);
+            if (line.startsWith("ii")) {
+                List<String> args = new ArrayList<>();
+                for (String s : line.split(" ")) {
+                    if (StringUtils.isNotBlank(s) && !s.equals("ii")) {
+                        args.add(s);
+                    }
+                }
+                if (args.size() >= 3) {
+                    String name = args.get(0);
+                    if (name.contains(":")) {
+                        name = name.substring(0, name.indexOf(":"));
+                    }
+                    String version = args.get(1);
+                    if (version.contains(":")) {
+                        version = version.substring(version.indexOf(":") + 1);
+                    }
+                    String arch = args.get(2);
+                    packages.add(new DependencyInfo(null, MessageFormat.format("{0}_{1}_{2}.deb", name, version, arch), version));
+                }
+            }
+        }
+        return packages;
+    }
+
+    private static Collection<DependencyInfo> parseAlpinePackagesBuffered(String linesStr) {
+        Collection<DependencyInfo> packages = new LinkedList<>();
+        String[] lines = linesStr.split("\\r?\\n");
+        for (String line : lines) {
+            line = line.replaceAll(NON_ASCII_CHARS, EMPTY_STRING);
+            if (line.contains(" - ")) {
+                String[] split = line.split(" - ");
+                if (split.length > 0) {
+                    packages.add(new DependencyInfo(null, MessageFormat.format("{0}.apk", split[0]), null));
+                }
+            }
+        }
+        return packages;
+    }
+}
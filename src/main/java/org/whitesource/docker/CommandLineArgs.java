@@ -47,10 +47,22 @@ public class CommandLineArgs {
     @Parameter(names = "-c", description = "Config file path")
     String configFilePath = CONFIG_FILE_NAME;
 
-    @Parameter(names = {"-i", "--image"}, description = "Docker image (-i <image>) to be scanned")
-    String dockerImage = "";
+    @Parameter(names = {"-i", "--image"}, description = "Docker images (-i <image>) to be scanned, repeated or comma delimited")
+    List<String> dockerImages = new ArrayList<>();
+
+    @Parameter(names = {"-f", "--imageFile"}, description = "File with the Docker images to be scanned, one per line (-f <file>)")
+    String dockerImagesFile = "";
+
+    @Parameter(names = {"-t", "--tarball"}, description = "Image archives of 'docker save' (-t <file>) to be scanned without a Docker daemon, repeated or comma delimited")
+    List<String> imageArchives = new ArrayList<>();
+
+    @Parameter(names = {"-o", "--ociLayout"}, description = "OCI image layout folders (-o <folder>) to be scanned without a Docker daemon, repeated or comma delimited")
+    List<String> ociLayouts = new ArrayList<>();
 
     @Parameter(names = {"-w", "--withCmd"}, splitter = SemiColonSplitter.class, description = "Starts the container with specific commands semicolon delimited (-w <command>) (only works with -i)")
     List<String> withCmd = new ArrayList<>();
 
+    @Parameter(names = {"-d", "--daemon"}, description = "Keep running and scan new containers as they start (ignores -i)")
+    boolean daemon = false;
+
 }
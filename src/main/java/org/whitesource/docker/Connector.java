@@ -37,7 +37,7 @@ public class Connector {
 
             // run the agent
             DockerAgent dockerAgent = new DockerAgent(configProps, commandLineArgs, args);
-            StatusCode statusCode = dockerAgent.sendRequest();
+            StatusCode statusCode = commandLineArgs.daemon ? new DockerEventsDaemon(dockerAgent, configProps).run() : dockerAgent.sendRequest();
             if (statusCode != StatusCode.SUCCESS)
                 if (statusCode == StatusCode.SERVER_FAILURE && !failOnError) {
                     return StatusCode.SUCCESS;
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.model.ChangeLog;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Scans the writable layer of a container, i.e. the files it added or changed on top of its image.
+ * <p>
+ * The changed paths are taken from the container diff. Only the matching files among them are copied out of the
+ * container and scanned, a folder added by the container is copied with a single request. When the copied files have
+ * the same sizes and modification times as in the last run, the last result is reused and nothing is scanned.
+ */
+public class ContainerDiffScanner {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerDiffScanner.class);
+
+    // kinds of the container diff
+    private static final int MODIFIED = 0;
+    private static final int ADDED = 1;
+    private static final int DELETED = 2;
+
+    private static final String UNIX_FILE_SEPARATOR = "/";
+    private static final String PARENT_DIR = "..";
+    private static final String EMPTY_STRING = "";
+    private static final String FINGERPRINT_SEPARATOR = ":";
+
+    /* --- Members --- */
+
+    private final PathClassifier pathClassifier;
+
+    /* --- Constructors --- */
+
+    public ContainerDiffScanner(PathClassifier pathClassifier) {
+        this.pathClassifier = pathClassifier;
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Copy the matching files the container changed into the copy folder and scan them.
+     *
+     * @param lastState state of the container from the last run, may be null
+     * @return the changes and the dependencies of the writable layer, with system paths relative to the container root
+     */
+    public DiffResult scan(DockerClient dockerClient, String containerId, File copyDir, ContainerStateStore.ContainerState lastState,
+                           ImageLayerExtractor.LayerScanner layerScanner) throws IOException {
+        DiffResult result = new DiffResult();
+        Set<String> addedPaths = new HashSet<>();
+        List<String> wantedPaths = new ArrayList<>();
+        List<ChangeLog> changes = dockerClient.containerDiffCmd(containerId).exec();
+        if (changes == null) {
+            return result;
+        }
+        for (ChangeLog change : changes) {
+            String path = normalize(change.getPath());
+            if (path.isEmpty() || change.getKind() == null) {
+                continue;
+            }
+            int kind = change.getKind();
+            if (kind == DELETED) {
+                result.deletedPaths.add(path);
+            } else if (kind == ADDED || kind == MODIFIED) {
+                result.changedPaths.add(path);
+                if (kind == ADDED) {
+                    addedPaths.add(path);
+                }
+                if (ContainerPackageExtractor.isPackageDatabase(path)) {
+                    result.packagesChanged = true;
+                } else if (pathClassifier.isMatchingFile(path)) {
+                    wantedPaths.add(path);
+                }
+            }
+        }
+        if (wantedPaths.isEmpty()) {
+            logger.debug("Container {}: {} changed paths, no matching files", containerId, result.changedPaths.size());
+            return result;
+        }
+
+        for (String root : getCopyRoots(wantedPaths, addedPaths)) {
+            InputStream tarStream = dockerClient.copyArchiveFromContainerCmd(containerId, UNIX_FILE_SEPARATOR + root).exec();
+            try {
+                copyFiles(tarStream, getParent(root), copyDir, result);
+            } finally {
+                IOUtils.closeQuietly(tarStream);
+            }
+        }
+
+        if (lastState != null && result.fingerprint.equals(lastState.getLayerFingerprint())) {
+            logger.info("Container {}: {} changed files, same as in the last scan", containerId, result.fingerprint.size());
+            result.dependencies.addAll(lastState.getLayerDependencies());
+            result.reused = true;
+        } else if (!result.fingerprint.isEmpty()) {
+            List<DependencyInfo> dependencies = layerScanner.scan(copyDir);
+            DockerAgent.relativizeSystemPaths(dependencies, copyDir);
+            result.dependencies.addAll(dependencies);
+            logger.info("Container {}: scanned {} changed files, found {} dependencies", containerId, result.fingerprint.size(), dependencies.size());
+        }
+        return result;
+    }
+
+    /* --- Private methods --- */
+
+    /**
+     * A folder added by the container holds only new files, copy it as a whole instead of file by file.
+     */
+    private Collection<String> getCopyRoots(List<String> wantedPaths, Set<String> addedPaths) {
+        Set<String> roots = new LinkedHashSet<>();
+        for (String path : wantedPaths) {
+            String root = path;
+            String parent = getParentPath(root);
+            while (!parent.isEmpty() && addedPaths.contains(parent)) {
+                root = parent;
+                parent = getParentPath(root);
+            }
+            roots.add(root);
+        }
+        return roots;
+    }
+
+    private void copyFiles(InputStream tarStream, String parent, File copyDir, DiffResult result) throws IOException {
+        TarArchiveInputStream tais = new TarArchiveInputStream(tarStream);
+        TarArchiveEntry entry = tais.getNextTarEntry();
+        while (entry != null) {
+            String path = parent + normalize(entry.getName());
+            if (entry.isFile() && !isTraversal(path) && !result.fingerprint.containsKey(path)
+                    && pathClassifier.isMatchingFile(path)) {
+                File file = new File(copyDir, path);
+                File fileParent = file.getParentFile();
+                if (!fileParent.exists()) {
+                    fileParent.mkdirs();
+                }
+                FileUtils.copyInputStreamToFile(new CloseShieldInputStream(tais), file);
+                result.fingerprint.put(path, entry.getSize() + FINGERPRINT_SEPARATOR + entry.getModTime().getTime());
+            }
+            entry = tais.getNextTarEntry();
+        }
+    }
+
+    private boolean isTraversal(String path) {
+        for (String segment : path.split(UNIX_FILE_SEPARATOR)) {
+            if (PARENT_DIR.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String normalize(String path) {
+        String normalized = path;
+        while (normalized.startsWith(UNIX_FILE_SEPARATOR)) {
+            normalized = normalized.substring(1);
+        }
+        return normalized;
+    }
+
+    /**
+     * @return the parent folder with a trailing separator, empty for a top level path
+     */
+    private static String getParent(String path) {
+        return path.substring(0, path.lastIndexOf(UNIX_FILE_SEPARATOR) + 1);
+    }
+
+    /**
+     * @return the parent folder without a trailing separator, empty for a top level path
+     */
+    private static String getParentPath(String path) {
+        int index = path.lastIndexOf(UNIX_FILE_SEPARATOR);
+        return index < 0 ? EMPTY_STRING : path.substring(0, index);
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * The changes of a container and the dependencies found in its writable layer.
+     */
+    public static class DiffResult {
+
+        private final Set<String> changedPaths = new HashSet<>();
+        private final Set<String> deletedPaths = new HashSet<>();
+        private final Map<String, String> fingerprint = new HashMap<>();
+        private final List<DependencyInfo> dependencies = new ArrayList<>();
+        private boolean packagesChanged;
+        private boolean reused;
+
+        /**
+         * @return true if the dependency of the image was replaced or deleted by the container
+         */
+        public boolean hides(DependencyInfo dependencyInfo) {
+            if (dependencyInfo.getSystemPath() == null) {
+                return false;
+            }
+            String path = normalize(dependencyInfo.getSystemPath());
+            if (changedPaths.contains(path) || deletedPaths.contains(path)) {
+                return true;
+            }
+            int index = path.indexOf(UNIX_FILE_SEPARATOR);
+            while (index > 0) {
+                if (deletedPaths.contains(path.substring(0, index))) {
+                    return true;
+                }
+                index = path.indexOf(UNIX_FILE_SEPARATOR, index + 1);
+            }
+            return false;
+        }
+
+        public List<DependencyInfo> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * @return size and modification time of each copied file
+         */
+        public Map<String, String> getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return true if the container changed a package database, e.g. by installing packages at runtime
+         */
+        public boolean isPackagesChanged() {
+            return packagesChanged;
+        }
+
+        /**
+         * @return true if the dependencies were taken from the last run
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+}
@@ -18,18 +18,22 @@ package org.whitesource.docker;
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
 import com.github.dockerjava.core.command.ExecStartResultCallback;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whitesource.agent.api.model.DependencyInfo;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
  * This class sends execute commands for getting a list of packages (Debian / RPM) to a docker container and parses the output.
+ * It can also read the package databases of an image directly, without a running container.
  *
  * @author tom.shapira
  */
@@ -45,88 +49,118 @@ public class ContainerPackageExtractor {
     private static final String[] ARCH_LINUX_PACKAGES_LIST_COMMAND = new String[]{"pacman", "-Q"};
     private static final String[] ARCH_LINUX_ARCHITECTURE_COMMAND = new String[]{"uname", "-m"};
 
-    // reference: http://askubuntu.com/questions/18804/what-do-the-various-dpkg-flags-like-ii-rc-mean/18807#18807
-    private static final String DEBIAN_INSTALLED_PACKAGE_PREFIX = "ii";
-
-    private static final int DEBIAN_PACKAGE_NAME_INDEX = 0;
-    private static final int DEBIAN_PACKAGE_VERSION_INDEX = 1;
-    private static final int DEBIAN_PACKAGE_ARCH_INDEX = 2;
     private static final String DEBIAN_PACKAGE_PATTERN = "{0}_{1}_{2}.deb";
-    private static final String RPM_PACKAGE_PATTERN = "{0}.rpm";
     private static final String ALPINE_PACKAGE_PATTERN = "{0}.apk";
-    private static final String ALPINE_PACKAGE_SPLIT_PATTERN = " - ";
     private static final String ARCH_LINUX_PACKAGE_PATTERN = "{0}-{1}-{2}.pkg.tar.xz";
-    private static final String ARCH_LINUX_PACKAGE_SPLIT_PATTERN = " ";
-    private static final String WHITE_SPACE = " ";
 
     private static final String COLON = ":";
-    private static final String NON_ASCII_CHARS = "[^\\x20-\\x7e]";
-    private static final String EMPTY_STRING = "";
+    private static final String UNKNOWN_DISTRIBUTION = "an unknown distribution";
+
+    // single exec inventory: the shell runs only the package managers that exist and marks where each output starts,
+    // the architecture is printed before the Arch Linux packages so they can be named as they stream in
+    private static final String SECTION_PREFIX = PackageListParser.SECTION_PREFIX;
+    private static final String PACKAGES_LIST_SCRIPT =
+            "echo '" + SECTION_PREFIX + PackageListParser.OS_RELEASE_SECTION + "'; cat /etc/os-release 2>/dev/null; " +
+            "if command -v dpkg >/dev/null 2>&1; then echo '" + SECTION_PREFIX + PackageListParser.DEBIAN_SECTION + "'; dpkg -l; fi; " +
+            "if command -v rpm >/dev/null 2>&1; then echo '" + SECTION_PREFIX + PackageListParser.RPM_SECTION + "'; rpm -qa; fi; " +
+            "if command -v apk >/dev/null 2>&1; then echo '" + SECTION_PREFIX + PackageListParser.ALPINE_SECTION + "'; apk -vv info; fi; " +
+            "if command -v pacman >/dev/null 2>&1; then echo '" + SECTION_PREFIX + PackageListParser.ARCH_SECTION + "'; uname -m; " +
+            "echo '" + SECTION_PREFIX + PackageListParser.ARCH_LINUX_SECTION + "'; pacman -Q; fi";
+    private static final String[] PACKAGES_LIST_COMMAND = new String[]{"sh", "-c", PACKAGES_LIST_SCRIPT};
+    private static final Map<String, String> PACKAGE_TYPES = new HashMap<>();
+
+    static {
+        PACKAGE_TYPES.put(PackageListParser.DEBIAN_SECTION, "Debian");
+        PACKAGE_TYPES.put(PackageListParser.RPM_SECTION, "RPM");
+        PACKAGE_TYPES.put(PackageListParser.ALPINE_SECTION, "Alpine");
+        PACKAGE_TYPES.put(PackageListParser.ARCH_LINUX_SECTION, "Arch Linux");
+    }
 
-    private static final List<String> SYSTEM_ARCHITECTURES = Arrays.asList("x86_64", "i686", "any");
+    // package databases inside the image file system (rpm keeps a binary database, it is only read by "rpm -qa")
+    private static final String DEBIAN_STATUS_FILE = "var/lib/dpkg/status";
+    private static final String DEBIAN_STATUS_FOLDER = "var/lib/dpkg/status.d/";
+    private static final String DEBIAN_MD5SUMS_SUFFIX = ".md5sums";
+    private static final String ALPINE_DATABASE_FILE = "lib/apk/db/installed";
+    private static final String ARCH_LINUX_DATABASE_FOLDER = "var/lib/pacman/local/";
+    private static final String ARCH_LINUX_DESC_FILE = "/desc";
+    private static final String DEBIAN_PACKAGE_FIELD = "Package:";
+    private static final String DEBIAN_VERSION_FIELD = "Version:";
+    private static final String DEBIAN_ARCH_FIELD = "Architecture:";
+    private static final String DEBIAN_STATUS_FIELD = "Status:";
+    private static final String DEBIAN_INSTALL_WANTED = "install ";
+    private static final String DEBIAN_INSTALLED = " installed";
+    private static final String ALPINE_PACKAGE_FIELD = "P:";
+    private static final String ALPINE_VERSION_FIELD = "V:";
+    private static final String ARCH_LINUX_NAME_FIELD = "%NAME%";
+    private static final String ARCH_LINUX_VERSION_FIELD = "%VERSION%";
+    private static final String ARCH_LINUX_ARCH_FIELD = "%ARCH%";
+    private static final String ARCH_LINUX_ANY_ARCH = "any";
+    private static final String ARCH_LINUX_DEFAULT_ARCH = "x86_64";
+    private static final String ARCH_LINUX_PACKAGE_SUFFIX = ".pkg.tar.xz";
+    private static final String DASH = "-";
 
     /* --- Public methods --- */
 
     /**
-     * Get all Debian packages by executing "dpkg -l" in a container and parsing the output.
+     * Get the packages of all supported package managers with a single exec in the container, without waiting for it.
+     * A shell script runs only the package managers that are installed and the sections of the combined output are
+     * parsed by the transport thread that receives them, with the netty transport no thread waits for the package
+     * managers of the container.
+     *
+     * @return the packages, completed with null if the container has no shell
      */
-    public static Collection<DependencyInfo> extractDebianPackages(DockerClient dockerClient, String containerId) {
-        Collection<DependencyInfo> packages = new LinkedList<>();
-
-        // create execute command
-        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(containerId)
-                .withAttachStdout(true)
-                .withCmd(DEBIAN_PACKAGES_LIST_COMMAND).exec();
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    public static CompletableFuture<Collection<DependencyInfo>> extractPackagesAsync(DockerClient dockerClient, String containerId) {
+        PackageListParser parser = new PackageListParser();
+        CompletableFuture<Void> exec;
         try {
-            dockerClient.execStartCmd(execResponse.getId())
-                    .withDetach(false).withTty(false)
-                    .withExecId(execResponse.getId())
-                    .exec(new ExecStartResultCallback(outputStream, System.err)).awaitCompletion();
-        } catch (InterruptedException e) {
-            logger.warn("Error writing output: {}", e.getMessage());
+            exec = execCommandAsync(dockerClient, containerId, PACKAGES_LIST_COMMAND, parser);
+        } catch (RuntimeException e) {
+            logger.debug("Error running package list script in {}: {}", containerId, e.getMessage());
+            return CompletableFuture.completedFuture(null);
         }
+        return exec.handle((done, error) -> {
+            if (error != null) {
+                logger.debug("Error running package list script in {}: {}", containerId, error.getMessage());
+                return null;
+            }
+            return getListedPackages(parser, containerId);
+        });
+    }
 
-        // parse debian packages
-        String linesStr = new String(outputStream.toByteArray());
-        String[] lines = linesStr.split("\\r?\\n");
-        for (String line : lines) {
-            line = line.replaceAll(NON_ASCII_CHARS, EMPTY_STRING);
-            if (line.startsWith(DEBIAN_INSTALLED_PACKAGE_PREFIX)) {
-                List<String> args = new ArrayList<>();
-                for (String s : line.split(WHITE_SPACE)) {
-                    if (StringUtils.isNotBlank(s) && !s.equals(DEBIAN_INSTALLED_PACKAGE_PREFIX)) {
-                        args.add(s);
-                    }
-                }
-
-                if (args.size() >= 3) {
-                    // names may contain the arch (i.e. package_name:amd64) - remove it
-                    String name = args.get(DEBIAN_PACKAGE_NAME_INDEX);
-                    if (name.contains(COLON)) {
-                        name = name.substring(0, name.indexOf(COLON));
-                    }
-
-                    // versions may contain a
-                    String version = args.get(DEBIAN_PACKAGE_VERSION_INDEX);
-                    if (version.contains(COLON)) {
-                        version = version.substring(version.indexOf(COLON) + 1);
-                    }
-
-                    String arch = args.get(DEBIAN_PACKAGE_ARCH_INDEX);
-                    packages.add(new DependencyInfo(
-                            null, MessageFormat.format(DEBIAN_PACKAGE_PATTERN, name, version, arch), version));
-                }
+    private static Collection<DependencyInfo> getListedPackages(PackageListParser parser, String containerId) {
+        if (!parser.hasSection(PackageListParser.OS_RELEASE_SECTION)) {
+            logger.debug("Package list script didn't run in {}", containerId);
+            return null;
+        }
+        String osName = parser.getOsName();
+        logger.info("Container {} runs {}", containerId, osName == null ? UNKNOWN_DISTRIBUTION : osName);
+        for (Map.Entry<String, Integer> section : parser.getSectionPackages().entrySet()) {
+            String type = PACKAGE_TYPES.get(section.getKey());
+            if (type != null && section.getValue() > 0) {
+                logger.info("Found {} {} Packages in {}", section.getValue(), type, containerId);
             }
         }
+        return parser.getPackages();
+    }
 
+    /**
+     * Get all Debian packages by executing "dpkg -l" in a container and parsing the output.
+     */
+    public static Collection<DependencyInfo> extractDebianPackages(DockerClient dockerClient, String containerId) {
+        PackageListParser parser = new PackageListParser(PackageListParser.DEBIAN_SECTION, null);
         try {
-            outputStream.close();
-        } catch (IOException e) {
-            logger.warn("Error reading output: {}", e.getMessage());
+            execCommand(dockerClient, containerId, DEBIAN_PACKAGES_LIST_COMMAND, parser);
+        } catch (InterruptedException e) {
+            logger.warn("Error writing output: {}", e.getMessage());
         }
-        return packages;
+        return parser.getPackages();
+    }
+
+    /**
+     * Parse the output of "dpkg -l".
+     */
+    public static Collection<DependencyInfo> parseDebianPackages(String linesStr) {
+        return parse(new PackageListParser(PackageListParser.DEBIAN_SECTION, null), linesStr).getPackages();
     }
 
     /**
@@ -134,159 +168,305 @@ public class ContainerPackageExtractor {
      */
     public static Collection<DependencyInfo> extractRpmPackages(DockerClient dockerClient, String containerId) {
         InputStream inputStream = null;
-        Collection<DependencyInfo> packages = new LinkedList<>();
-
-        // create execute command
-        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(containerId)
-                .withAttachStdout(true)
-                .withCmd(RPM_PACKAGES_LIST_COMMAND).exec();
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PackageListParser parser = new PackageListParser(PackageListParser.RPM_SECTION, null);
         try {
             Process process = Runtime.getRuntime().exec(RPM_PACKAGES_LIST_COMMAND);
             inputStream = process.getInputStream();
             if (inputStream.read() == -1) {
-                return packages;
+                return parser.getPackages();
             }
-            dockerClient.execStartCmd(execResponse.getId())
-                    .withDetach(false).withTty(false)
-                    .withExecId(execResponse.getId())
-                    .exec(new ExecStartResultCallback(outputStream, System.err)).awaitCompletion();
+            execCommand(dockerClient, containerId, RPM_PACKAGES_LIST_COMMAND, parser);
         } catch (InterruptedException e) {
             logger.warn("Error writing output: {}", e.getMessage());
         } catch (IOException e) {
             logger.warn("Can't run rpm command: {}", e.getMessage());
         }
+        return parser.getPackages();
+    }
 
-        // parse rpm packages
-        String linesStr = new String(outputStream.toByteArray());
-        String[] lines = linesStr.split("\\r?\\n");
-        for (String line : lines) {
-            if (StringUtils.isNotBlank(line)) {
-                packages.add(new DependencyInfo(null, MessageFormat.format(RPM_PACKAGE_PATTERN, line), null));
-            }
-        }
+    /**
+     * Parse the output of "rpm -qa".
+     */
+    public static Collection<DependencyInfo> parseRpmPackages(String linesStr) {
+        return parse(new PackageListParser(PackageListParser.RPM_SECTION, null), linesStr).getPackages();
+    }
 
+    /**
+     * Get all Alpine packages by executing "apk info -vv" in a container and parsing the output.
+     */
+    public static Collection<DependencyInfo> extractAlpinePackages(DockerClient dockerClient, String containerId) {
+        PackageListParser parser = new PackageListParser(PackageListParser.ALPINE_SECTION, null);
         try {
-            outputStream.close();
-        } catch (IOException e) {
-            logger.warn("Error reading output: {}", e.getMessage());
+            execCommand(dockerClient, containerId, ALPINE_PACKAGES_LIST_COMMAND, parser);
+        } catch (InterruptedException e) {
+            logger.warn("Error writing output: {}", e.getMessage());
         }
-        return packages;
+        return parser.getPackages();
     }
 
     /**
-     * Get all Alpine packages by executing "apk info -vv" in a container and parsing the output.
+     * Parse the output of "apk -vv info".
      */
-    public static Collection<DependencyInfo> extractAlpinePackages(DockerClient dockerClient, String containerId) {
-        Collection<DependencyInfo> packages = new LinkedList<>();
+    public static Collection<DependencyInfo> parseAlpinePackages(String linesStr) {
+        return parse(new PackageListParser(PackageListParser.ALPINE_SECTION, null), linesStr).getPackages();
+    }
 
-        // create execute command
-        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(String.valueOf(containerId))
-                .withAttachStdout(true)
-                .withCmd(ALPINE_PACKAGES_LIST_COMMAND).exec();
+    /**
+     * Get all Arch Linux packages by executing "pacman -Q" in a container and parsing the output.
+     */
+    public static Collection<DependencyInfo> extractArchLinuxPackages(DockerClient dockerClient, String containerId) {
+        String arch = getSystemArchitecture(dockerClient, containerId);
+        if (StringUtils.isBlank(arch)) {
+            return Collections.emptyList();
+        }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PackageListParser parser = new PackageListParser(PackageListParser.ARCH_LINUX_SECTION, arch);
         try {
-            dockerClient.execStartCmd(execResponse.getId())
-                    .withDetach(false).withTty(false)
-                    .withExecId(execResponse.getId())
-                    .exec(new ExecStartResultCallback(outputStream, System.err)).awaitCompletion();
+            execCommand(dockerClient, containerId, ARCH_LINUX_PACKAGES_LIST_COMMAND, parser);
         } catch (InterruptedException e) {
             logger.warn("Error writing output: {}", e.getMessage());
         }
+        return parser.getPackages();
+    }
 
-        // parse Alpine packages
-        String linesStr = new String(outputStream.toByteArray());
-        String[] lines = linesStr.split("\\r?\\n");
-        for (String line : lines) {
-            line = line.replaceAll(NON_ASCII_CHARS, EMPTY_STRING);
-            if (line.contains(ALPINE_PACKAGE_SPLIT_PATTERN)) {
-                String[] split = line.split(ALPINE_PACKAGE_SPLIT_PATTERN);
-                if (split.length > 0) {
-                    packages.add(new DependencyInfo(null, MessageFormat.format(ALPINE_PACKAGE_PATTERN, split[0]), null));
-                }
-            }
-        }
+    /**
+     * Parse the output of "pacman -Q".
+     */
+    public static Collection<DependencyInfo> parseArchLinuxPackages(String linesStr, String arch) {
+        return parse(new PackageListParser(PackageListParser.ARCH_LINUX_SECTION, arch), linesStr).getPackages();
+    }
 
-        try {
-            outputStream.close();
-        } catch (IOException e) {
-            logger.warn("Error reading output: {}", e.getMessage());
+    /**
+     * @return true if the path (relative to the image root) is a package database that can be read without a container
+     */
+    public static boolean isPackageDatabase(String path) {
+        return path.equals(DEBIAN_STATUS_FILE) || path.equals(ALPINE_DATABASE_FILE) ||
+                (path.startsWith(DEBIAN_STATUS_FOLDER) && !path.endsWith(DEBIAN_MD5SUMS_SUFFIX)) ||
+                (path.startsWith(ARCH_LINUX_DATABASE_FOLDER) && path.endsWith(ARCH_LINUX_DESC_FILE));
+    }
+
+    /**
+     * Parse a package database file of the image, the packages have the same names as the ones found by the
+     * package manager commands. Arch Linux packages keep their own architecture, see {@link #resolveArchLinuxArchitecture}.
+     * The stream is not closed.
+     */
+    public static Collection<DependencyInfo> parsePackageDatabase(String path, InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        if (path.startsWith(ARCH_LINUX_DATABASE_FOLDER)) {
+            return parseArchLinuxDesc(reader);
+        } else if (path.equals(ALPINE_DATABASE_FILE)) {
+            return parseAlpineDatabase(reader);
+        } else {
+            return parseDebianStatus(reader);
         }
-        return packages;
     }
 
     /**
-     * Get all Arch Linux packages by executing "pacman -Q" in a container and parsing the output.
+     * "pacman -Q" packages are named with the system architecture, while the database holds "any" for architecture
+     * independent packages. Use the most common architecture of the other packages instead, like "uname -m" would.
      */
-    public static Collection<DependencyInfo> extractArchLinuxPackages(DockerClient dockerClient, String containerId) {
-        Collection<DependencyInfo> packages = new LinkedList<>();
+    public static Collection<DependencyInfo> resolveArchLinuxArchitecture(Collection<DependencyInfo> packages) {
+        String anySuffix = DASH + ARCH_LINUX_ANY_ARCH + ARCH_LINUX_PACKAGE_SUFFIX;
+        Map<String, Integer> architectures = new HashMap<>();
+        for (DependencyInfo dependencyInfo : packages) {
+            String artifactId = dependencyInfo.getArtifactId();
+            if (artifactId != null && artifactId.endsWith(ARCH_LINUX_PACKAGE_SUFFIX) && !artifactId.endsWith(anySuffix)) {
+                String name = artifactId.substring(0, artifactId.length() - ARCH_LINUX_PACKAGE_SUFFIX.length());
+                String arch = name.substring(name.lastIndexOf(DASH) + 1);
+                Integer count = architectures.get(arch);
+                architectures.put(arch, count == null ? 1 : count + 1);
+            }
+        }
+        String systemArch = ARCH_LINUX_DEFAULT_ARCH;
+        int maxCount = 0;
+        for (Map.Entry<String, Integer> entry : architectures.entrySet()) {
+            if (entry.getValue() > maxCount) {
+                systemArch = entry.getKey();
+                maxCount = entry.getValue();
+            }
+        }
 
-        String arch = getSystemArchitecture(dockerClient, containerId);
-        if (StringUtils.isNotBlank(arch)) {
-            // create execute command
-            ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(String.valueOf(containerId))
-                    .withAttachStdout(true)
-                    .withCmd(ARCH_LINUX_PACKAGES_LIST_COMMAND).exec();
-
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                dockerClient.execStartCmd(execResponse.getId())
-                        .withDetach(false).withTty(false)
-                        .withExecId(execResponse.getId())
-                        .exec(new ExecStartResultCallback(outputStream, System.err)).awaitCompletion();
-            } catch (InterruptedException e) {
-                logger.warn("Error writing output: {}", e.getMessage());
+        for (DependencyInfo dependencyInfo : packages) {
+            String artifactId = dependencyInfo.getArtifactId();
+            if (artifactId != null && artifactId.endsWith(anySuffix)) {
+                dependencyInfo.setArtifactId(artifactId.substring(0, artifactId.length() - anySuffix.length()) +
+                        DASH + systemArch + ARCH_LINUX_PACKAGE_SUFFIX);
             }
+        }
+        return packages;
+    }
 
-            // parse Arch Linux packages
-            String linesStr = new String(outputStream.toByteArray());
-            String[] lines = linesStr.split("\\r?\\n");
-            for (String line : lines) {
-                line = line.replaceAll(NON_ASCII_CHARS, EMPTY_STRING);
-                String[] split = line.split(ARCH_LINUX_PACKAGE_SPLIT_PATTERN);
-                if (split.length == 2) {
-                    packages.add(new DependencyInfo(null, MessageFormat.format(ARCH_LINUX_PACKAGE_PATTERN, split[0], split[1], arch), null));
+    private static Collection<DependencyInfo> parseDebianStatus(BufferedReader reader) throws IOException {
+        Collection<DependencyInfo> packages = new ArrayList<>();
+        String name = null;
+        String version = null;
+        String arch = null;
+        // status.d files of distroless images have no status field, a listed package is installed
+        boolean installed = true;
+        String line = reader.readLine();
+        while (true) {
+            if (line == null || line.isEmpty()) {
+                // end of a package stanza
+                if (installed && name != null && version != null && arch != null) {
+                    // versions may contain an epoch
+                    if (version.contains(COLON)) {
+                        version = version.substring(version.indexOf(COLON) + 1);
+                    }
+                    packages.add(new DependencyInfo(null, MessageFormat.format(DEBIAN_PACKAGE_PATTERN, name, version, arch), version));
                 }
+                if (line == null) {
+                    break;
+                }
+                name = null;
+                version = null;
+                arch = null;
+                installed = true;
+            } else if (line.startsWith(DEBIAN_PACKAGE_FIELD)) {
+                name = line.substring(DEBIAN_PACKAGE_FIELD.length()).trim();
+            } else if (line.startsWith(DEBIAN_VERSION_FIELD)) {
+                version = line.substring(DEBIAN_VERSION_FIELD.length()).trim();
+            } else if (line.startsWith(DEBIAN_ARCH_FIELD)) {
+                arch = line.substring(DEBIAN_ARCH_FIELD.length()).trim();
+            } else if (line.startsWith(DEBIAN_STATUS_FIELD)) {
+                // same as the "ii" prefix of "dpkg -l"
+                String status = line.substring(DEBIAN_STATUS_FIELD.length()).trim();
+                installed = status.startsWith(DEBIAN_INSTALL_WANTED) && status.endsWith(DEBIAN_INSTALLED);
             }
+            line = reader.readLine();
+        }
+        return packages;
+    }
 
-            try {
-                outputStream.close();
-            } catch (IOException e) {
-                logger.warn("Error reading output: {}", e.getMessage());
+    private static Collection<DependencyInfo> parseAlpineDatabase(BufferedReader reader) throws IOException {
+        Collection<DependencyInfo> packages = new ArrayList<>();
+        String name = null;
+        String version = null;
+        String line = reader.readLine();
+        while (true) {
+            if (line == null || line.isEmpty()) {
+                if (name != null && version != null) {
+                    packages.add(new DependencyInfo(null, MessageFormat.format(ALPINE_PACKAGE_PATTERN, name + DASH + version), null));
+                }
+                if (line == null) {
+                    break;
+                }
+                name = null;
+                version = null;
+            } else if (line.startsWith(ALPINE_PACKAGE_FIELD)) {
+                name = line.substring(ALPINE_PACKAGE_FIELD.length());
+            } else if (line.startsWith(ALPINE_VERSION_FIELD)) {
+                version = line.substring(ALPINE_VERSION_FIELD.length());
             }
+            line = reader.readLine();
         }
         return packages;
     }
 
+    private static Collection<DependencyInfo> parseArchLinuxDesc(BufferedReader reader) throws IOException {
+        String name = null;
+        String version = null;
+        String arch = null;
+        String field = null;
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.startsWith("%") && line.endsWith("%")) {
+                field = line;
+            } else if (!line.isEmpty() && field != null) {
+                // only the first value of a field is used
+                if (field.equals(ARCH_LINUX_NAME_FIELD)) {
+                    name = line;
+                } else if (field.equals(ARCH_LINUX_VERSION_FIELD)) {
+                    version = line;
+                } else if (field.equals(ARCH_LINUX_ARCH_FIELD)) {
+                    arch = line;
+                }
+                field = null;
+            }
+            line = reader.readLine();
+        }
+
+        if (name == null || version == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new DependencyInfo(null, MessageFormat.format(ARCH_LINUX_PACKAGE_PATTERN, name, version,
+                arch == null ? ARCH_LINUX_ANY_ARCH : arch), null));
+    }
+
     private static String getSystemArchitecture(DockerClient dockerClient, String containerId) {
-        String arch = "";
-        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(String.valueOf(containerId))
+        PackageListParser parser = new PackageListParser(PackageListParser.ARCH_SECTION, null);
+        try {
+            execCommand(dockerClient, containerId, ARCH_LINUX_ARCHITECTURE_COMMAND, parser);
+        } catch (InterruptedException e) {
+            logger.warn("Error writing output: {}", e.getMessage());
+        }
+        return parser.getArch();
+    }
+
+    /**
+     * Run a command in the container, its output is written to the stream while the exec frames arrive.
+     */
+    static void execCommand(DockerClient dockerClient, String containerId, String[] command, OutputStream outputStream)
+            throws InterruptedException {
+        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(containerId)
                 .withAttachStdout(true)
-                .withCmd(ARCH_LINUX_ARCHITECTURE_COMMAND).exec();
+                .withCmd(command).exec();
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try {
             dockerClient.execStartCmd(execResponse.getId())
                     .withDetach(false).withTty(false)
                     .withExecId(execResponse.getId())
                     .exec(new ExecStartResultCallback(outputStream, System.err)).awaitCompletion();
-        } catch (InterruptedException e) {
-            logger.warn("Error writing output: {}", e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(outputStream);
         }
+    }
 
-        String linesStr = new String(outputStream.toByteArray()).trim();
-        if (StringUtils.isNotBlank(linesStr) && SYSTEM_ARCHITECTURES.contains(linesStr)) {
-            arch = linesStr;
-        }
+    /**
+     * Start a command in the container without waiting for it, its output is written to the stream while the exec
+     * frames arrive and the stream is closed before the result completes.
+     */
+    static CompletableFuture<Void> execCommandAsync(DockerClient dockerClient, String containerId, String[] command, OutputStream outputStream) {
+        ExecCreateCmdResponse execResponse = dockerClient.execCreateCmd(containerId)
+                .withAttachStdout(true)
+                .withCmd(command).exec();
 
+        CompletableFuture<Void> result = new CompletableFuture<>();
         try {
-            outputStream.close();
-        } catch (IOException e) {
-            logger.warn("Error reading output: {}", e.getMessage());
+            dockerClient.execStartCmd(execResponse.getId())
+                    .withDetach(false).withTty(false)
+                    .withExecId(execResponse.getId())
+                    .exec(new ExecStartResultCallback(outputStream, System.err) {
+                        @Override
+                        public void onComplete() {
+                            try {
+                                super.onComplete();
+                            } finally {
+                                IOUtils.closeQuietly(outputStream);
+                                result.complete(null);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            try {
+                                super.onError(throwable);
+                            } finally {
+                                IOUtils.closeQuietly(outputStream);
+                                result.completeExceptionally(throwable);
+                            }
+                        }
+                    });
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(outputStream);
+            throw e;
         }
-        return arch;
+        return result;
     }
 
-}
\ No newline at end of file
+    private static PackageListParser parse(PackageListParser parser, String linesStr) {
+        byte[] bytes = linesStr.getBytes(StandardCharsets.UTF_8);
+        parser.write(bytes, 0, bytes.length);
+        parser.close();
+        return parser;
+    }
+}
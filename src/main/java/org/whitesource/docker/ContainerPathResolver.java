@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the configured container paths to the folders that are copied out of a container.
+ * <p>
+ * Paths may hold globs in their file name segments (e.g. "/usr/local/lib/python*&#47;site-packages"). The globs are
+ * expanded by the shell of the container, so only the matching folders are copied. A container without a shell gets
+ * the folder before the first glob copied instead, its entries are filtered by the glob while they stream in.
+ */
+public class ContainerPathResolver {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerPathResolver.class);
+
+    // the paths are passed to the shell unquoted so that it expands the globs
+    private static final Pattern SAFE_PATH = Pattern.compile("[A-Za-z0-9_./*?\\[\\]!@+,=~-]+");
+    private static final String GLOB_CHARS = "*?[";
+    private static final String END_MARKER = "#end";
+    private static final String UNIX_FILE_SEPARATOR = "/";
+    private static final String EMPTY_STRING = "";
+    private static final String SPACE = " ";
+    private static final String NEW_LINE = "\n";
+
+    /* --- Members --- */
+
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> globs = new ArrayList<>();
+
+    /* --- Constructors --- */
+
+    /**
+     * @param containerPaths absolute container paths, may hold globs
+     */
+    public ContainerPathResolver(Collection<String> containerPaths) {
+        for (String containerPath : containerPaths) {
+            String path = containerPath.trim();
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (!path.startsWith(UNIX_FILE_SEPARATOR) || !SAFE_PATH.matcher(path).matches()) {
+                logger.warn("Ignoring container path '{}', it must be absolute and can't hold spaces or quotes", path);
+            } else if (isGlob(path)) {
+                globs.add(removeTrailingSeparator(path));
+            } else {
+                paths.add(removeTrailingSeparator(path));
+            }
+        }
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @return the folders to copy out of the container, folders inside other folders are left out
+     */
+    public List<ExportPath> resolve(DockerClient dockerClient, String containerId) {
+        List<ExportPath> exportPaths = new ArrayList<>();
+        for (String path : paths) {
+            exportPaths.add(new ExportPath(path, null));
+        }
+        if (!globs.isEmpty()) {
+            List<String> expanded = expandGlobs(dockerClient, containerId);
+            if (expanded != null) {
+                for (String path : expanded) {
+                    exportPaths.add(new ExportPath(path, null));
+                }
+            } else {
+                logger.debug("Can't expand the path globs in {}, filtering their parent folders", containerId);
+                for (String glob : globs) {
+                    exportPaths.add(new ExportPath(getStaticPrefix(glob), toPattern(glob)));
+                }
+            }
+        }
+        return removeNested(exportPaths);
+    }
+
+    /**
+     * @return true if no paths are configured
+     */
+    public boolean isEmpty() {
+        return paths.isEmpty() && globs.isEmpty();
+    }
+
+    /* --- Private methods --- */
+
+    /**
+     * @return the existing paths matching the globs or null if the container has no shell
+     */
+    private List<String> expandGlobs(DockerClient dockerClient, String containerId) {
+        StringBuilder script = new StringBuilder("for p in");
+        for (String glob : globs) {
+            script.append(SPACE).append(glob);
+        }
+        script.append("; do [ -e \"$p\" ] && echo \"$p\"; done; echo '").append(END_MARKER).append("'");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ContainerPackageExtractor.execCommand(dockerClient, containerId, new String[]{"sh", "-c", script.toString()}, output);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (RuntimeException e) {
+            logger.debug("Error expanding path globs in {}: {}", containerId, e.getMessage());
+            return null;
+        }
+
+        List<String> expanded = new ArrayList<>();
+        boolean ended = false;
+        for (String line : new String(output.toByteArray(), StandardCharsets.UTF_8).split(NEW_LINE)) {
+            line = line.trim();
+            if (END_MARKER.equals(line)) {
+                ended = true;
+            } else if (line.startsWith(UNIX_FILE_SEPARATOR)) {
+                expanded.add(removeTrailingSeparator(line));
+            }
+        }
+        return ended ? expanded : null;
+    }
+
+    private List<ExportPath> removeNested(List<ExportPath> exportPaths) {
+        Set<String> allPaths = new HashSet<>();
+        for (ExportPath exportPath : exportPaths) {
+            if (exportPath.filter == null) {
+                allPaths.add(exportPath.path);
+            }
+        }
+        List<ExportPath> result = new ArrayList<>();
+        Set<String> added = new HashSet<>();
+        for (ExportPath exportPath : exportPaths) {
+            if (!isInside(exportPath.path, allPaths) && (exportPath.filter != null || added.add(exportPath.path))) {
+                result.add(exportPath);
+            }
+        }
+        return result;
+    }
+
+    private boolean isInside(String path, Set<String> folders) {
+        if (folders.contains(UNIX_FILE_SEPARATOR) && !UNIX_FILE_SEPARATOR.equals(path)) {
+            return true;
+        }
+        int index = path.lastIndexOf(UNIX_FILE_SEPARATOR);
+        while (index > 0) {
+            String parent = path.substring(0, index);
+            if (folders.contains(parent)) {
+                return true;
+            }
+            index = parent.lastIndexOf(UNIX_FILE_SEPARATOR);
+        }
+        return false;
+    }
+
+    private static boolean isGlob(String path) {
+        for (char c : GLOB_CHARS.toCharArray()) {
+            if (path.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the folder before the first segment with a glob
+     */
+    private static String getStaticPrefix(String glob) {
+        int globIndex = glob.length();
+        for (char c : GLOB_CHARS.toCharArray()) {
+            int index = glob.indexOf(c);
+            if (index >= 0) {
+                globIndex = Math.min(globIndex, index);
+            }
+        }
+        String prefix = glob.substring(0, glob.lastIndexOf(UNIX_FILE_SEPARATOR, globIndex));
+        return prefix.isEmpty() ? UNIX_FILE_SEPARATOR : prefix;
+    }
+
+    /**
+     * @return a pattern matching the paths (relative to the container root) at or below the glob
+     */
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        String path = glob.substring(1);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            int bracketEnd = c == '[' ? getBracketEnd(path, i) : -1;
+            if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (bracketEnd > 0) {
+                // like the shell, "[!...]" matches the characters that are not listed
+                int start = i + 1;
+                regex.append('[');
+                if (path.charAt(start) == '!') {
+                    regex.append('^');
+                    start++;
+                }
+                for (char member : path.substring(start, bracketEnd).toCharArray()) {
+                    // brackets would nest classes, every other character allowed in a path is literal or a range
+                    regex.append(member == '[' || member == ']' ? "\\" + member : String.valueOf(member));
+                }
+                regex.append("&&[^/]]");
+                i = bracketEnd;
+            } else {
+                // e.g. a '[' without its ']' is matched by the shell as it is
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.append("(/.*)?").toString());
+    }
+
+    /**
+     * @return the index of the ']' that closes the bracket expression at the index, -1 if it isn't closed in its
+     * segment. A ']' right after the '[' or the '!' is one of the listed characters.
+     */
+    private static int getBracketEnd(String path, int start) {
+        int index = start + 1;
+        if (index < path.length() && path.charAt(index) == '!') {
+            index++;
+        }
+        for (index++; index < path.length(); index++) {
+            char c = path.charAt(index);
+            if (c == ']') {
+                return index;
+            } else if (c == '/') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static String removeTrailingSeparator(String path) {
+        return path.length() > 1 && path.endsWith(UNIX_FILE_SEPARATOR) ? path.substring(0, path.length() - 1) : path;
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * A folder to copy out of the container.
+     */
+    public static class ExportPath {
+
+        private final String path;
+        private final Pattern filter;
+
+        private ExportPath(String path, Pattern filter) {
+            this.path = path;
+            this.filter = filter;
+        }
+
+        /**
+         * @return the absolute container path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the folder of the copied entries relative to the container root, with a trailing separator
+         */
+        public String getEntryPrefix() {
+            String relativePath = path.substring(1);
+            int index = relativePath.lastIndexOf(UNIX_FILE_SEPARATOR);
+            return index < 0 ? EMPTY_STRING : relativePath.substring(0, index + 1);
+        }
+
+        /**
+         * @return the filter of the copied paths relative to the container root, null to keep all
+         */
+        public Pattern getFilter() {
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * On-disk scan state of containers, keyed by the container id.
+ * <p>
+ * The image layers of a container never change, so the result of an image is stored once per image id and every
+ * container entry only keeps the image id together with the last result of its writable layer. The next run reuses the
+ * image result as long as the container runs the same image and only looks at the paths the container changed. Entries
+ * are JSON files, written to a temporary file and atomically renamed. The entries of removed containers and of images
+ * no longer used by any of them are deleted by {@link #retain}.
+ */
+public class ContainerStateStore {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerStateStore.class);
+
+    // bump when the stored format or the scan logic changes
+    private static final String STATE_VERSION = "3";
+    private static final String ENTRY_SUFFIX = ".container";
+    private static final String IMAGE_SUFFIX = ".image";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String DIGEST_SEPARATOR = ":";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /* --- Members --- */
+
+    private final File stateDir;
+    private final String namespace;
+    // images whose entry is up to date in this run, they are not written again for every container
+    private final Set<String> storedImages = Collections.synchronizedSet(new HashSet<>());
+
+    /* --- Constructors --- */
+
+    /**
+     * @param stateDir  state folder, should not be shared by agents of different hosts
+     * @param namespace fingerprint of the scan configuration, states of a different configuration are never reused
+     */
+    public ContainerStateStore(File stateDir, String namespace) {
+        this.stateDir = stateDir;
+        this.namespace = STATE_VERSION + namespace;
+        stateDir.mkdirs();
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @return the state of the container from the last run or null if it was not scanned before
+     */
+    public ContainerState get(String containerId) {
+        ContainerState state = read(getEntryFile(containerId), ContainerState.class);
+        return state != null && namespace.equals(state.namespace) ? state : null;
+    }
+
+    /**
+     * @return the stored result of the image or null if it was not scanned before
+     */
+    public ImageScanResult getImageResult(String imageId) {
+        ImageState state = read(getImageFile(imageId), ImageState.class);
+        if (state == null || !namespace.equals(state.namespace)) {
+            return null;
+        }
+        storedImages.add(imageId);
+        return new ImageScanResult(state.dependencies, state.packages);
+    }
+
+    /**
+     * Store the state of a scanned container, the result of its image is written once per run.
+     */
+    public void put(String containerId, ContainerState state, ImageScanResult imageResult) {
+        if (storedImages.add(state.imageId)) {
+            ImageState imageState = new ImageState(imageResult);
+            imageState.namespace = namespace;
+            if (!write(getImageFile(state.imageId), imageState)) {
+                storedImages.remove(state.imageId);
+                return;
+            }
+        }
+        state.namespace = namespace;
+        write(getEntryFile(containerId), state);
+    }
+
+    /**
+     * Delete the states of containers that no longer exist and the results of images none of the remaining
+     * containers runs.
+     */
+    public void retain(Set<String> containerIds) {
+        File[] entries = stateDir.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+        Set<String> imageFiles = new HashSet<>();
+        for (File entry : entries) {
+            String containerId = entry.getName().substring(0, entry.getName().length() - ENTRY_SUFFIX.length());
+            if (!containerIds.contains(containerId)) {
+                if (entry.delete()) {
+                    logger.debug("Removed state of container {}", containerId);
+                }
+            } else {
+                ContainerState state = read(entry, ContainerState.class);
+                if (state != null) {
+                    imageFiles.add(getImageFile(state.imageId).getName());
+                }
+            }
+        }
+
+        File[] images = stateDir.listFiles((dir, name) -> name.endsWith(IMAGE_SUFFIX) && !imageFiles.contains(name));
+        if (images != null) {
+            for (File image : images) {
+                if (image.delete()) {
+                    logger.debug("Removed state of image {}", image.getName());
+                }
+            }
+        }
+        storedImages.clear();
+    }
+
+    /* --- Private methods --- */
+
+    private File getEntryFile(String containerId) {
+        // container ids are hex strings, they are safe file names
+        return new File(stateDir, containerId + ENTRY_SUFFIX);
+    }
+
+    private File getImageFile(String imageId) {
+        // image ids are digests, only the hex part is kept
+        return new File(stateDir, imageId.substring(imageId.lastIndexOf(DIGEST_SEPARATOR) + 1) + IMAGE_SUFFIX);
+    }
+
+    private <T> T read(File entryFile, Class<T> stateClass) {
+        if (!entryFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return objectMapper.readValue(entryFile, stateClass);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Dropping unreadable state {}: {}", entryFile.getName(), e.getMessage());
+            FileUtils.deleteQuietly(entryFile);
+            return null;
+        }
+    }
+
+    private boolean write(File entryFile, Object state) {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(entryFile.getName(), TEMP_SUFFIX, stateDir);
+            objectMapper.writeValue(tempFile, state);
+            try {
+                Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Error writing state {}: {}", entryFile.getName(), e.getMessage());
+            return false;
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * Image id and last writable layer result of a container.
+     */
+    public static class ContainerState {
+
+        private final String imageId;
+        private final ArrayList<DependencyInfo> layerDependencies;
+        private final HashMap<String, String> layerFingerprint;
+        @JsonProperty
+        private String namespace;
+
+        /**
+         * @param layerFingerprint size and modification time of each changed file the layer dependencies were found in
+         */
+        @JsonCreator
+        public ContainerState(@JsonProperty("imageId") String imageId,
+                              @JsonProperty("layerDependencies") Collection<DependencyInfo> layerDependencies,
+                              @JsonProperty("layerFingerprint") Map<String, String> layerFingerprint) {
+            this.imageId = imageId;
+            this.layerDependencies = new ArrayList<>(layerDependencies);
+            this.layerFingerprint = new HashMap<>(layerFingerprint);
+        }
+
+        public String getImageId() {
+            return imageId;
+        }
+
+        public List<DependencyInfo> getLayerDependencies() {
+            return layerDependencies;
+        }
+
+        public Map<String, String> getLayerFingerprint() {
+            return layerFingerprint;
+        }
+    }
+
+    /**
+     * Result of an image, shared by all containers of the image.
+     */
+    private static class ImageState {
+
+        @JsonProperty
+        private final ArrayList<DependencyInfo> dependencies;
+        @JsonProperty
+        private final ArrayList<DependencyInfo> packages;
+        @JsonProperty
+        private String namespace;
+
+        private ImageState(ImageScanResult imageResult) {
+            this(imageResult.getDependencies(), imageResult.getPackages());
+        }
+
+        @JsonCreator
+        private ImageState(@JsonProperty("dependencies") Collection<DependencyInfo> dependencies,
+                           @JsonProperty("packages") Collection<DependencyInfo> packages) {
+            this.dependencies = new ArrayList<>(dependencies);
+            this.packages = new ArrayList<>(packages);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared instances of the dependencies of the projects of a run.
+ * <p>
+ * The containers of a host mostly run images built on the same base images, so the same OS packages and files are
+ * found in many projects, each time as a separate {@link DependencyInfo} with its own strings. A dependency is looked
+ * up by its SHA-1, or by its package coordinates if it has none, together with its path. An equal dependency that was
+ * seen before replaces it, so every project refers to the same instance. Dependencies are not modified once their
+ * project is complete, sharing them doesn't change what is sent.
+ */
+public class DependencyPool {
+
+    /* --- Static members --- */
+
+    private static final char KEY_SEPARATOR = '|';
+
+    /* --- Members --- */
+
+    private final Map<String, DependencyInfo> dependencies = new ConcurrentHashMap<>();
+
+    /* --- Public methods --- */
+
+    /**
+     * Replace the dependencies of the project by the shared instances, in a list of the exact size.
+     *
+     * @return the project
+     */
+    public AgentProjectInfo intern(AgentProjectInfo projectInfo) {
+        Collection<DependencyInfo> projectDependencies = projectInfo.getDependencies();
+        List<DependencyInfo> interned = new ArrayList<>(projectDependencies.size());
+        for (DependencyInfo dependencyInfo : projectDependencies) {
+            interned.add(intern(dependencyInfo));
+        }
+        projectInfo.setDependencies(interned);
+        return projectInfo;
+    }
+
+    /**
+     * @return the shared instance of the dependency, the dependency itself if it is the first of its kind
+     */
+    public DependencyInfo intern(DependencyInfo dependencyInfo) {
+        // the children of a dependency are not compared by the key
+        if (dependencyInfo.getChildren() != null && !dependencyInfo.getChildren().isEmpty()) {
+            return dependencyInfo;
+        }
+        DependencyInfo shared = dependencies.putIfAbsent(getKey(dependencyInfo), dependencyInfo);
+        // a dependency with the same key but other details, e.g. another last modified date, is kept as it is
+        return shared == null || !shared.equals(dependencyInfo) ? dependencyInfo : shared;
+    }
+
+    /**
+     * @return the number of distinct dependencies seen so far
+     */
+    public int size() {
+        return dependencies.size();
+    }
+
+    /* --- Private methods --- */
+
+    private String getKey(DependencyInfo dependencyInfo) {
+        StringBuilder key = new StringBuilder();
+        if (dependencyInfo.getSha1() != null) {
+            key.append(dependencyInfo.getSha1());
+        } else {
+            key.append(dependencyInfo.getGroupId()).append(KEY_SEPARATOR)
+                    .append(dependencyInfo.getArtifactId()).append(KEY_SEPARATOR)
+                    .append(dependencyInfo.getVersion());
+        }
+        // the same file at another path is another dependency of the project
+        return key.append(KEY_SEPARATOR).append(dependencyInfo.getSystemPath()).toString();
+    }
+}
@@ -18,19 +18,22 @@ package org.whitesource.docker;
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.CreateContainerCmd;
 import com.github.dockerjava.api.command.CreateContainerResponse;
+import com.github.dockerjava.api.command.DockerCmdExecFactory;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
+import com.github.dockerjava.api.command.InspectImageResponse;
+import com.github.dockerjava.api.command.PullImageCmd;
 import com.github.dockerjava.api.command.SaveImageCmd;
+import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.api.model.Container;
-import com.github.dockerjava.api.model.Image;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DockerClientBuilder;
 import com.github.dockerjava.core.command.ExecStartResultCallback;
 import com.github.dockerjava.core.command.PullImageResultCallback;
 import com.github.dockerjava.jaxrs.JerseyDockerCmdExecFactory;
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import com.github.dockerjava.netty.NettyDockerCmdExecFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.plexus.archiver.ArchiverException;
 import org.slf4j.Logger;
@@ -47,8 +50,16 @@ import org.whitesource.fs.StatusCode;
 import org.whitesource.fs.configuration.ResolverConfiguration;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 
 /**
@@ -64,17 +75,29 @@ public class DockerAgent {
 
     public static final String WHITE_SOURCE_DOCKER = "WhiteSource-Docker";
     private static final String TEMP_FOLDER = System.getProperty("java.io.tmpdir") + File.separator + WHITE_SOURCE_DOCKER;
-    private static final String ARCHIVE_EXTRACTOR_TEMP_FOLDER = System.getProperty("java.io.tmpdir") + File.separator + "WhiteSource-ArchiveExtractor";
     private static final String TAR_SUFFIX = ".tar";
+    private static final String JSON_SUFFIX = ".json";
+    private static final String LAYERS_FOLDER_SUFFIX = "-layers";
+    private static final String EXTRACT_FOLDER = "image";
     private static final int SHORT_CONTAINER_ID_LENGTH = 12;
     private static final String UNIX_FILE_SEPARATOR = "/";
+    private static final String COLON = ":";
+    private static final String DIGEST_SEPARATOR = "@";
+    private static final String LATEST_TAG = "latest";
+    private static final String COMMENT_PREFIX = "#";
     private static final String DOCKER_NAME_FORMAT_STRING = "{0} {1} ({2})";
     private static final MessageFormat DOCKER_NAME_FORMAT = new MessageFormat(DOCKER_NAME_FORMAT_STRING);
+    private static final String DOCKER_IMAGE_NAME_FORMAT_STRING = "{0} {1}";
+    private static final MessageFormat DOCKER_IMAGE_NAME_FORMAT = new MessageFormat(DOCKER_IMAGE_NAME_FORMAT_STRING);
 
     // docker client configuration
     private static final int TIMEOUT = 300000;
     private static final int MAX_TOTAL_CONNECTIONS = 100;
     private static final int MAX_PER_ROUTE_CONNECTIONS = 10;
+    private static final String JERSEY_TRANSPORT = "jersey";
+    private static final String NETTY_TRANSPORT = "netty";
+    private static final String CONNECTION_HEADER = "Connection";
+    private static final String CONNECTION_CLOSE = "close";
 
     // property keys for the configuration file
     private static final String DOCKER_API_VERSION = "docker.apiVersion";
@@ -86,6 +109,31 @@ public class DockerAgent {
     private static final String DOCKER_PASSWORD = "docker.password";
     private static final String DOCKER_READ_TIMEOUT = "docker.readTimeOut";
     private static final String DOCKER_CONNECTION_TIMEOUT = "docker.connectionTimeOut";
+    static final String DOCKER_TRANSPORT = "docker.transport";
+    private static final String DOCKER_MAX_TOTAL_CONNECTIONS = "docker.maxTotalConnections";
+    static final String DOCKER_MAX_PER_ROUTE_CONNECTIONS = "docker.maxPerRouteConnections";
+    private static final String DOCKER_KEEP_ALIVE = "docker.keepAlive";
+    private static final String DOCKER_STREAM_EXPORT = "docker.streamExport";
+    static final String DOCKER_SCAN_THREADS = "docker.scanThreads";
+    private static final String DOCKER_SINGLE_EXEC_PACKAGES = "docker.singleExecPackages";
+    private static final String DOCKER_IMAGE_PACKAGES = "docker.imagePackages";
+    private static final String DOCKER_HASH_IN_STREAM = "docker.hashInStream";
+    private static final String DOCKER_SCRATCH_DIR = "docker.scratchDir";
+    private static final String DOCKER_SHOW_PROGRESS = "docker.showProgress";
+    private static final String DOCKER_METRICS_REPORT = "docker.metricsReport";
+    private static final String DOCKER_METRICS_PROMETHEUS_FILE = "docker.metricsPrometheusFile";
+    private static final String DOCKER_SCRATCH_QUOTA_MB = "docker.scratchQuotaMb";
+    private static final String DOCKER_LAYER_CACHE_DIR = "docker.layerCacheDir";
+    private static final String DOCKER_LAYER_CACHE_MAX_SIZE_MB = "docker.layerCacheMaxSizeMb";
+    private static final String DOCKER_INCREMENTAL_STATE_DIR = "docker.incrementalStateDir";
+    private static final String DOCKER_EXPORT_PATHS = "docker.exportPaths";
+    private static final String DOCKER_PULL_PREFETCH = "docker.pullPrefetch";
+    private static final String DOCKER_LAYER_THREADS = "docker.layerThreads";
+    private static final String DOCKER_PARALLEL_LAYER_SCANS = "docker.parallelLayerScans";
+    private static final String DOCKER_INFLATE_AHEAD_MIN_SIZE_MB = "docker.inflateAheadMinSizeMb";
+    private static final String DOCKER_SEND_BATCH_SIZE = "docker.sendBatchSize";
+    private static final String DOCKER_SEND_RETRIES = "docker.sendRetries";
+    private static final String DOCKER_SEND_RETRY_DELAY_SECONDS = "docker.sendRetryDelaySeconds";
     private static final String NPM_RESOLVE_DEPENDENCIES = "npm.resolveDependencies";
     private static final String BOWER_RESOLVE_DEPENDENCIES = "bower.resolveDependencies";
     private static final String NUGET_RESOLVE_DEPENDENCIES = "nuget.resolveDependencies";
@@ -96,14 +144,43 @@ public class DockerAgent {
     // directory scanner defaults
     private static final boolean PARTIAL_SHA1_MATCH = false;
     private static final int ARCHIVE_EXTRACTION_DEPTH = 2;
+    private static final long LAYER_CACHE_MAX_SIZE_MB = 1024;
+    private static final int SCAN_THREADS = 1;
+    private static final int PULL_PREFETCH = 2;
+    private static final int SEND_BATCH_SIZE = 0;
+    private static final int SEND_RETRIES = 2;
+    private static final long SEND_RETRY_DELAY_SECONDS = 10;
+    private static final long SCRATCH_QUOTA_MB = 0;
     private static final String WINDOWS_PATH_SEPARATOR = "\\";
     private static final String UNIX_PATH_SEPARATOR = "/";
+    private static final String PATHS_SEPARATOR = ";";
     public static final String EMPTY_STRING = "";
     /* --- Members --- */
 
     private final CommandLineArgs commandLineArgs;
     private final Properties config;
     private final FSAConfiguration fsaConfiguration;
+    private final int archiveExtractionDepth;
+    private final boolean streamExport;
+    private final String transport;
+    private final int maxPerRouteConnections;
+    private final int scanThreads;
+    private final int layerThreads;
+    private final boolean parallelLayerScans;
+    private final int sendBatchSize;
+    private final boolean singleExecPackages;
+    private final boolean imagePackages;
+    private final boolean hashInStream;
+    private final boolean showProgress;
+    private final LayerCache layerCache;
+    private final LayerDecompressor decompressor;
+    private final ContainerStateStore stateStore;
+    private final ContainerDiffScanner diffScanner;
+    private final ContainerPathResolver pathResolver;
+    private final PathClassifier pathClassifier;
+    private final ScanMetrics metrics;
+    private ScratchSpace scratchSpace;
+    private ExecutorService layerExecutor;
 
     /* --- Constructors --- */
 
@@ -116,33 +193,199 @@ public class DockerAgent {
         this.config = config;
         this.commandLineArgs = commandLineArgs;
         this.fsaConfiguration = new FSAConfiguration(config);
+
+        String dockerArchiveExtractionDepth = config.getProperty(DOCKER_ARCHIVE_EXTRACTION_DEPTH);
+        int archiveExtractionDepth = ARCHIVE_EXTRACTION_DEPTH;
+        if (StringUtils.isNotBlank(dockerArchiveExtractionDepth)) {
+            archiveExtractionDepth = Integer.parseInt(dockerArchiveExtractionDepth);
+        }
+        this.archiveExtractionDepth = archiveExtractionDepth;
+        this.streamExport = Boolean.parseBoolean(config.getProperty(DOCKER_STREAM_EXPORT, Boolean.FALSE.toString()));
+        this.transport = config.getProperty(DOCKER_TRANSPORT, JERSEY_TRANSPORT).trim().toLowerCase();
+        this.maxPerRouteConnections = Integer.parseInt(config.getProperty(DOCKER_MAX_PER_ROUTE_CONNECTIONS, String.valueOf(MAX_PER_ROUTE_CONNECTIONS)));
+        int scanThreads = Integer.parseInt(config.getProperty(DOCKER_SCAN_THREADS, String.valueOf(SCAN_THREADS)));
+        if (NETTY_TRANSPORT.equals(transport)) {
+            // netty opens a channel per call and has no connection pool to run out of
+            this.scanThreads = Math.max(1, scanThreads);
+        } else {
+            // every worker holds at most one pooled connection to the docker daemon at a time
+            this.scanThreads = Math.max(1, Math.min(scanThreads, maxPerRouteConnections));
+        }
+        // layers read from files need no docker connection, they are bound by the cores
+        int layerThreads = Integer.parseInt(config.getProperty(DOCKER_LAYER_THREADS, String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.layerThreads = Math.max(1, layerThreads);
+        // the resolvers of a per-layer scan only see the files of one layer, e.g. a package.json without its node_modules
+        this.parallelLayerScans = Boolean.parseBoolean(config.getProperty(DOCKER_PARALLEL_LAYER_SCANS, Boolean.FALSE.toString()));
+        long inflateAheadMinSizeMb = Long.parseLong(config.getProperty(DOCKER_INFLATE_AHEAD_MIN_SIZE_MB,
+                String.valueOf(LayerDecompressor.PIPELINE_THRESHOLD / FileUtils.ONE_MB)));
+        this.decompressor = new LayerDecompressor(inflateAheadMinSizeMb * FileUtils.ONE_MB);
+        this.sendBatchSize = Integer.parseInt(config.getProperty(DOCKER_SEND_BATCH_SIZE, String.valueOf(SEND_BATCH_SIZE)));
+        // progress bars only make sense on a terminal, CI logs would get a line per refresh
+        String showProgress = config.getProperty(DOCKER_SHOW_PROGRESS);
+        this.showProgress = StringUtils.isBlank(showProgress) ? System.console() != null : Boolean.parseBoolean(showProgress);
+        this.hashInStream = Boolean.parseBoolean(config.getProperty(DOCKER_HASH_IN_STREAM, Boolean.FALSE.toString()));
+        this.layerCache = createLayerCache();
+        this.metrics = new ScanMetrics(new DockerAgentInfo().getAgentVersion());
+        // the image layers are unpacked by the extractor, they no longer take a level of the archive extraction depth
+        this.pathClassifier = new PathClassifier(fsaConfiguration.getAgent().getIncludes(), fsaConfiguration.getAgent().getExcludes(),
+                fsaConfiguration.getAgent().getGlobCaseSensitive(), Math.max(0, archiveExtractionDepth - 1));
+        this.singleExecPackages = Boolean.parseBoolean(config.getProperty(DOCKER_SINGLE_EXEC_PACKAGES, Boolean.TRUE.toString()));
+        this.imagePackages = Boolean.parseBoolean(config.getProperty(DOCKER_IMAGE_PACKAGES, Boolean.TRUE.toString()));
+        this.stateStore = createStateStore();
+        this.diffScanner = new ContainerDiffScanner(pathClassifier);
+        this.pathResolver = new ContainerPathResolver(Arrays.asList(config.getProperty(DOCKER_EXPORT_PATHS, EMPTY_STRING).split(PATHS_SEPARATOR)));
     }
 
     /* --- Public methods --- */
 
     public StatusCode sendRequest() {
-        Collection<AgentProjectInfo> projects = createProjects();
-        ProjectsSender projectsSender = new ProjectsSender(fsaConfiguration.getSender(), fsaConfiguration.getOffline(), fsaConfiguration.getRequest(), new DockerAgentInfo());
-        final StatusCode[] success = new StatusCode[]{StatusCode.SUCCESS};
-        return projectsSender.sendRequest(new ProjectsDetails(projects, success[0], EMPTY_STRING)).getValue();
+        if (sendBatchSize > 0) {
+            return sendRequestInBatches();
+        }
+        long createProjectsStart = metrics.startPhase();
+        Collection<AgentProjectInfo> projects = new ArrayList<>();
+        createProjects(projects::add);
+        metrics.addPhase(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.CREATE_PROJECTS, createProjectsStart);
+        return sendProjects(projects);
+    }
+
+    /**
+     * Send the projects to the WhiteSource service and write the metrics.
+     */
+    public StatusCode sendProjects(Collection<AgentProjectInfo> projects) {
+        try {
+            return send(projects);
+        } finally {
+            writeMetrics();
+        }
     }
 
-    private Collection<AgentProjectInfo> createProjects() {
+    /**
+     * Write the metrics and start over for the images and containers. A daemon does it every send interval, so the
+     * metrics only hold the containers scanned since the last one.
+     */
+    public void rollMetrics() {
+        writeMetrics();
+        metrics.resetSubjects();
+    }
+
+    /**
+     * Send the projects in batches of docker.sendBatchSize while the scan goes on, instead of a single request at the
+     * end. Containers are scanned a batch at a time, so the projects held in memory depend on the batch size.
+     */
+    private StatusCode sendRequestInBatches() {
+        int sendRetries = Integer.parseInt(config.getProperty(DOCKER_SEND_RETRIES, String.valueOf(SEND_RETRIES)));
+        long sendRetryDelaySeconds = Long.parseLong(config.getProperty(DOCKER_SEND_RETRY_DELAY_SECONDS, String.valueOf(SEND_RETRY_DELAY_SECONDS)));
+        logger.info("Sending projects in batches of {}", sendBatchSize);
+        ProjectBatchSender batchSender = new ProjectBatchSender(this::send, sendBatchSize, sendRetries, TimeUnit.SECONDS.toMillis(sendRetryDelaySeconds));
+        try {
+            // the send phase overlaps with this one
+            long createProjectsStart = metrics.startPhase();
+            createProjects(batchSender);
+            metrics.addPhase(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.CREATE_PROJECTS, createProjectsStart);
+            return batchSender.close();
+        } finally {
+            writeMetrics();
+        }
+    }
+
+    private StatusCode send(Collection<AgentProjectInfo> projects) {
+        long sendStart = metrics.startPhase();
+        try {
+            ProjectsSender projectsSender = new ProjectsSender(fsaConfiguration.getSender(), fsaConfiguration.getOffline(), fsaConfiguration.getRequest(), new DockerAgentInfo());
+            final StatusCode[] success = new StatusCode[]{StatusCode.SUCCESS};
+            return projectsSender.sendRequest(new ProjectsDetails(projects, success[0], EMPTY_STRING)).getValue();
+        } finally {
+            metrics.addPhase(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.SEND, sendStart);
+        }
+    }
+
+    private void writeMetrics() {
+        metrics.writeReport(config.getProperty(DOCKER_METRICS_REPORT));
+        metrics.writePrometheus(config.getProperty(DOCKER_METRICS_PROMETHEUS_FILE));
+    }
+
+    /**
+     * Create the projects and hand each one to the sink once it is complete.
+     * The same dependencies found in several projects are shared by them.
+     */
+    private void createProjects(Consumer<AgentProjectInfo> projectSink) {
+        DependencyPool dependencyPool = new DependencyPool();
+        createSourceProjects(projectInfo -> projectSink.accept(dependencyPool.intern(projectInfo)));
+        logger.info("Found {} distinct dependencies", dependencyPool.size());
+    }
+
+    private void createSourceProjects(Consumer<AgentProjectInfo> projectSink) {
+        if (!commandLineArgs.imageArchives.isEmpty() || !commandLineArgs.ociLayouts.isEmpty()) {
+            // image archives and layouts are read from disk, no docker daemon is needed
+            if (!openScratchSpace()) {
+                return;
+            }
+            try {
+                initializeDockerResolvers(fsaConfiguration.getResolver());
+                createArchiveProjects(commandLineArgs.imageArchives, projectSink);
+                createOciProjects(commandLineArgs.ociLayouts, projectSink);
+            } finally {
+                closeScratchSpace();
+            }
+            return;
+        }
+
         DockerClient dockerClient = buildDockerClient();
         if (dockerClient == null) {
             logger.error("Error creating docker client, exiting");
-            return Collections.emptyList();
-        } else {
-            return createProjects(dockerClient);
+            return;
+        }
+        if (!openScratchSpace()) {
+            return;
+        }
+        try {
+            createProjects(dockerClient, projectSink);
+        } finally {
+            closeScratchSpace();
         }
     }
 
-    /* --- Private methods --- */
+    /* --- Package-private methods --- */
+
+    /**
+     * Scan the given containers with a client that outlives the scan. Images found in the image results are not
+     * exported again, the images scanned now are added to them.
+     */
+    Collection<AgentProjectInfo> scanContainers(DockerClient dockerClient, List<Container> containers, Map<String, ImageScanResult> imageResults) {
+        Collection<AgentProjectInfo> projects = new ArrayList<>();
+        if (!openScratchSpace()) {
+            return projects;
+        }
+        try {
+            initializeDockerResolvers(fsaConfiguration.getResolver());
+            DependencyPool dependencyPool = new DependencyPool();
+            scanContainers(dockerClient, containers, projectInfo -> projects.add(dependencyPool.intern(projectInfo)), imageResults);
+        } finally {
+            closeScratchSpace();
+        }
+        return projects;
+    }
+
+    /**
+     * Export and scan an image without a container, e.g. to have its result ready when its containers start.
+     */
+    ImageScanResult scanImage(DockerClient dockerClient, String imageId) {
+        if (!openScratchSpace()) {
+            return new ImageScanResult();
+        }
+        try {
+            initializeDockerResolvers(fsaConfiguration.getResolver());
+            return scanImage(dockerClient, imageId, getImageSize(dockerClient, imageId));
+        } finally {
+            closeScratchSpace();
+        }
+    }
 
     /**
      * Build the docker client with all the provided properties.
      */
-    private DockerClient buildDockerClient() {
+    DockerClient buildDockerClient() {
         DefaultDockerClientConfig.Builder configBuilder = DefaultDockerClientConfig.createDefaultConfigBuilder();
 
         final String dockerApiVersion = config.getProperty(DOCKER_API_VERSION);
@@ -181,198 +424,764 @@ public class DockerAgent {
             logger.info("Docker password: {}", dockerPassword);
             configBuilder.withRegistryPassword(dockerPassword);
         }
+        DockerCmdExecFactory dockerCmdExecFactory = createDockerCmdExecFactory();
+        if (dockerCmdExecFactory == null) {
+            return null;
+        }
+
+        return DockerClientBuilder.getInstance(configBuilder.build())
+                .withDockerCmdExecFactory(dockerCmdExecFactory)
+                .build();
+    }
+
+    /**
+     * Create the transport to the docker daemon selected by docker.transport.
+     * <p>
+     * The jersey transport (default) keeps a pool of blocking connections, a call holds its connection until its
+     * response is read. The netty transport runs the calls on an event loop, the frames of an exec or an attach are
+     * handed to their callbacks as they arrive, so waiting for a call needs no thread of its own.
+     *
+     * @return the transport or null if docker.transport is unknown
+     */
+    DockerCmdExecFactory createDockerCmdExecFactory() {
         Integer readTimeOut = Integer.parseInt(config.getProperty(DOCKER_READ_TIMEOUT, String.valueOf(TIMEOUT)));
         Integer connectionTimeOut = Integer.parseInt(config.getProperty(DOCKER_CONNECTION_TIMEOUT, String.valueOf(TIMEOUT)));
-        logger.info("Read timeout is set to {}", readTimeOut);
+        logger.info("Docker transport: {}", transport);
         logger.info("Connection timeout is set to {}", connectionTimeOut);
+        if (NETTY_TRANSPORT.equals(transport)) {
+            // calls of the netty transport only time out when connecting
+            return new NettyDockerCmdExecFactory().withConnectTimeout(connectionTimeOut);
+        }
+        if (!JERSEY_TRANSPORT.equals(transport)) {
+            logger.error("Unknown docker transport '{}', use {} or {}", transport, JERSEY_TRANSPORT, NETTY_TRANSPORT);
+            return null;
+        }
+
+        int maxTotalConnections = Integer.parseInt(config.getProperty(DOCKER_MAX_TOTAL_CONNECTIONS, String.valueOf(MAX_TOTAL_CONNECTIONS)));
+        boolean keepAlive = Boolean.parseBoolean(config.getProperty(DOCKER_KEEP_ALIVE, Boolean.TRUE.toString()));
+        logger.info("Read timeout is set to {}", readTimeOut);
+        logger.info("Connection pool: {} connections, {} per route, keep alive {}", maxTotalConnections, maxPerRouteConnections, keepAlive);
         JerseyDockerCmdExecFactory dockerCmdExecFactory = new JerseyDockerCmdExecFactory()
                 .withReadTimeout(readTimeOut)
                 .withConnectTimeout(connectionTimeOut)
-                .withMaxTotalConnections(MAX_TOTAL_CONNECTIONS)
-                .withMaxPerRouteConnections(MAX_PER_ROUTE_CONNECTIONS);
+                .withMaxTotalConnections(maxTotalConnections)
+                .withMaxPerRouteConnections(maxPerRouteConnections);
+        if (!keepAlive) {
+            // e.g. behind a proxy that drops idle connections, every call opens a new one
+            dockerCmdExecFactory.withClientRequestFilters(requestContext ->
+                    requestContext.getHeaders().putSingle(CONNECTION_HEADER, CONNECTION_CLOSE));
+        }
+        return dockerCmdExecFactory;
+    }
 
-        return DockerClientBuilder.getInstance(configBuilder.build())
-                .withDockerCmdExecFactory(dockerCmdExecFactory)
-                .build();
+    /**
+     * @return the number of containers and images scanned at the same time
+     */
+    int getScanThreads() {
+        return scanThreads;
+    }
+
+    /* --- Private methods --- */
+
+    private boolean openScratchSpace() {
+        String scratchDir = config.getProperty(DOCKER_SCRATCH_DIR, TEMP_FOLDER);
+        long scratchQuotaMb = Long.parseLong(config.getProperty(DOCKER_SCRATCH_QUOTA_MB, String.valueOf(SCRATCH_QUOTA_MB)));
+        try {
+            scratchSpace = new ScratchSpace(new File(scratchDir), scratchQuotaMb * FileUtils.ONE_MB);
+        } catch (IOException e) {
+            logger.error("Error creating scratch folder in {}: {}", scratchDir, e.getMessage());
+            return false;
+        }
+        logger.info("Scratch folder: {}{}", scratchSpace.getRunDir().getPath(),
+                scratchQuotaMb > 0 ? " (quota " + scratchQuotaMb + " MB)" : EMPTY_STRING);
+        // the layer workers are shared by all image scans of the run, so concurrent scans don't multiply them
+        layerExecutor = layerThreads > 1 ? Executors.newFixedThreadPool(layerThreads) : null;
+        return true;
+    }
+
+    private void closeScratchSpace() {
+        if (layerExecutor != null) {
+            layerExecutor.shutdownNow();
+            layerExecutor = null;
+        }
+        scratchSpace.close();
+        metrics.maxCounter(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.PEAK_SCRATCH_BYTES, scratchSpace.getPeakReserved());
     }
 
     /**
      * Create a {@link AgentProjectInfo} for each container:
-     * 1. Run "dpkg -l" and "rpm -qa" to extract the Debian and RPM package names.
+     * 1. Read the package databases of the image, or run "dpkg -l" and "rpm -qa" to extract the Debian and RPM package names.
      * 2. Extract the tar archive and scan with the File System Agent.
      */
-    private Collection<AgentProjectInfo> createProjects(DockerClient dockerClient) {
-        Collection<AgentProjectInfo> projects = new ArrayList<>();
+    private void createProjects(DockerClient dockerClient, Consumer<AgentProjectInfo> projectSink) {
         initializeDockerResolvers(fsaConfiguration.getResolver());
-        String dockerArchiveExtractionDepth = config.getProperty(DOCKER_ARCHIVE_EXTRACTION_DEPTH);
-        int archiveExtractionDepth = ARCHIVE_EXTRACTION_DEPTH;
-        if (StringUtils.isNotBlank(dockerArchiveExtractionDepth)) {
-            archiveExtractionDepth = Integer.parseInt(dockerArchiveExtractionDepth);
-        }
 
-        CreateContainerResponse forcedContainer = null;
-        if (StringUtils.isNotBlank(commandLineArgs.dockerImage)) {
-            logger.info("Check if image exists '{}'", commandLineArgs.dockerImage);
+        List<String> images = getImageNames();
+        if (!images.isEmpty()) {
+            createImageProjects(dockerClient, images, projectSink);
+            return;
+        }
 
-            if (!imageExists(dockerClient, commandLineArgs.dockerImage)) {
-                logger.info("Pulling image '{}'", commandLineArgs.dockerImage);
-                dockerClient.pullImageCmd(commandLineArgs.dockerImage).exec(new PullImageResultCallback()).awaitSuccess();
-            } else {
-                logger.info("Image found '{}',skip pulling", commandLineArgs.dockerImage);
+        // list containers
+        List<Container> containers = dockerClient.listContainersCmd().withShowSize(true).exec();
+        if (containers.isEmpty()) {
+            logger.info("No active containers");
+            return;
+        }
+        if (stateStore != null) {
+            Set<String> existingContainers = new HashSet<>();
+            for (Container container : dockerClient.listContainersCmd().withShowAll(true).exec()) {
+                existingContainers.add(container.getId());
             }
+            stateStore.retain(existingContainers);
+        }
+        if (sendBatchSize <= 0) {
+            scanContainers(dockerClient, containers, projectSink, new HashMap<>());
+            return;
+        }
 
-            logger.info("Creating container");
-            final CreateContainerCmd createdContainerCmd = dockerClient.createContainerCmd(commandLineArgs.dockerImage);
-            if (commandLineArgs.withCmd.size() != 0) {
-                logger.info("Container will be started with '{}' command", commandLineArgs.withCmd);
-                createdContainerCmd.withCmd(commandLineArgs.withCmd);
+        // containers of the same image are scanned together, its result is dropped once they are all done
+        Map<String, List<Container>> imageContainers = new LinkedHashMap<>();
+        for (Container container : containers) {
+            List<Container> sameImageContainers = imageContainers.get(container.getImageId());
+            if (sameImageContainers == null) {
+                sameImageContainers = new ArrayList<>();
+                imageContainers.put(container.getImageId(), sameImageContainers);
             }
+            sameImageContainers.add(container);
+        }
+        List<Container> orderedContainers = new ArrayList<>(containers.size());
+        for (List<Container> sameImageContainers : imageContainers.values()) {
+            orderedContainers.addAll(sameImageContainers);
+        }
+        Map<String, ImageScanResult> imageResults = new HashMap<>();
+        int chunkSize = Math.max(sendBatchSize, scanThreads);
+        for (int start = 0; start < orderedContainers.size(); start += chunkSize) {
+            List<Container> chunk = orderedContainers.subList(start, Math.min(start + chunkSize, orderedContainers.size()));
+            scanContainers(dockerClient, chunk, projectSink, imageResults);
+            Set<String> remainingImages = new HashSet<>();
+            for (Container container : orderedContainers.subList(start + chunk.size(), orderedContainers.size())) {
+                remainingImages.add(container.getImageId());
+            }
+            imageResults.keySet().retainAll(remainingImages);
+        }
+    }
 
-            // enable attach stdin and tty so container won't stop after execution
-            createdContainerCmd.withAttachStdin(true);
-            createdContainerCmd.withTty(true);
-
-            forcedContainer = createdContainerCmd.exec();
-            logger.info("Container '{}' created and starting", forcedContainer.getId());
-            dockerClient.startContainerCmd(forcedContainer.getId()).exec();
+    /**
+     * Create the projects of the images given on the command line, one image after the other.
+     * The next images are resolved and pulled while the current one is scanned, at most docker.pullPrefetch ahead.
+     */
+    private void createImageProjects(DockerClient dockerClient, List<String> images, Consumer<AgentProjectInfo> projectSink) {
+        int pullPrefetch = Math.max(1, Integer.parseInt(config.getProperty(DOCKER_PULL_PREFETCH, String.valueOf(PULL_PREFETCH))));
+        List<Future<InspectImageResponse>> resolvedImages = new ArrayList<>(images.size());
+        ExecutorService pullExecutor = Executors.newFixedThreadPool(Math.min(pullPrefetch, images.size()));
+        try {
+            for (int i = 0; i < images.size(); i++) {
+                // keep the current image and the prefetched ones in flight
+                while (resolvedImages.size() < images.size() && resolvedImages.size() <= i + pullPrefetch) {
+                    String prefetchedImage = images.get(resolvedImages.size());
+                    resolvedImages.add(pullExecutor.submit(() -> resolveImage(dockerClient, prefetchedImage)));
+                }
+                String imageName = images.get(i);
+                InspectImageResponse image = getScanResult(resolvedImages.get(i), null);
+                // drop the reference, the pipeline holds at most the prefetched responses
+                resolvedImages.set(i, null);
+                if (image == null) {
+                    logger.error("Skipping image '{}', it can't be found or pulled", imageName);
+                    continue;
+                }
+                createImageProjects(dockerClient, imageName, image).forEach(projectSink);
+            }
+        } finally {
+            pullExecutor.shutdownNow();
+        }
+    }
 
-            // must execute at least one command (touch is the most minimalistic)
-            ExecCreateCmdResponse execCreateCmdResponse = dockerClient.execCreateCmd(forcedContainer.getId())
-                    .withCmd("touch", "/execStartText.log")
-                    .exec();
+    /**
+     * Inspect the image and pull it if it is missing, a single inspect call for an image that exists.
+     */
+    private InspectImageResponse resolveImage(DockerClient dockerClient, String imageName) {
+        try {
+            InspectImageResponse image = dockerClient.inspectImageCmd(imageName).exec();
+            logger.info("Image found '{}', skip pulling", imageName);
+            return image;
+        } catch (NotFoundException e) {
+            logger.info("Pulling image '{}'", imageName);
+        }
+        long pullStart = metrics.startPhase();
+        PullImageCmd pullImageCmd;
+        int tagIndex = imageName.lastIndexOf(COLON);
+        if (imageName.contains(DIGEST_SEPARATOR) || tagIndex > imageName.lastIndexOf(UNIX_FILE_SEPARATOR)) {
+            pullImageCmd = dockerClient.pullImageCmd(imageName);
+        } else {
+            // without a tag all tags of the repository would be pulled
+            pullImageCmd = dockerClient.pullImageCmd(imageName).withTag(LATEST_TAG);
+        }
+        pullImageCmd.exec(new PullImageResultCallback()).awaitSuccess();
+        metrics.addPhase(ScanMetrics.IMAGE, imageName, ScanMetrics.PULL, pullStart);
+        return dockerClient.inspectImageCmd(imageName).exec();
+    }
 
-            try {
-                dockerClient.execStartCmd(execCreateCmdResponse.getId())
-                        // docker -d parameter
-                        .withDetach(true)
-                        .exec(new ExecStartResultCallback(System.out, System.err))
-                        .awaitCompletion();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Create a {@link AgentProjectInfo} for an image given on the command line.
+     * The image is scanned without a container, one is started only if its package databases can't be read or a start
+     * command is given. The container then only adds the packages listed by its exec to the image result.
+     */
+    private Collection<AgentProjectInfo> createImageProjects(DockerClient dockerClient, String imageName, InspectImageResponse image) {
+        Collection<AgentProjectInfo> projects = new ArrayList<>();
+        Map<String, ImageScanResult> imageResults = new HashMap<>();
+        // the configured paths are copied out of a container, the image is never exported
+        if (imagePackages && pathResolver.isEmpty()) {
+            String imageId = getShortImageId(image.getId());
+            logger.info("Processing Image {} {}", imageName, imageId);
+            long imageSize = image.getSize() == null ? 0 : image.getSize();
+            ImageScanResult imageScanResult = scanImage(dockerClient, image.getId(), imageSize);
+            if (imageScanResult.getPackages().isEmpty()) {
+                logger.info("No package database found in image '{}', running a container to list its packages", imageName);
+            } else if (commandLineArgs.withCmd.isEmpty()) {
+                AgentProjectInfo projectInfo = new AgentProjectInfo();
+                projectInfo.setCoordinates(new Coordinates(null, DOCKER_IMAGE_NAME_FORMAT.format(DOCKER_IMAGE_NAME_FORMAT_STRING, imageName, imageId), null));
+                projectInfo.getDependencies().addAll(imageScanResult.getPackages());
+                projectInfo.getDependencies().addAll(imageScanResult.getDependencies());
+                projects.add(projectInfo);
+                return projects;
             }
+            // the container runs the same image, it is not exported again
+            imageResults.put(image.getId(), imageScanResult);
         }
 
-        // list containers
-        List<Container> containers = dockerClient.listContainersCmd().withShowSize(true).exec();
-        if (containers.isEmpty()) {
-            logger.info("No active containers");
-            return projects;
+        logger.info("Creating container");
+        final CreateContainerCmd createdContainerCmd = dockerClient.createContainerCmd(imageName);
+        if (commandLineArgs.withCmd.size() != 0) {
+            logger.info("Container will be started with '{}' command", commandLineArgs.withCmd);
+            createdContainerCmd.withCmd(commandLineArgs.withCmd);
         }
 
-        boolean containerFoundAfterStart = false;
-        for (Container container : containers) {
-            String containerId = container.getId().substring(0, SHORT_CONTAINER_ID_LENGTH);
-            String containerName = getContainerName(container);
-            String image = container.getImage();
+        // enable attach stdin and tty so container won't stop after execution
+        createdContainerCmd.withAttachStdin(true);
+        createdContainerCmd.withTty(true);
+
+        CreateContainerResponse forcedContainer = createdContainerCmd.exec();
+        logger.info("Container '{}' created and starting", forcedContainer.getId());
+        dockerClient.startContainerCmd(forcedContainer.getId()).exec();
+
+        // must execute at least one command (touch is the most minimalistic)
+        ExecCreateCmdResponse execCreateCmdResponse = dockerClient.execCreateCmd(forcedContainer.getId())
+                .withCmd("touch", "/execStartText.log")
+                .exec();
 
-            if (forcedContainer != null && !forcedContainer.getId().equalsIgnoreCase(container.getId())) {
+        try {
+            dockerClient.execStartCmd(execCreateCmdResponse.getId())
+                    // docker -d parameter
+                    .withDetach(true)
+                    .exec(new ExecStartResultCallback(System.out, System.err))
+                    .awaitCompletion();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        List<Container> containers = new ArrayList<>();
+        for (Container container : dockerClient.listContainersCmd().withShowSize(true).exec()) {
+            if (forcedContainer.getId().equalsIgnoreCase(container.getId())) {
+                containers.add(container);
+            }
+        }
+        if (!containers.isEmpty()) {
+            scanContainers(dockerClient, containers, projects::add, imageResults);
+            logger.info("Cleaning created container");
+            dockerClient.stopContainerCmd(forcedContainer.getId()).exec();
+            dockerClient.removeContainerCmd(forcedContainer.getId()).exec();
+        }
+        return projects;
+    }
+
+    /**
+     * Create a {@link AgentProjectInfo} for each image in the 'docker save' archives given on the command line.
+     * The OS packages are read from the package databases, there is no container to run the package managers.
+     */
+    private void createArchiveProjects(List<String> archivePaths, Consumer<AgentProjectInfo> projectSink) {
+        for (String archivePath : archivePaths) {
+            File archiveFile = new File(archivePath.trim());
+            ImageArchive archive;
+            List<ImageArchive.ImageManifest> manifests;
+            try {
+                archive = new ImageArchive(archiveFile);
+                manifests = archive.getManifests();
+            } catch (IOException e) {
+                logger.error("Error reading image archive {}: {}", archiveFile.getPath(), e.getMessage());
                 continue;
             }
-            containerFoundAfterStart = true;
-            logger.info("Processing Container {} {} ({})", image, containerId, containerName);
-
-            // create agent project info
-            AgentProjectInfo projectInfo = new AgentProjectInfo();
-            projectInfo.setCoordinates(new Coordinates(null, DOCKER_NAME_FORMAT.format(DOCKER_NAME_FORMAT_STRING, image, containerId, containerName), null));
-            projects.add(projectInfo);
-
-            // get debian packages
-            Collection<DependencyInfo> debianPackages = ContainerPackageExtractor.extractDebianPackages(dockerClient, containerId);
-            if (!debianPackages.isEmpty()) {
-                projectInfo.getDependencies().addAll(debianPackages);
-                logger.info("Found {} Debian Packages", debianPackages.size());
+            if (manifests.isEmpty()) {
+                logger.error("No image manifest found in {}", archiveFile.getPath());
+                continue;
             }
 
-            // get RPM packages (just in case)
-            Collection<DependencyInfo> rpmPackages = ContainerPackageExtractor.extractRpmPackages(dockerClient, containerId);
-            if (!rpmPackages.isEmpty()) {
-                projectInfo.getDependencies().addAll(rpmPackages);
-                logger.info("Found {} RPM Packages", rpmPackages.size());
+            for (ImageArchive.ImageManifest manifest : manifests) {
+                String imageName = manifest.getRepoTags().isEmpty() ? archiveFile.getName() : manifest.getRepoTags().get(0);
+                String imageId = manifest.getConfig() == null ? imageName : getShortImageId(getFileName(manifest.getConfig()).replace(JSON_SUFFIX, EMPTY_STRING));
+                logger.info("Processing Image {} {} from {}", imageName, imageId, archiveFile.getName());
+                projectSink.accept(createArchiveProject(imageName, imageId, scanImageArchive(archive, manifest, imageId)));
             }
+        }
+    }
 
-            // get Alpine packages
-            Collection<DependencyInfo> alpinePackages = ContainerPackageExtractor.extractAlpinePackages(dockerClient, containerId);
-            if (!alpinePackages.isEmpty()) {
-                projectInfo.getDependencies().addAll(alpinePackages);
-                logger.info("Found {} Alpine Packages", alpinePackages.size());
+    /**
+     * Create a {@link AgentProjectInfo} for each image in the OCI image layout folders given on the command line.
+     */
+    private void createOciProjects(List<String> layoutPaths, Consumer<AgentProjectInfo> projectSink) {
+        for (String layoutPath : layoutPaths) {
+            File layoutDir = new File(layoutPath.trim());
+            OciImageLayout layout;
+            List<ImageArchive.ImageManifest> manifests;
+            try {
+                layout = new OciImageLayout(layoutDir);
+                manifests = layout.getManifests();
+            } catch (IOException e) {
+                logger.error("Error reading OCI image layout {}: {}", layoutDir.getPath(), e.getMessage());
+                continue;
+            }
+            if (manifests.isEmpty()) {
+                logger.error("No image manifest found in {}", layoutDir.getPath());
+                continue;
             }
 
-            // get Arch Linux packages
-            Collection<DependencyInfo> archLinuxPackages = ContainerPackageExtractor.extractArchLinuxPackages(dockerClient, containerId);
-            if (!archLinuxPackages.isEmpty()) {
-                projectInfo.getDependencies().addAll(archLinuxPackages);
-                logger.info("Found {} Arch Linux Packages", archLinuxPackages.size());
+            for (ImageArchive.ImageManifest manifest : manifests) {
+                String imageName = getLayoutImageName(layoutDir, manifest);
+                String imageId = manifest.getConfig() == null ? imageName : getShortImageId(manifest.getConfig());
+                logger.info("Processing Image {} {} from {}", imageName, imageId, layoutDir.getName());
+                projectSink.accept(createArchiveProject(imageName, imageId, scanOciImage(layout, manifest, imageId)));
             }
+        }
+    }
 
-            // export container tar file
-            File containerTarFile = new File(TEMP_FOLDER, containerName + TAR_SUFFIX);
-            File containerTarExtractDir = new File(TEMP_FOLDER, containerName);
-            containerTarExtractDir.mkdir();
-            File containerTarArchiveExtractDir = new File(ARCHIVE_EXTRACTOR_TEMP_FOLDER, containerName);
-            containerTarArchiveExtractDir.mkdir();
+    private AgentProjectInfo createArchiveProject(String imageName, String imageId, ImageScanResult imageScanResult) {
+        if (imageScanResult.getPackages().isEmpty()) {
+            logger.info("No package database found in image '{}', its OS packages are not listed", imageName);
+        }
+        AgentProjectInfo projectInfo = new AgentProjectInfo();
+        projectInfo.setCoordinates(new Coordinates(null, DOCKER_IMAGE_NAME_FORMAT.format(DOCKER_IMAGE_NAME_FORMAT_STRING, imageName, imageId), null));
+        projectInfo.getDependencies().addAll(imageScanResult.getPackages());
+        projectInfo.getDependencies().addAll(imageScanResult.getDependencies());
+        return projectInfo;
+    }
 
-            logger.info("Exporting Container to {} (may take a few minutes)", containerTarFile.getPath());
-            SaveImageCmd exportContainerCmd = dockerClient.saveImageCmd(container.getImageId());
-            InputStream is = exportContainerCmd.exec();
+    /**
+     * Scan the final file system of an image in an OCI image layout. The layer blobs are decompressed and staged on
+     * the layer workers, then merged in layer order.
+     */
+    private ImageScanResult scanOciImage(OciImageLayout layout, ImageArchive.ImageManifest manifest, String imageName) {
+        long imageSize = 0;
+        for (String layer : new LinkedHashSet<>(manifest.getLayers())) {
             try {
-                // copy input stream to tar archive
-                if (containerTarFile != null || container.getSizeRootFs() > 0) {
-                    ExtractProgressIndicator progressIndicator = new ExtractProgressIndicator(containerTarFile, container.getSizeRootFs());
-                    new Thread(progressIndicator).start();
-                    FileUtils.copyInputStreamToFile(is, containerTarFile);
-                    progressIndicator.finished();
-                    logger.info("Successfully Exported Container to {}", containerTarFile.getPath());
-
-                    // extract tar archive
-                    extractTarArchive(containerTarFile, containerTarExtractDir);
-
-                    // scan files
-                    String extractPath = containerTarExtractDir.getPath();
-                    Map<String, Set<String>> appPathToDependenciesDirs = new HashMap<>();
-                    Set<String> dirs = new HashSet<>();
-                    dirs.add(extractPath);
-                    appPathToDependenciesDirs.put(FSAConfiguration.DEFAULT_KEY, dirs);
-                    List<DependencyInfo> dependencyInfos = new FileSystemScanner(fsaConfiguration.getResolver(), fsaConfiguration.getAgent(), false).createProjects(
-                            Arrays.asList(extractPath), appPathToDependenciesDirs, false, fsaConfiguration.getAgent().getIncludes(), fsaConfiguration.getAgent().getExcludes(),
-                            fsaConfiguration.getAgent().getGlobCaseSensitive(), archiveExtractionDepth, FileExtensions.ARCHIVE_INCLUDES,
-                            FileExtensions.ARCHIVE_EXCLUDES, false, fsaConfiguration.getAgent().isFollowSymlinks(),
-                            new ArrayList<>(), PARTIAL_SHA1_MATCH);
-
-                    // modify file paths relative to the container
-                    for (DependencyInfo dependencyInfo : dependencyInfos) {
-                        String systemPath = dependencyInfo.getSystemPath();
-                        if (StringUtils.isNotBlank(systemPath)) {
-                            String containerRelativePath = systemPath;
-                            containerRelativePath.replace(WINDOWS_PATH_SEPARATOR, UNIX_PATH_SEPARATOR);
-                            containerRelativePath = containerRelativePath.substring(containerRelativePath.indexOf(WHITE_SOURCE_DOCKER + WINDOWS_PATH_SEPARATOR) + WHITE_SOURCE_DOCKER.length() + 1);
-                            containerRelativePath = containerRelativePath.substring(containerRelativePath.indexOf(WINDOWS_PATH_SEPARATOR) + 1);
-                            dependencyInfo.setSystemPath(containerRelativePath);
+                imageSize += layout.getBlob(layer).length();
+            } catch (IOException e) {
+                logger.warn("Skipping layer of image {}: {}", imageName, e.getMessage());
+            }
+        }
+        try {
+            scratchSpace.reserve(imageSize);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for scratch space for image {}", imageName);
+            Thread.currentThread().interrupt();
+            return new ImageScanResult();
+        }
+        File scanDir;
+        try {
+            scanDir = scratchSpace.createScanDir(imageName);
+        } catch (IOException e) {
+            logger.error("Error creating temp folder for image {}: {}", imageName, e.getMessage());
+            scratchSpace.release(imageSize);
+            return new ImageScanResult();
+        }
+        File extractDir = new File(scanDir, EXTRACT_FOLDER);
+        extractDir.mkdirs();
+        File layersDir = new File(extractDir.getPath() + LAYERS_FOLDER_SUFFIX);
+        try {
+            ImageLayerExtractor layerExtractor = new ImageLayerExtractor(extractDir, layersDir, layerCache, pathClassifier);
+            layerExtractor.setHashInStream(hashInStream);
+            layerExtractor.setMergedScan(!isLayerScans());
+            layerExtractor.setDecompressor(decompressor);
+            layerExtractor.setLayerOrder(manifest.getLayers());
+            long extractStart = metrics.startPhase();
+            try {
+                layerExtractor.addLayers(manifest.getLayers(), layout::open, layerExecutor);
+            } catch (IOException e) {
+                logger.warn("Error extracting files from {}: {}", imageName, e.getMessage());
+            } finally {
+                addExtractMetrics(ScanMetrics.IMAGE, imageName, layerExtractor, extractStart);
+            }
+            return scanExtractedLayers(layerExtractor, extractDir, ScanMetrics.IMAGE, imageName);
+        } finally {
+            FileUtils.deleteQuietly(layersDir);
+            scratchSpace.deleteAsync(imageSize, scanDir);
+        }
+    }
+
+    /**
+     * Scan the final file system of an image in a 'docker save' archive on disk.
+     * Only its layers are read, at their offsets in the archive.
+     */
+    private ImageScanResult scanImageArchive(ImageArchive archive, ImageArchive.ImageManifest manifest, String imageName) {
+        long imageSize = 0;
+        for (String layer : manifest.getLayers()) {
+            imageSize += archive.getSize(layer);
+        }
+        try {
+            scratchSpace.reserve(imageSize);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for scratch space for image {}", imageName);
+            Thread.currentThread().interrupt();
+            return new ImageScanResult();
+        }
+        File scanDir;
+        try {
+            scanDir = scratchSpace.createScanDir(imageName);
+        } catch (IOException e) {
+            logger.error("Error creating temp folder for image {}: {}", imageName, e.getMessage());
+            scratchSpace.release(imageSize);
+            return new ImageScanResult();
+        }
+        File extractDir = new File(scanDir, EXTRACT_FOLDER);
+        extractDir.mkdirs();
+        try {
+            return scanImageArchive(archive, manifest, extractDir, imageName);
+        } finally {
+            scratchSpace.deleteAsync(imageSize, scanDir);
+        }
+    }
+
+    /**
+     * Extract and scan the layers of an image in a 'docker save' archive on disk, every layer is decompressed and
+     * staged on its own layer worker.
+     */
+    private ImageScanResult scanImageArchive(ImageArchive archive, ImageArchive.ImageManifest manifest, File extractDir, String sourceName) {
+        File layersDir = new File(extractDir.getPath() + LAYERS_FOLDER_SUFFIX);
+        try {
+            ImageLayerExtractor layerExtractor = new ImageLayerExtractor(extractDir, layersDir, layerCache, pathClassifier);
+            layerExtractor.setHashInStream(hashInStream);
+            layerExtractor.setMergedScan(!isLayerScans());
+            layerExtractor.setDecompressor(decompressor);
+            long extractStart = metrics.startPhase();
+            try {
+                layerExtractor.extract(archive, manifest, layerExecutor);
+            } catch (IOException e) {
+                logger.warn("Error extracting files from {}: {}", sourceName, e.getMessage());
+            } finally {
+                addExtractMetrics(ScanMetrics.IMAGE, sourceName, layerExtractor, extractStart);
+            }
+            return scanExtractedLayers(layerExtractor, extractDir, ScanMetrics.IMAGE, sourceName);
+        } finally {
+            FileUtils.deleteQuietly(layersDir);
+        }
+    }
+
+    /**
+     * Scan the containers on the worker pool and hand a project for each container to the sink, in container order.
+     * Images found in the image results are not scanned again, successful image scans are added to them.
+     */
+    private void scanContainers(DockerClient dockerClient, List<Container> containers, Consumer<AgentProjectInfo> projectSink,
+                                Map<String, ImageScanResult> imageResults) {
+        List<AgentProjectInfo> projects = new ArrayList<>(containers.size());
+        // the image file system is the same for all its containers, so each image is exported and scanned only once,
+        // the configured paths are exported from every container
+        boolean exportPaths = !pathResolver.isEmpty();
+        Map<String, List<AgentProjectInfo>> imageProjects = new LinkedHashMap<>();
+        Map<String, Future<ImageScanResult>> imageScans = new HashMap<>();
+        Map<AgentProjectInfo, Future<Collection<DependencyInfo>>> packageScans = new HashMap<>();
+        Map<AgentProjectInfo, Future<ContainerDiffScanner.DiffResult>> diffScans = new HashMap<>();
+        Map<AgentProjectInfo, String> projectContainerIds = new HashMap<>();
+        logger.info("Scanning with {} threads", scanThreads);
+        ExecutorService executorService = Executors.newFixedThreadPool(scanThreads);
+        try {
+            for (Container container : containers) {
+                String containerId = container.getId().substring(0, SHORT_CONTAINER_ID_LENGTH);
+                String containerName = getContainerName(container);
+                String image = container.getImage();
+                logger.info("Processing Container {} {} ({})", image, containerId, containerName);
+
+                // create agent project info
+                AgentProjectInfo projectInfo = new AgentProjectInfo();
+                projectInfo.setCoordinates(new Coordinates(null, DOCKER_NAME_FORMAT.format(DOCKER_NAME_FORMAT_STRING, image, containerId, containerName), null));
+                projects.add(projectInfo);
+                projectContainerIds.put(projectInfo, container.getId());
+
+                ContainerStateStore.ContainerState lastState = stateStore == null || exportPaths ? null : stateStore.get(container.getId());
+                if (lastState != null && container.getImageId().equals(lastState.getImageId()) && !imageResults.containsKey(container.getImageId())) {
+                    // the image layers never change, only the writable layer is scanned again
+                    ImageScanResult lastImageResult = stateStore.getImageResult(lastState.getImageId());
+                    if (lastImageResult != null) {
+                        imageResults.put(container.getImageId(), lastImageResult);
+                    }
+                }
+
+                String scanKey = exportPaths ? container.getId() : container.getImageId();
+                List<AgentProjectInfo> sameImageProjects = imageProjects.get(scanKey);
+                if (sameImageProjects == null) {
+                    sameImageProjects = new ArrayList<>();
+                    imageProjects.put(scanKey, sameImageProjects);
+                    ImageScanResult imageResult = exportPaths ? null : imageResults.get(scanKey);
+                    if (exportPaths) {
+                        imageScans.put(scanKey, executorService.submit(() -> scanContainerPaths(dockerClient, container.getId(), containerId,
+                                getSize(container.getSizeRootFs()))));
+                    } else if (imageResult != null) {
+                        imageScans.put(scanKey, CompletableFuture.completedFuture(imageResult));
+                    } else {
+                        imageScans.put(scanKey, executorService.submit(() -> scanImage(dockerClient, container.getImageId(), getImageSize(dockerClient, container.getImageId()))));
+                    }
+                }
+                sameImageProjects.add(projectInfo);
+
+                Future<ImageScanResult> imageScan = imageScans.get(scanKey);
+                // the exported paths already hold the files the container changed
+                Future<ContainerDiffScanner.DiffResult> diffScan = stateStore == null || exportPaths ? null :
+                        executorService.submit(() -> scanContainerDiff(dockerClient, container.getId(), containerId, lastState,
+                                getSize(container.getSizeRw())));
+                if (diffScan != null) {
+                    diffScans.put(projectInfo, diffScan);
+                }
+                packageScans.put(projectInfo, CompletableFuture.supplyAsync(() -> {
+                    // the image and diff scans were queued first, so waiting for them never starves the pool
+                    ContainerDiffScanner.DiffResult failedDiff = new ContainerDiffScanner.DiffResult();
+                    ContainerDiffScanner.DiffResult diffResult = diffScan == null ? null : getScanResult(diffScan, failedDiff);
+                    boolean packagesChanged = diffResult != null && diffResult.isPackagesChanged();
+                    // packages installed after the container started are only listed by the exec, the image database
+                    // is enough if the diff of the writable layer shows that the container left it untouched
+                    if (imagePackages && diffResult != null && diffResult != failedDiff && !packagesChanged) {
+                        Collection<DependencyInfo> packages = getScanResult(imageScan, new ImageScanResult()).getPackages();
+                        if (!packages.isEmpty()) {
+                            return packages;
                         }
+                    } else if (packagesChanged) {
+                        logger.info("Container {} changed its package database, listing its packages", containerId);
                     }
-                    projectInfo.getDependencies().addAll(dependencyInfos);
-                } else {
-                    logger.warn("Didn't succeed to create tar file {} with size {}", containerTarFile.getName(), container.getSizeRootFs());
+                    return null;
+                }, executorService).thenCompose(packages -> packages != null ? CompletableFuture.completedFuture(packages) :
+                        extractContainerPackages(dockerClient, containerId, executorService)));
+            }
+
+            // collect the results in the order of the containers, regardless of which scan finished first
+            for (AgentProjectInfo projectInfo : projects) {
+                Future<Collection<DependencyInfo>> packageScan = packageScans.get(projectInfo);
+                if (packageScan != null) {
+                    projectInfo.getDependencies().addAll(getScanResult(packageScan, Collections.emptyList()));
                 }
-            } catch (IOException e) {
-                logger.error("Error exporting container {}: {}", containerId, e.getMessage());
-                logger.debug("Error exporting container {}", containerId, e);
-            } catch (ArchiverException e) {
-                logger.error("Error extracting {}: {}", containerTarFile, e.getMessage());
-                logger.debug("Error extracting tar archive", e);
-            } finally {
-                IOUtils.closeQuietly(is);
-                FileUtils.deleteQuietly(containerTarFile);
-                FileUtils.deleteQuietly(containerTarExtractDir);
-                FileUtils.deleteQuietly(containerTarArchiveExtractDir);
             }
+            for (Map.Entry<String, List<AgentProjectInfo>> entry : imageProjects.entrySet()) {
+                ImageScanResult failedResult = new ImageScanResult();
+                ImageScanResult imageResult = getScanResult(imageScans.get(entry.getKey()), failedResult);
+                if (imageResult != failedResult && !exportPaths) {
+                    imageResults.put(entry.getKey(), imageResult);
+                }
+                Collection<DependencyInfo> imageDependencies = imageResult.getDependencies();
+                if (entry.getValue().size() > 1) {
+                    logger.info("Image {} scanned once for {} containers", getShortImageId(entry.getKey()), entry.getValue().size());
+                }
+                for (AgentProjectInfo projectInfo : entry.getValue()) {
+                    Future<ContainerDiffScanner.DiffResult> diffScan = diffScans.get(projectInfo);
+                    ContainerDiffScanner.DiffResult diffResult = diffScan == null ? null : getScanResult(diffScan, null);
+                    if (diffResult == null) {
+                        projectInfo.getDependencies().addAll(imageDependencies);
+                        continue;
+                    }
+                    // files replaced or deleted by the container are no longer part of it
+                    for (DependencyInfo dependencyInfo : imageDependencies) {
+                        if (!diffResult.hides(dependencyInfo)) {
+                            projectInfo.getDependencies().add(dependencyInfo);
+                        }
+                    }
+                    projectInfo.getDependencies().addAll(diffResult.getDependencies());
+                    if (imageResult != failedResult) {
+                        stateStore.put(projectContainerIds.get(projectInfo), new ContainerStateStore.ContainerState(entry.getKey(),
+                                diffResult.getDependencies(), diffResult.getFingerprint()), imageResult);
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        projects.forEach(projectSink);
+    }
+
+    /**
+     * Run the package managers of the container and collect the installed packages.
+     * By default all package managers run in a single exec that no worker waits for, the separate commands are used
+     * on a worker if the container has no shell.
+     */
+    private CompletableFuture<Collection<DependencyInfo>> extractContainerPackages(DockerClient dockerClient, String containerId,
+                                                                                   ExecutorService executorService) {
+        long packagesStart = metrics.startPhase();
+        CompletableFuture<Collection<DependencyInfo>> listedPackages = singleExecPackages ?
+                ContainerPackageExtractor.extractPackagesAsync(dockerClient, containerId) : CompletableFuture.completedFuture(null);
+        return listedPackages.thenCompose(packages -> {
+            if (packages != null) {
+                return CompletableFuture.completedFuture(packages);
+            }
+            if (singleExecPackages) {
+                logger.debug("Falling back to separate package manager commands in {}", containerId);
+            }
+            // the transport thread that completed the exec must not run the blocking commands
+            return CompletableFuture.supplyAsync(() -> extractSeparatePackages(dockerClient, containerId), executorService);
+        }).whenComplete((packages, error) -> metrics.addPhase(ScanMetrics.CONTAINER, containerId, ScanMetrics.PACKAGES, packagesStart));
+    }
+
+    private Collection<DependencyInfo> extractSeparatePackages(DockerClient dockerClient, String containerId) {
+        Collection<DependencyInfo> packages = new ArrayList<>();
+
+        // get debian packages
+        Collection<DependencyInfo> debianPackages = ContainerPackageExtractor.extractDebianPackages(dockerClient, containerId);
+        if (!debianPackages.isEmpty()) {
+            packages.addAll(debianPackages);
+            logger.info("Found {} Debian Packages in {}", debianPackages.size(), containerId);
         }
 
-        if (forcedContainer != null && containerFoundAfterStart) {
-            logger.info("Cleaning created container");
-            dockerClient.stopContainerCmd(forcedContainer.getId()).exec();
-            dockerClient.removeContainerCmd(forcedContainer.getId()).exec();
+        // get RPM packages (just in case)
+        Collection<DependencyInfo> rpmPackages = ContainerPackageExtractor.extractRpmPackages(dockerClient, containerId);
+        if (!rpmPackages.isEmpty()) {
+            packages.addAll(rpmPackages);
+            logger.info("Found {} RPM Packages in {}", rpmPackages.size(), containerId);
         }
-        return projects;
+
+        // get Alpine packages
+        Collection<DependencyInfo> alpinePackages = ContainerPackageExtractor.extractAlpinePackages(dockerClient, containerId);
+        if (!alpinePackages.isEmpty()) {
+            packages.addAll(alpinePackages);
+            logger.info("Found {} Alpine Packages in {}", alpinePackages.size(), containerId);
+        }
+
+        // get Arch Linux packages
+        Collection<DependencyInfo> archLinuxPackages = ContainerPackageExtractor.extractArchLinuxPackages(dockerClient, containerId);
+        if (!archLinuxPackages.isEmpty()) {
+            packages.addAll(archLinuxPackages);
+            logger.info("Found {} Arch Linux Packages in {}", archLinuxPackages.size(), containerId);
+        }
+        return packages;
+    }
+
+    /**
+     * Wait for a scan submitted to the worker pool, a failed scan doesn't fail the other containers.
+     */
+    private <T> T getScanResult(Future<T> scan, T failedResult) {
+        try {
+            return scan.get();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for scan results");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Error scanning: {}", e.getCause().getMessage());
+            logger.debug("Error scanning", e.getCause());
+        }
+        return failedResult;
+    }
+
+    /**
+     * Copy the files the container changed on top of its image and scan them.
+     *
+     * @param diffSize size of the writable layer of the container, the copied files are at most as big
+     */
+    private ContainerDiffScanner.DiffResult scanContainerDiff(DockerClient dockerClient, String containerId, String shortContainerId,
+                                                              ContainerStateStore.ContainerState lastState, long diffSize) throws IOException {
+        long diffStart = metrics.startPhase();
+        try {
+            scratchSpace.reserve(diffSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for scratch space for container " + shortContainerId);
+        }
+        File copyDir;
+        try {
+            copyDir = scratchSpace.createScanDir(shortContainerId);
+        } catch (IOException e) {
+            scratchSpace.release(diffSize);
+            throw e;
+        }
+        try {
+            return diffScanner.scan(dockerClient, containerId, copyDir, lastState, dir -> scanFiles(dir, Math.max(0, archiveExtractionDepth - 1)));
+        } finally {
+            scratchSpace.deleteAsync(diffSize, copyDir);
+            metrics.addPhase(ScanMetrics.CONTAINER, shortContainerId, ScanMetrics.DIFF, diffStart);
+        }
+    }
+
+    /**
+     * Export the image and scan its file system.
+     */
+    private ImageScanResult scanImage(DockerClient dockerClient, String imageId, long imageSize) {
+        ImageScanResult imageScanResult = new ImageScanResult();
+        String imageName = getShortImageId(imageId);
+
+        // the exported tar file and the extracted files take at most twice the image size
+        long reservedBytes = streamExport ? imageSize : 2 * imageSize;
+        try {
+            scratchSpace.reserve(reservedBytes);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for scratch space for image {}", imageName);
+            Thread.currentThread().interrupt();
+            return imageScanResult;
+        }
+
+        // export image tar file, each scan gets its own folder so concurrent scans never share files
+        File scanDir;
+        try {
+            scanDir = scratchSpace.createScanDir(imageName);
+        } catch (IOException e) {
+            logger.error("Error creating temp folder for image {}: {}", imageName, e.getMessage());
+            scratchSpace.release(reservedBytes);
+            return imageScanResult;
+        }
+        File containerTarExtractDir = new File(scanDir, EXTRACT_FOLDER);
+        containerTarExtractDir.mkdirs();
+        File containerTarFile = new File(scanDir, imageName + TAR_SUFFIX);
+
+        ExtractProgressIndicator progressIndicator = null;
+        InputStream is = null;
+        InputStream tarStream = null;
+        try {
+            SaveImageCmd exportContainerCmd = dockerClient.saveImageCmd(imageId);
+            // the 'docker save' stream is about the size of the image, progress bars of concurrent exports would overwrite each other
+            progressIndicator = new ExtractProgressIndicator(exportContainerCmd.exec(), imageSize, showProgress && scanThreads == 1);
+            is = progressIndicator;
+            if (streamExport) {
+                // extract matching files while the export is still downloading, no tar file is written
+                logger.info("Streaming Image export into {} (may take a few minutes)", containerTarExtractDir.getPath());
+                tarStream = is;
+            } else {
+                // copy input stream to tar archive
+                logger.info("Exporting Image to {} (may take a few minutes)", containerTarFile.getPath());
+                FileUtils.copyInputStreamToFile(is, containerTarFile);
+                logger.info("Successfully Exported Image to {}", containerTarFile.getPath());
+                // the layers of the file are read at their offsets, each on its own layer worker
+                ImageArchive archive = new ImageArchive(containerTarFile);
+                List<ImageArchive.ImageManifest> manifests = archive.getManifests();
+                if (manifests.isEmpty()) {
+                    tarStream = new FileInputStream(containerTarFile);
+                } else {
+                    imageScanResult = scanImageArchive(archive, manifests.get(0), containerTarExtractDir, imageName);
+                }
+            }
+
+            if (tarStream != null) {
+                // extract and scan the image layers
+                imageScanResult = scanImageArchive(tarStream, containerTarExtractDir, imageName);
+            }
+            progressIndicator.finished();
+            logger.info("Exported {} of image {} in {} ms ({} MB/s)", FileUtils.byteCountToDisplaySize(progressIndicator.getBytesRead()),
+                    imageName, progressIndicator.getElapsedMillis(), String.format(Locale.ENGLISH, "%.1f", progressIndicator.getBytesPerSecond() / FileUtils.ONE_MB));
+            // a streamed export overlaps with the extraction
+            metrics.addPhaseMillis(ScanMetrics.IMAGE, imageName, ScanMetrics.EXPORT, progressIndicator.getElapsedMillis());
+            metrics.addCounter(ScanMetrics.IMAGE, imageName, ScanMetrics.EXPORTED_BYTES, progressIndicator.getBytesRead());
+        } catch (IOException e) {
+            logger.error("Error exporting image {}: {}", imageName, e.getMessage());
+            logger.debug("Error exporting image {}", imageName, e);
+        } catch (ArchiverException e) {
+            logger.error("Error extracting {}: {}", containerTarFile, e.getMessage());
+            logger.debug("Error extracting tar archive", e);
+        } finally {
+            IOUtils.closeQuietly(tarStream);
+            IOUtils.closeQuietly(is);
+            // the next scan doesn't wait for the deletion of this one
+            scratchSpace.deleteAsync(reservedBytes, scanDir);
+        }
+        return imageScanResult;
     }
 
     private void initializeDockerResolvers(ResolverConfiguration resolverConfiguration) {
@@ -404,64 +1213,315 @@ public class DockerAgent {
         }
     }
 
-    private boolean imageExists(DockerClient dockerClient, String dockerImage) {
-        List<Image> images = dockerClient.listImagesCmd().exec();
-        if (!images.isEmpty() && StringUtils.isNotEmpty(dockerImage)) {
-            for (Image image : images) {
-                if (image.getRepoTags() != null && image.getRepoTags().length > 0) {
-                    if (image.getRepoTags()[0].startsWith(dockerImage)) {
-                        return true;
+    /**
+     * Get the images given on the command line and in the image file, in their order and without duplicates.
+     */
+    private List<String> getImageNames() {
+        Set<String> images = new LinkedHashSet<>();
+        for (String image : commandLineArgs.dockerImages) {
+            if (StringUtils.isNotBlank(image)) {
+                images.add(image.trim());
+            }
+        }
+        if (StringUtils.isNotBlank(commandLineArgs.dockerImagesFile)) {
+            try {
+                for (String line : FileUtils.readLines(new File(commandLineArgs.dockerImagesFile), StandardCharsets.UTF_8)) {
+                    String image = line.trim();
+                    if (!image.isEmpty() && !image.startsWith(COMMENT_PREFIX)) {
+                        images.add(image);
                     }
                 }
+            } catch (IOException e) {
+                logger.error("Error reading images from {}: {}", commandLineArgs.dockerImagesFile, e.getMessage());
             }
-        } else {
-            logger.info("You don't have any installed images");
         }
-        return false;
+        if (images.size() > 1) {
+            logger.info("Scanning {} images", images.size());
+        }
+        return new ArrayList<>(images);
+    }
+
+    /**
+     * Extract the final file system of the image from a 'docker save' stream, reading it only once, and scan it.
+     * Files deleted or replaced by upper layers are not scanned.
+     * The OS packages are read from the package databases on the way, no container is needed to list them.
+     */
+    private ImageScanResult scanImageArchive(InputStream tarStream, File containerTarExtractDir, String sourceName) {
+        File layersDir = new File(containerTarExtractDir.getPath() + LAYERS_FOLDER_SUFFIX);
+        try {
+            ImageLayerExtractor layerExtractor = new ImageLayerExtractor(containerTarExtractDir, layersDir, layerCache, pathClassifier);
+            layerExtractor.setHashInStream(hashInStream);
+            layerExtractor.setMergedScan(!isLayerScans());
+            layerExtractor.setDecompressor(decompressor);
+            long extractStart = metrics.startPhase();
+            try {
+                layerExtractor.extract(tarStream);
+            } catch (IOException e) {
+                logger.warn("Error extracting files from {}: {}", sourceName, e.getMessage());
+            } finally {
+                // the rest of the stream is padding, closing it also stops the export clock
+                IOUtils.closeQuietly(tarStream);
+                addExtractMetrics(ScanMetrics.IMAGE, sourceName, layerExtractor, extractStart);
+            }
+            return scanExtractedLayers(layerExtractor, containerTarExtractDir, ScanMetrics.IMAGE, sourceName);
+        } finally {
+            FileUtils.deleteQuietly(layersDir);
+        }
     }
 
     /**
-     * Extract matching files from the tar archive.
+     * Copy the configured paths out of a running container and scan them, instead of exporting its whole image.
+     * Every path is staged like an image layer.
+     *
+     * @param containerSize size of the file system of the container, the copied paths are at most as big
      */
-    private void extractTarArchive(File containerTarFile, File containerTarExtractDir) {
-        TarArchiveInputStream tais = null;
-        FileInputStream fis = null;
+    private ImageScanResult scanContainerPaths(DockerClient dockerClient, String containerId, String shortContainerId, long containerSize) {
         try {
-            fis = new FileInputStream(containerTarFile);
-            tais = new TarArchiveInputStream(fis);
-            ArchiveEntry entry = tais.getNextEntry();
-            while (entry != null) {
-                if (!entry.isDirectory()) {
-                    String entryName = entry.getName();
-                    String lowerCaseName = entryName.toLowerCase();
-                    if (lowerCaseName.matches(FileExtensions.SOURCE_FILE_PATTERN) || lowerCaseName.matches(FileExtensions.BINARY_FILE_PATTERN) ||
-                            lowerCaseName.matches(FileExtensions.ARCHIVE_FILE_PATTERN)) {
-                        File file = new File(containerTarExtractDir, entryName);
-                        File parent = file.getParentFile();
-                        if (!parent.exists()) {
-                            parent.mkdirs();
+            scratchSpace.reserve(containerSize);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for scratch space for container {}", shortContainerId);
+            Thread.currentThread().interrupt();
+            return new ImageScanResult();
+        }
+        File scanDir;
+        try {
+            scanDir = scratchSpace.createScanDir(shortContainerId);
+        } catch (IOException e) {
+            logger.error("Error creating temp folder for container {}: {}", shortContainerId, e.getMessage());
+            scratchSpace.release(containerSize);
+            return new ImageScanResult();
+        }
+        File extractDir = new File(scanDir, EXTRACT_FOLDER);
+        extractDir.mkdirs();
+        File layersDir = new File(extractDir.getPath() + LAYERS_FOLDER_SUFFIX);
+        try {
+            // container paths are not content addressed, their results can't go to the layer cache
+            ImageLayerExtractor layerExtractor = new ImageLayerExtractor(extractDir, layersDir, null, pathClassifier);
+            layerExtractor.setHashInStream(hashInStream);
+            List<String> layerOrder = new ArrayList<>();
+            long exportedBytes = 0;
+            long extractStart = metrics.startPhase();
+            try {
+                for (ContainerPathResolver.ExportPath exportPath : pathResolver.resolve(dockerClient, containerId)) {
+                    CountingInputStream tarStream = null;
+                    try {
+                        tarStream = new CountingInputStream(dockerClient.copyArchiveFromContainerCmd(containerId, exportPath.getPath()).exec());
+                        layerExtractor.addLayer(exportPath.getPath(), tarStream, exportPath.getEntryPrefix(), exportPath.getFilter());
+                        layerOrder.add(exportPath.getPath());
+                    } catch (IOException | RuntimeException e) {
+                        // e.g. the path doesn't exist in this container
+                        logger.debug("Error copying {} from container {}: {}", exportPath.getPath(), shortContainerId, e.getMessage());
+                    } finally {
+                        if (tarStream != null) {
+                            exportedBytes += tarStream.getByteCount();
                         }
-                        OutputStream out = new FileOutputStream(file);
-                        IOUtils.copy(tais, out);
-                        out.close();
+                        IOUtils.closeQuietly(tarStream);
                     }
                 }
-                entry = tais.getNextTarEntry();
+            } finally {
+                addExtractMetrics(ScanMetrics.CONTAINER, shortContainerId, layerExtractor, extractStart);
+                metrics.addCounter(ScanMetrics.CONTAINER, shortContainerId, ScanMetrics.EXPORTED_BYTES, exportedBytes);
             }
-        } catch (FileNotFoundException e) {
-            logger.warn("Error extracting files from {}: {}", containerTarFile.getPath(), e.getMessage());
-        } catch (IOException e) {
-            logger.warn("Error extracting files from {}: {}", containerTarFile.getPath(), e.getMessage());
+            logger.info("Copied {} paths ({}) from container {}", layerOrder.size(), FileUtils.byteCountToDisplaySize(exportedBytes), shortContainerId);
+            layerExtractor.setLayerOrder(layerOrder);
+            return scanExtractedLayers(layerExtractor, extractDir, ScanMetrics.CONTAINER, shortContainerId);
         } finally {
-            IOUtils.closeQuietly(tais);
-            IOUtils.closeQuietly(fis);
+            FileUtils.deleteQuietly(layersDir);
+            scratchSpace.deleteAsync(containerSize, scanDir);
         }
     }
 
+    private void addExtractMetrics(String scope, String sourceName, ImageLayerExtractor layerExtractor, long extractStart) {
+        metrics.addPhase(scope, sourceName, ScanMetrics.EXTRACT, extractStart);
+        metrics.addCounter(scope, sourceName, ScanMetrics.ENTRIES_SEEN, layerExtractor.getEntriesSeen());
+        metrics.addCounter(scope, sourceName, ScanMetrics.ENTRIES_EXTRACTED, layerExtractor.getEntriesExtracted());
+        metrics.addCounter(scope, sourceName, ScanMetrics.ENTRIES_HASHED, layerExtractor.getEntriesHashed());
+        metrics.addCounter(scope, sourceName, ScanMetrics.EXTRACTED_BYTES, layerExtractor.getBytesExtracted());
+    }
+
+    /**
+     * Scan the staged layers, either one by one (with docker.parallelLayerScans on the layer workers) or merged into
+     * the extract folder. The layer workers only decompress and stage the layers by default, the merged scan lets the
+     * resolvers see the final file system of the image. The layer cache never changes how an image is scanned, it
+     * holds the result of each layer or of the merged file system respectively.
+     */
+    private ImageScanResult scanExtractedLayers(ImageLayerExtractor layerExtractor, File extractDir, String scope, String sourceName) {
+        // the layer tars are unpacked here, they no longer take a level of the archive extraction depth
+        int layerArchiveExtractionDepth = Math.max(0, archiveExtractionDepth - 1);
+        Collection<DependencyInfo> packages = layerExtractor.getPackages();
+        if (!packages.isEmpty()) {
+            logger.info("Found {} OS Packages in the package databases of {}", packages.size(), sourceName);
+        }
+        metrics.addCounter(scope, sourceName, ScanMetrics.PACKAGES_FOUND, packages.size());
+
+        long scanStart = metrics.startPhase();
+        // with parallel layer scans every layer is scanned on its own core, the merge then drops what upper layers hide
+        if (isLayerScans()) {
+            List<DependencyInfo> dependencyInfos = layerExtractor.scanLayers(layerDir -> scanFiles(layerDir, layerArchiveExtractionDepth),
+                    parallelLayerScans ? layerExecutor : null);
+            metrics.addPhase(scope, sourceName, ScanMetrics.SCAN, scanStart);
+            metrics.addCounter(scope, sourceName, ScanMetrics.DEPENDENCIES, dependencyInfos.size());
+            return new ImageScanResult(dependencyInfos, packages);
+        }
+
+        String imageCacheKey = layerCache == null ? null : layerExtractor.getImageCacheKey();
+        LayerCache.LayerResult cachedResult = imageCacheKey == null ? null : layerCache.get(imageCacheKey);
+        if (cachedResult != null) {
+            logger.info("Took the result of {} from the layer cache", sourceName);
+            metrics.addPhase(scope, sourceName, ScanMetrics.SCAN, scanStart);
+            metrics.addCounter(scope, sourceName, ScanMetrics.DEPENDENCIES, cachedResult.getDependencies().size());
+            return new ImageScanResult(cachedResult.getDependencies(), packages);
+        }
+        try {
+            int mergedFiles = layerExtractor.merge();
+            logger.info("Extracted {} files from the image layers of {}", mergedFiles, sourceName);
+        } catch (IOException e) {
+            logger.warn("Error merging the image layers of {}: {}", sourceName, e.getMessage());
+        }
+        List<DependencyInfo> scannedDependencies = scanFiles(extractDir, layerArchiveExtractionDepth);
+        Collection<DependencyInfo> hashedDependencies = layerExtractor.getHashedDependencies();
+        List<DependencyInfo> dependencyInfos = new ArrayList<>(scannedDependencies.size() + hashedDependencies.size());
+        dependencyInfos.addAll(scannedDependencies);
+        relativizeSystemPaths(dependencyInfos, extractDir);
+        // plain binaries hashed in stream already have container paths
+        dependencyInfos.addAll(hashedDependencies);
+        if (imageCacheKey != null) {
+            layerCache.put(imageCacheKey, new LayerCache.LayerResult(dependencyInfos, Collections.emptyMap(), Collections.emptyMap(),
+                    Collections.emptySet(), Collections.emptySet()));
+        }
+        metrics.addPhase(scope, sourceName, ScanMetrics.SCAN, scanStart);
+        metrics.addCounter(scope, sourceName, ScanMetrics.DEPENDENCIES, dependencyInfos.size());
+        return new ImageScanResult(dependencyInfos, packages);
+    }
+
+    /**
+     * @return true if the layers of an image are scanned one by one on the layer workers
+     */
+    private boolean isLayerScans() {
+        return parallelLayerScans && layerExecutor != null;
+    }
+
+    /**
+     * Modify file paths relative to the container.
+     */
+    static void relativizeSystemPaths(List<DependencyInfo> dependencyInfos, File extractDir) {
+        String extractRoot = extractDir.getPath().replace(WINDOWS_PATH_SEPARATOR, UNIX_PATH_SEPARATOR);
+        for (DependencyInfo dependencyInfo : dependencyInfos) {
+            String systemPath = dependencyInfo.getSystemPath();
+            if (StringUtils.isNotBlank(systemPath)) {
+                String containerRelativePath = systemPath.replace(WINDOWS_PATH_SEPARATOR, UNIX_PATH_SEPARATOR);
+                if (containerRelativePath.startsWith(extractRoot)) {
+                    // the extract folder holds the merged image file system, so the rest is the container path
+                    containerRelativePath = containerRelativePath.substring(extractRoot.length());
+                }
+                dependencyInfo.setSystemPath(containerRelativePath);
+            }
+        }
+    }
+
+    /**
+     * Scan a folder with the File System Agent.
+     */
+    private List<DependencyInfo> scanFiles(File dir, int archiveExtractionDepth) {
+        String extractPath = dir.getPath();
+        Map<String, Set<String>> appPathToDependenciesDirs = new HashMap<>();
+        Set<String> dirs = new HashSet<>();
+        dirs.add(extractPath);
+        appPathToDependenciesDirs.put(FSAConfiguration.DEFAULT_KEY, dirs);
+        return new FileSystemScanner(fsaConfiguration.getResolver(), fsaConfiguration.getAgent(), false).createProjects(
+                Arrays.asList(extractPath), appPathToDependenciesDirs, false, pathClassifier.getIncludes(), pathClassifier.getExcludes(),
+                pathClassifier.isGlobCaseSensitive(), archiveExtractionDepth, FileExtensions.ARCHIVE_INCLUDES,
+                FileExtensions.ARCHIVE_EXCLUDES, false, fsaConfiguration.getAgent().isFollowSymlinks(),
+                new ArrayList<>(), PARTIAL_SHA1_MATCH);
+    }
+
+    /**
+     * Create the layer cache if it is enabled in the configuration.
+     * Results are only reused with the same scan configuration.
+     */
+    private LayerCache createLayerCache() {
+        String layerCacheDir = config.getProperty(DOCKER_LAYER_CACHE_DIR);
+        if (StringUtils.isBlank(layerCacheDir)) {
+            return null;
+        }
+        long maxSizeMb = Long.parseLong(config.getProperty(DOCKER_LAYER_CACHE_MAX_SIZE_MB, String.valueOf(LAYER_CACHE_MAX_SIZE_MB)));
+        logger.info("Layer cache: {} (max {} MB)", layerCacheDir, maxSizeMb);
+        return new LayerCache(new File(layerCacheDir), maxSizeMb * FileUtils.ONE_MB, getScanFingerprint());
+    }
+
+    /**
+     * Create the container state store if incremental scans are enabled in the configuration.
+     */
+    private ContainerStateStore createStateStore() {
+        String stateDir = config.getProperty(DOCKER_INCREMENTAL_STATE_DIR);
+        if (StringUtils.isBlank(stateDir)) {
+            return null;
+        }
+        logger.info("Incremental container scans, state in {}", stateDir);
+        return new ContainerStateStore(new File(stateDir), getScanFingerprint() + imagePackages);
+    }
+
+    /**
+     * Stored scan results are only reused with the same scan configuration.
+     */
+    private String getScanFingerprint() {
+        return new DockerAgentInfo().getPluginVersion()
+                + Arrays.toString(fsaConfiguration.getAgent().getIncludes())
+                + Arrays.toString(fsaConfiguration.getAgent().getExcludes())
+                + fsaConfiguration.getAgent().getGlobCaseSensitive()
+                + fsaConfiguration.getAgent().isFollowSymlinks()
+                + archiveExtractionDepth
+                + hashInStream;
+    }
+
+    /**
+     * Get the size of the image, which is about the size of its 'docker save' stream.
+     * The root file system size of a container is not, it also counts the files written by the container.
+     */
+    private long getImageSize(DockerClient dockerClient, String imageId) {
+        try {
+            Long size = dockerClient.inspectImageCmd(imageId).exec().getSize();
+            return size == null ? 0 : size;
+        } catch (RuntimeException e) {
+            logger.debug("Error inspecting image {}: {}", imageId, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return the size listed for a container, 0 if the containers were listed without their sizes
+     */
+    private static long getSize(Long size) {
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Get the short image id (i.e. "sha256:0123456789ab..." is "0123456789ab").
+     */
+    private String getShortImageId(String imageId) {
+        String shortImageId = imageId.substring(imageId.indexOf(COLON) + 1);
+        return shortImageId.length() > SHORT_CONTAINER_ID_LENGTH ? shortImageId.substring(0, SHORT_CONTAINER_ID_LENGTH) : shortImageId;
+    }
+
+    /**
+     * @return the image name of the annotations, a bare tag is prefixed with the layout folder name
+     */
+    private String getLayoutImageName(File layoutDir, ImageArchive.ImageManifest manifest) {
+        if (manifest.getRepoTags().isEmpty()) {
+            return layoutDir.getName();
+        }
+        String refName = manifest.getRepoTags().get(0);
+        return refName.contains(COLON) || refName.contains(UNIX_PATH_SEPARATOR) ? refName : layoutDir.getName() + COLON + refName;
+    }
+
+    private static String getFileName(String path) {
+        return path.substring(path.lastIndexOf(UNIX_PATH_SEPARATOR) + 1);
+    }
+
     /**
      * Get the container's name.
      */
-    private String getContainerName(Container container) {
+    static String getContainerName(Container container) {
         StringBuilder sb = new StringBuilder();
         for (String name : container.getNames()) {
             sb.append(name);
@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.EventsCmd;
+import com.github.dockerjava.api.command.InspectImageResponse;
+import com.github.dockerjava.api.model.Container;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventType;
+import com.github.dockerjava.api.model.Image;
+import com.github.dockerjava.core.command.EventsResultCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.fs.StatusCode;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a single docker client and scans containers as they are created and started.
+ * <p>
+ * The containers that run when the daemon starts are scanned first. After that, the Docker events stream tells which
+ * containers are new. A container is scanned once no event arrived for it during the debounce period, so a create
+ * followed by a start is a single scan. Pulled images are scanned ahead of their containers. Image results are kept
+ * for the lifetime of the daemon, containers of an image that was scanned before only run the package scan.
+ * <p>
+ * The projects of the scanned containers are sent in batches on a schedule. A batch that fails to send is kept for
+ * the next one, up to docker.daemonMaxUnsentProjects projects. On shutdown the daemon stops listening and sends what
+ * it has scanned so far.
+ */
+public class DockerEventsDaemon {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(DockerEventsDaemon.class);
+
+    // property keys for the configuration file
+    private static final String DOCKER_DAEMON_DEBOUNCE_SECONDS = "docker.daemonDebounceSeconds";
+    private static final String DOCKER_DAEMON_SEND_INTERVAL_SECONDS = "docker.daemonSendIntervalSeconds";
+    private static final String DOCKER_DAEMON_MAX_UNSENT_PROJECTS = "docker.daemonMaxUnsentProjects";
+
+    private static final long DEBOUNCE_SECONDS = 10;
+    private static final long SEND_INTERVAL_SECONDS = 300;
+    private static final int MAX_UNSENT_PROJECTS = 1000;
+    private static final long RECONNECT_SECONDS = 10;
+    private static final long SHUTDOWN_TIMEOUT_MINUTES = 10;
+    private static final String CREATE_EVENT = "create";
+    private static final String START_EVENT = "start";
+    private static final String PULL_EVENT = "pull";
+    private static final String SCHEDULER_THREAD_NAME = "docker-events-daemon";
+    private static final String SHUTDOWN_THREAD_NAME = "docker-events-daemon-shutdown";
+
+    /* --- Members --- */
+
+    private final DockerAgent dockerAgent;
+    private final long debounceMillis;
+    private final long sendIntervalSeconds;
+    private final int maxUnsentProjects;
+    private final ScheduledExecutorService scheduler;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // written by the events thread, read by the scheduler thread
+    private final Map<String, Long> pendingContainers = new HashMap<>();
+    private final Map<String, Long> pendingImages = new HashMap<>();
+    // only used on the scheduler thread
+    private final Set<String> scannedContainers = new HashSet<>();
+    private final Map<String, ImageScanResult> imageResults = new HashMap<>();
+    private final List<AgentProjectInfo> unsentProjects = new ArrayList<>();
+    private DockerClient dockerClient;
+    private volatile EventsResultCallback eventsCallback;
+    private volatile boolean stopping;
+    private volatile long lastEventSeconds;
+    private volatile StatusCode statusCode = StatusCode.SUCCESS;
+
+    /* --- Constructors --- */
+
+    public DockerEventsDaemon(DockerAgent dockerAgent, Properties config) {
+        this.dockerAgent = dockerAgent;
+        this.debounceMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty(DOCKER_DAEMON_DEBOUNCE_SECONDS, String.valueOf(DEBOUNCE_SECONDS))));
+        this.sendIntervalSeconds = Math.max(1, Long.parseLong(config.getProperty(DOCKER_DAEMON_SEND_INTERVAL_SECONDS, String.valueOf(SEND_INTERVAL_SECONDS))));
+        this.maxUnsentProjects = Math.max(1, Integer.parseInt(config.getProperty(DOCKER_DAEMON_MAX_UNSENT_PROJECTS, String.valueOf(MAX_UNSENT_PROJECTS))));
+        // scans and sends take turns on a single thread, so the scan state needs no locking
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, SCHEDULER_THREAD_NAME));
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Scan and send until the JVM shuts down.
+     *
+     * @return the status of the last batch that was sent
+     */
+    public StatusCode run() {
+        dockerClient = dockerAgent.buildDockerClient();
+        if (dockerClient == null) {
+            logger.error("Error creating docker client, exiting");
+            return StatusCode.CLIENT_FAILURE;
+        }
+        logger.info("Running as a daemon, debounce {} ms, sending every {} seconds", debounceMillis, sendIntervalSeconds);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, SHUTDOWN_THREAD_NAME));
+
+        lastEventSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        subscribe();
+        scheduler.execute(this::reconcile);
+        long checkMillis = Math.max(TimeUnit.SECONDS.toMillis(1), debounceMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::scanPending, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            sendBatch();
+            dockerAgent.rollMetrics();
+            reconcile();
+        }, sendIntervalSeconds, sendIntervalSeconds, TimeUnit.SECONDS);
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted, stopping the daemon");
+            Thread.currentThread().interrupt();
+            stop();
+        }
+        return statusCode;
+    }
+
+    /**
+     * Stop listening to events, wait for the running scan and send the scanned projects.
+     */
+    public void stop() {
+        if (stopping) {
+            return;
+        }
+        stopping = true;
+        logger.info("Stopping the daemon");
+        closeEvents();
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Running scan did not finish in {} minutes", SHUTDOWN_TIMEOUT_MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sendBatch();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /* --- Private methods --- */
+
+    private void subscribe() {
+        EventsCmd eventsCmd = dockerClient.eventsCmd()
+                .withEventFilter(CREATE_EVENT, START_EVENT, PULL_EVENT)
+                // events missed while reconnecting are replayed
+                .withSince(String.valueOf(lastEventSeconds));
+        eventsCallback = eventsCmd.exec(new EventsResultCallback() {
+            @Override
+            public void onNext(Event event) {
+                onEvent(event);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (!stopping) {
+                    logger.warn("Docker events stream failed: {}", throwable.getMessage());
+                    logger.debug("Docker events stream failed", throwable);
+                }
+                closeQuietly(this);
+                reconnect();
+            }
+
+            @Override
+            public void onComplete() {
+                super.onComplete();
+                reconnect();
+            }
+        });
+    }
+
+    private void reconnect() {
+        if (stopping) {
+            return;
+        }
+        logger.info("Reconnecting to the Docker events stream in {} seconds", RECONNECT_SECONDS);
+        try {
+            // delayed tasks still run after the scheduler is shut down, a stopped daemon must not open a new stream
+            scheduler.schedule(() -> {
+                if (stopping) {
+                    return;
+                }
+                try {
+                    subscribe();
+                } catch (RuntimeException e) {
+                    logger.warn("Error subscribing to Docker events: {}", e.getMessage());
+                    reconnect();
+                    return;
+                }
+                if (stopping) {
+                    // stop() closed the previous stream while this one was opened
+                    closeEvents();
+                    return;
+                }
+                reconcile();
+            }, RECONNECT_SECONDS, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {
+            // the scheduler is shut down
+            logger.debug("Not reconnecting: {}", e.getMessage());
+        }
+    }
+
+    private void onEvent(Event event) {
+        if (event.getTime() != null) {
+            lastEventSeconds = event.getTime();
+        }
+        String status = event.getStatus();
+        String id = event.getId();
+        if (id == null || status == null) {
+            return;
+        }
+        if (PULL_EVENT.equals(status)) {
+            logger.debug("Image {} pulled", id);
+            queue(pendingImages, id, System.currentTimeMillis());
+        } else if ((CREATE_EVENT.equals(status) || START_EVENT.equals(status))
+                && (event.getType() == null || event.getType() == EventType.CONTAINER)) {
+            logger.debug("Container {} {}", id, status);
+            queue(pendingContainers, id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Queue the running containers that were not scanned, and forget containers and images that are gone.
+     * Covers the containers that ran before the daemon started and events lost while reconnecting.
+     */
+    private void reconcile() {
+        try {
+            Set<String> existingContainers = new HashSet<>();
+            for (Container container : dockerClient.listContainersCmd().withShowAll(true).exec()) {
+                existingContainers.add(container.getId());
+            }
+            scannedContainers.retainAll(existingContainers);
+            for (Container container : dockerClient.listContainersCmd().exec()) {
+                if (!scannedContainers.contains(container.getId())) {
+                    queue(pendingContainers, container.getId(), 0);
+                }
+            }
+
+            Set<String> existingImages = new HashSet<>();
+            for (Image image : dockerClient.listImagesCmd().exec()) {
+                existingImages.add(image.getId());
+            }
+            imageResults.keySet().retainAll(existingImages);
+        } catch (RuntimeException e) {
+            logger.warn("Error listing containers: {}", e.getMessage());
+            logger.debug("Error listing containers", e);
+        }
+    }
+
+    /**
+     * Scan the images and containers that had no events during the debounce period.
+     */
+    private void scanPending() {
+        try {
+            for (String imageName : takeReady(pendingImages)) {
+                scanPulledImage(imageName);
+            }
+
+            Set<String> readyContainers = takeReady(pendingContainers);
+            readyContainers.removeAll(scannedContainers);
+            if (readyContainers.isEmpty()) {
+                return;
+            }
+            // created containers that don't run yet are queued again by their start event
+            List<Container> containers = new ArrayList<>();
+            for (Container container : dockerClient.listContainersCmd().withShowSize(true).exec()) {
+                if (readyContainers.contains(container.getId())) {
+                    containers.add(container);
+                }
+            }
+            if (containers.isEmpty()) {
+                return;
+            }
+            unsentProjects.addAll(dockerAgent.scanContainers(dockerClient, containers, imageResults));
+            dropOldestUnsent();
+            for (Container container : containers) {
+                scannedContainers.add(container.getId());
+            }
+            logger.info("Scanned {} new containers, {} projects waiting to be sent", containers.size(), unsentProjects.size());
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule
+            logger.error("Error scanning new containers: {}", e.getMessage());
+            logger.debug("Error scanning new containers", e);
+        }
+    }
+
+    private void scanPulledImage(String imageName) {
+        try {
+            InspectImageResponse image = dockerClient.inspectImageCmd(imageName).exec();
+            if (imageResults.containsKey(image.getId())) {
+                return;
+            }
+            logger.info("Scanning pulled image {}", imageName);
+            ImageScanResult imageScanResult = dockerAgent.scanImage(dockerClient, image.getId());
+            // an empty result may be a failed scan, the first container scans the image again
+            if (!imageScanResult.getDependencies().isEmpty() || !imageScanResult.getPackages().isEmpty()) {
+                imageResults.put(image.getId(), imageScanResult);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Error scanning image {}: {}", imageName, e.getMessage());
+        }
+    }
+
+    private void sendBatch() {
+        if (unsentProjects.isEmpty()) {
+            return;
+        }
+        List<AgentProjectInfo> batch = new ArrayList<>(unsentProjects);
+        unsentProjects.clear();
+        logger.info("Sending {} projects", batch.size());
+        try {
+            statusCode = dockerAgent.sendProjects(batch);
+        } catch (RuntimeException e) {
+            logger.error("Error sending projects: {}", e.getMessage());
+            logger.debug("Error sending projects", e);
+            statusCode = StatusCode.CLIENT_FAILURE;
+        }
+        if (statusCode != StatusCode.SUCCESS) {
+            logger.warn("Sending failed with {}, the projects are sent again with the next batch", statusCode);
+            unsentProjects.addAll(0, batch);
+            dropOldestUnsent();
+        }
+    }
+
+    /**
+     * While the service can't be reached the projects would pile up, only the latest docker.daemonMaxUnsentProjects
+     * are kept.
+     */
+    private void dropOldestUnsent() {
+        int dropped = unsentProjects.size() - maxUnsentProjects;
+        if (dropped > 0) {
+            unsentProjects.subList(0, dropped).clear();
+            logger.warn("More than {} projects waiting to be sent, dropped the {} oldest", maxUnsentProjects, dropped);
+        }
+    }
+
+    private void queue(Map<String, Long> pending, String id, long eventMillis) {
+        synchronized (pending) {
+            pending.put(id, eventMillis);
+        }
+    }
+
+    private Set<String> takeReady(Map<String, Long> pending) {
+        long readyBefore = System.currentTimeMillis() - debounceMillis;
+        Set<String> ready = new LinkedHashSet<>();
+        synchronized (pending) {
+            Iterator<Map.Entry<String, Long>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (entry.getValue() <= readyBefore) {
+                    ready.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        return ready;
+    }
+
+    private void closeEvents() {
+        EventsResultCallback callback = eventsCallback;
+        if (callback != null) {
+            closeQuietly(callback);
+        }
+    }
+
+    private void closeQuietly(EventsResultCallback callback) {
+        try {
+            callback.close();
+        } catch (Exception e) {
+            logger.debug("Error closing the Docker events stream: {}", e.getMessage());
+        }
+    }
+}
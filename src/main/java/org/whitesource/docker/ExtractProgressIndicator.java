@@ -16,18 +16,25 @@
 package org.whitesource.docker;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.ProxyInputStream;
 
-import java.io.File;
-import java.text.MessageFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Displays progress of file extraction.
+ * Counts the bytes of an image export as they are read and displays the progress of the export.
+ * <p>
+ * The progress is drawn by the reading thread, at most once per refresh interval, so no other thread is involved.
+ * The counters are available whether the progress is displayed or not.
  *
  * @author tom.shapira
  */
-public class ExtractProgressIndicator implements Runnable {
+public class ExtractProgressIndicator extends ProxyInputStream {
 
     /* --- Static members --- */
 
@@ -35,71 +42,151 @@ public class ExtractProgressIndicator implements Runnable {
     public static final String PROGRESS_BAR_PREFIX = " [";
     public static final String PROGRESS_FILL = "#";
     public static final String EMPTY_STRING = " ";
-    public static final String PROGRESS_BAR_SUFFIX = "] {0}% - {1}                       \r";
+    public static final String PROGRESS_BAR_SUFFIX = "] ";
     public static final String CLEAR_PROGRESS = "                                                                                                                \r";
-    public static final int REFRESH_RATE = 60;
+    public static final long REFRESH_RATE = 500;
+
+    private static final int PROGRESS_BLOCKS = 33;
+    private static final String SEPARATOR = " - ";
+    private static final String RATE_SUFFIX = " MB/s";
+    private static final String ETA_PREFIX = ", ETA ";
+    private static final String SECONDS_SUFFIX = "s";
+    private static final String LINE_END = "                       \r";
+    private static final double MILLIS_PER_SECOND = 1000;
 
     /* --- Members --- */
 
     private final List<String> progressAnimation = Arrays.asList("|", "/", "-", "\\");
-    private final int ANIMATION_FRAMES = progressAnimation.size();
     private int animationIndex = 0;
 
-    private final File file;
-    private final long targetSize;
-    private boolean finished;
+    private final long expectedSize;
+    private final boolean showProgress;
+    private final PrintStream out;
+    private final long startTime;
+    private volatile long bytesRead;
+    private volatile long endTime;
+    private long lastRefresh;
 
     /* --- Constructors --- */
 
-    public ExtractProgressIndicator(File file, long targetSize) {
-        finished = false;
-        this.file = file;
-        this.targetSize = targetSize;
+    /**
+     * @param in           the export stream
+     * @param expectedSize expected number of bytes, 0 if unknown
+     * @param showProgress true to draw the progress bar on the console
+     */
+    public ExtractProgressIndicator(InputStream in, long expectedSize, boolean showProgress) {
+        this(in, expectedSize, showProgress, System.out);
+    }
+
+    public ExtractProgressIndicator(InputStream in, long expectedSize, boolean showProgress, PrintStream out) {
+        super(in);
+        this.expectedSize = expectedSize;
+        this.showProgress = showProgress;
+        this.out = out;
+        this.startTime = System.nanoTime();
+        this.lastRefresh = startTime;
     }
 
     /* --- Overridden methods --- */
 
     @Override
-    public void run() {
-        long currentSize;
-        do {
-            currentSize = file.length();
-
-            StringBuilder sb = new StringBuilder(LOG_PREFIX);
-            int actualAnimationIndex = animationIndex % (ANIMATION_FRAMES);
-            sb.append(progressAnimation.get((actualAnimationIndex) % ANIMATION_FRAMES));
-            animationIndex++;
-
-            // draw progress bar
-            sb.append(PROGRESS_BAR_PREFIX);
-            double percentage = ((double) currentSize / targetSize) * 100;
-            int progressionBlocks = (int) (percentage / 3);
-            for (int i = 0; i < progressionBlocks; i++) {
-                sb.append(PROGRESS_FILL);
+    protected void afterRead(int n) {
+        if (n > 0) {
+            bytesRead += n;
+            if (showProgress) {
+                long now = System.nanoTime();
+                if (TimeUnit.NANOSECONDS.toMillis(now - lastRefresh) >= REFRESH_RATE) {
+                    lastRefresh = now;
+                    out.print(getProgressBar());
+                }
             }
-            for (int i = progressionBlocks; i < 33; i++) {
-                sb.append(EMPTY_STRING);
-            }
-            sb.append(PROGRESS_BAR_SUFFIX);
-            System.out.print(MessageFormat.format(sb.toString(), (int) percentage, FileUtils.byteCountToDisplaySize(currentSize)));
+        } else if (n == -1) {
+            finished();
+        }
+    }
 
-            try {
-                Thread.sleep(REFRESH_RATE);
-            } catch (InterruptedException e) {
-                // ignore
-            }
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            finished();
+        }
+    }
 
-            // check if finished, sometimes actual size might be larger than target size
-            if (finished) {
-                break;
+    /* --- Public methods --- */
+
+    /**
+     * Stop the clock and clear the progress bar, called at the end of the stream or when it is closed.
+     */
+    public void finished() {
+        if (endTime == 0) {
+            endTime = System.nanoTime();
+            if (showProgress) {
+                out.print(CLEAR_PROGRESS);
             }
-        } while (currentSize < targetSize);
+        }
+    }
 
-        // clear progress animation
-        System.out.print(CLEAR_PROGRESS);
+    public long getBytesRead() {
+        return bytesRead;
     }
 
-    public void finished() {
-        finished = true;
+    public long getExpectedSize() {
+        return expectedSize;
+    }
+
+    /**
+     * @return the time since the stream was opened, until it ended if it did
+     */
+    public long getElapsedMillis() {
+        long end = endTime == 0 ? System.nanoTime() : endTime;
+        return TimeUnit.NANOSECONDS.toMillis(end - startTime);
+    }
+
+    /**
+     * @return the average throughput in bytes per second
+     */
+    public double getBytesPerSecond() {
+        long elapsedMillis = getElapsedMillis();
+        return elapsedMillis == 0 ? 0 : bytesRead * MILLIS_PER_SECOND / elapsedMillis;
+    }
+
+    /**
+     * @return the estimated seconds until the stream ends or -1 if it can't be estimated
+     */
+    public long getEtaSeconds() {
+        double bytesPerSecond = getBytesPerSecond();
+        if (expectedSize <= 0 || bytesPerSecond <= 0 || bytesRead >= expectedSize) {
+            return -1;
+        }
+        return (long) ((expectedSize - bytesRead) / bytesPerSecond);
+    }
+
+    /* --- Private methods --- */
+
+    private String getProgressBar() {
+        StringBuilder sb = new StringBuilder(LOG_PREFIX);
+        sb.append(progressAnimation.get(animationIndex++ % progressAnimation.size()));
+
+        // draw progress bar, the export may be bigger than expected
+        sb.append(PROGRESS_BAR_PREFIX);
+        int percentage = expectedSize > 0 ? (int) Math.min(100, bytesRead * 100 / expectedSize) : 0;
+        int progressionBlocks = percentage * PROGRESS_BLOCKS / 100;
+        for (int i = 0; i < PROGRESS_BLOCKS; i++) {
+            sb.append(i < progressionBlocks ? PROGRESS_FILL : EMPTY_STRING);
+        }
+        sb.append(PROGRESS_BAR_SUFFIX);
+        if (expectedSize > 0) {
+            sb.append(percentage).append('%').append(SEPARATOR);
+        }
+        sb.append(FileUtils.byteCountToDisplaySize(bytesRead)).append(SEPARATOR);
+        sb.append(String.format(Locale.ENGLISH, "%.1f", getBytesPerSecond() / FileUtils.ONE_MB)).append(RATE_SUFFIX);
+        long etaSeconds = getEtaSeconds();
+        if (etaSeconds >= 0) {
+            sb.append(ETA_PREFIX).append(etaSeconds).append(SECONDS_SUFFIX);
+        }
+        sb.append(LINE_END);
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A 'docker save' archive on disk, read with random access.
+ * <p>
+ * Only the tar headers are read to index the archive, the content of an entry is skipped with a seek. The manifest
+ * and the layers are then read directly at their offsets, in manifest order, and entries that no image refers to are
+ * never read. Every {@link #open} has its own file handle, so several entries can be read at the same time.
+ */
+public class ImageArchive {
+
+    /* --- Static members --- */
+
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String MANIFEST_LAYERS = "Layers";
+    private static final String MANIFEST_REPO_TAGS = "RepoTags";
+    private static final String MANIFEST_CONFIG = "Config";
+    private static final String CONFIG_ROOTFS = "rootfs";
+    private static final String CONFIG_DIFF_IDS = "diff_ids";
+    private static final String PAX_PATH = "path";
+    private static final String CURRENT_DIR_PREFIX = "./";
+    private static final String UNIX_FILE_SEPARATOR = "/";
+    private static final char PAX_KEY_SEPARATOR = '=';
+    private static final char PAX_RECORD_SEPARATOR = ' ';
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /* --- Members --- */
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /* --- Constructors --- */
+
+    /**
+     * Index the archive.
+     */
+    public ImageArchive(File file) throws IOException {
+        this.file = file;
+        readIndex();
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @return the images of the archive, a 'docker save' of several images holds one manifest per image
+     */
+    public List<ImageManifest> getManifests() throws IOException {
+        List<ImageManifest> manifests = new ArrayList<>();
+        InputStream manifestStream = open(MANIFEST_FILE);
+        if (manifestStream == null) {
+            return manifests;
+        }
+        try {
+            JsonNode manifest = new ObjectMapper().readTree(manifestStream);
+            if (manifest == null) {
+                return manifests;
+            }
+            for (JsonNode image : manifest) {
+                List<String> layers = new ArrayList<>();
+                JsonNode manifestLayers = image.get(MANIFEST_LAYERS);
+                if (manifestLayers != null) {
+                    for (JsonNode layer : manifestLayers) {
+                        layers.add(normalize(layer.asText()));
+                    }
+                }
+                List<String> repoTags = new ArrayList<>();
+                JsonNode manifestRepoTags = image.get(MANIFEST_REPO_TAGS);
+                if (manifestRepoTags != null) {
+                    for (JsonNode repoTag : manifestRepoTags) {
+                        repoTags.add(repoTag.asText());
+                    }
+                }
+                JsonNode config = image.get(MANIFEST_CONFIG);
+                manifests.add(new ImageManifest(config == null ? null : config.asText(), repoTags, layers));
+            }
+        } finally {
+            IOUtils.closeQuietly(manifestStream);
+        }
+        return manifests;
+    }
+
+    /**
+     * @return the diff ids of the layers from the config of the image, bottom layer first, empty if the archive has no
+     * config for the image
+     */
+    public List<String> getDiffIds(ImageManifest manifest) throws IOException {
+        List<String> diffIds = new ArrayList<>();
+        InputStream configStream = manifest.getConfig() == null ? null : open(manifest.getConfig());
+        if (configStream == null) {
+            return diffIds;
+        }
+        try {
+            JsonNode config = new ObjectMapper().readTree(configStream);
+            JsonNode rootfs = config == null ? null : config.get(CONFIG_ROOTFS);
+            JsonNode configDiffIds = rootfs == null ? null : rootfs.get(CONFIG_DIFF_IDS);
+            if (configDiffIds != null) {
+                for (JsonNode diffId : configDiffIds) {
+                    diffIds.add(diffId.asText());
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(configStream);
+        }
+        return diffIds;
+    }
+
+    /**
+     * @return the content of the entry or null if the archive has no such entry
+     */
+    public InputStream open(String name) throws IOException {
+        Entry entry = entries.get(normalize(name));
+        if (entry == null) {
+            return null;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.getChannel().position(entry.offset);
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+        return new BoundedInputStream(fis, entry.size);
+    }
+
+    /**
+     * @return the size of the entry or 0 if the archive has no such entry
+     */
+    public long getSize(String name) {
+        Entry entry = entries.get(normalize(name));
+        return entry == null ? 0 : entry.size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /* --- Private methods --- */
+
+    private void readIndex() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[TAR_BLOCK_SIZE];
+            long position = 0;
+            long length = raf.length();
+            String longName = null;
+            while (position + TAR_BLOCK_SIZE <= length) {
+                raf.seek(position);
+                raf.readFully(header);
+                if (isZeroBlock(header)) {
+                    break;
+                }
+                TarArchiveEntry tarEntry;
+                try {
+                    tarEntry = new TarArchiveEntry(header);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Not a tar archive: " + file.getName(), e);
+                }
+                long dataOffset = position + TAR_BLOCK_SIZE;
+                long size = tarEntry.getSize();
+                if (tarEntry.isGNULongNameEntry()) {
+                    longName = readString(raf, dataOffset, size);
+                } else if (tarEntry.isPaxHeader()) {
+                    String paxPath = readPaxPath(readString(raf, dataOffset, size));
+                    if (paxPath != null) {
+                        longName = paxPath;
+                    }
+                } else {
+                    String name = longName != null ? longName : tarEntry.getName();
+                    longName = null;
+                    if (tarEntry.isFile()) {
+                        entries.put(normalize(name), new Entry(dataOffset, size));
+                    }
+                }
+                // the content is padded to whole blocks
+                position = dataOffset + (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String readString(RandomAccessFile raf, long offset, long size) throws IOException {
+        byte[] bytes = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        int end = value.indexOf('\0');
+        return end < 0 ? value : value.substring(0, end);
+    }
+
+    /**
+     * PAX records are "length key=value\n".
+     */
+    private String readPaxPath(String paxHeaders) {
+        for (String record : paxHeaders.split("\n")) {
+            int keyStart = record.indexOf(PAX_RECORD_SEPARATOR) + 1;
+            int keyEnd = record.indexOf(PAX_KEY_SEPARATOR, keyStart);
+            if (keyStart > 0 && keyEnd > keyStart && PAX_PATH.equals(record.substring(keyStart, keyEnd))) {
+                return record.substring(keyEnd + 1);
+            }
+        }
+        return null;
+    }
+
+    private boolean isZeroBlock(byte[] header) {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String name) {
+        String path = name;
+        while (path.startsWith(CURRENT_DIR_PREFIX)) {
+            path = path.substring(CURRENT_DIR_PREFIX.length());
+        }
+        while (path.startsWith(UNIX_FILE_SEPARATOR)) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * Location of the content of an entry.
+     */
+    private static class Entry {
+
+        private final long offset;
+        private final long size;
+
+        private Entry(long offset, long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An image of the archive or of an {@link OciImageLayout}.
+     */
+    public static class ImageManifest {
+
+        private final String config;
+        private final List<String> repoTags;
+        private final List<String> layers;
+
+        public ImageManifest(String config, List<String> repoTags, List<String> layers) {
+            this.config = config;
+            this.repoTags = repoTags;
+            this.layers = layers;
+        }
+
+        /**
+         * @return the config entry of the image, named after the image id (the config digest in an OCI layout)
+         */
+        public String getConfig() {
+            return config;
+        }
+
+        public List<String> getRepoTags() {
+            return repoTags;
+        }
+
+        /**
+         * @return the layer entries (blob digests in an OCI layout), bottom layer first
+         */
+        public List<String> getLayers() {
+            return layers;
+        }
+    }
+}
@@ -0,0 +1,864 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the final merged file system of an image from a 'docker save' archive.
+ * <p>
+ * The archive holds a manifest.json and one tar per layer. Every layer is walked inside the stream and its matching
+ * files are staged separately, together with its whiteouts. Once all layers are read, the layers are merged in
+ * manifest order so that only files that are visible in the running image end up in the extract folder. Files deleted
+ * or replaced by an upper layer are never handed to the scanner. Package databases are parsed while they stream past,
+ * the packages of the database versions visible in the final image are returned by {@link #getPackages()}.
+ * <p>
+ * Plain binaries can be hashed in the stream instead of being staged, see {@link #setHashInStream}.
+ * <p>
+ * With a {@link LayerCache} the layers can be scanned one by one instead, so that their results can be reused by other
+ * images. The results are cached by the diff id of the layer, which doesn't depend on the layers below it. Cached
+ * layers of an archive on disk are never read, the diff ids of a stream are only known once a layer was read, so there
+ * only the scan is skipped. The results of all layers are merged with the same rules. For a scan of the merged file
+ * system (see {@link #setMergedScan}) every layer is staged and the cache holds the result of the whole image instead,
+ * keyed by {@link #getImageCacheKey()}.
+ * <p>
+ * Layers that are stored separately (an archive on disk or the blobs of an OCI image layout) are decompressed and staged
+ * concurrently by {@link #addLayers}, and {@link #scanLayers(LayerScanner, ExecutorService)} scans them concurrently.
+ */
+public class ImageLayerExtractor {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageLayerExtractor.class);
+
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String MANIFEST_LAYERS = "Layers";
+    private static final String LEGACY_LAYER_SUFFIX = "/layer.tar";
+    private static final String BLOBS_PREFIX = "blobs/";
+    private static final String DIFF_ID_PREFIX = "sha256:";
+    private static final String IMAGE_KEY_PREFIX = "image:";
+    private static final String CHAIN_SEPARATOR = " ";
+    private static final String WHITEOUT_PREFIX = ".wh.";
+    private static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+    private static final String UNIX_FILE_SEPARATOR = "/";
+    private static final String WINDOWS_FILE_SEPARATOR = "\\";
+    private static final String CURRENT_DIR_PREFIX = "./";
+    private static final String PARENT_DIR = "..";
+    private static final String EMPTY_STRING = "";
+    private static final int TAR_HEADER_SIZE = 512;
+
+    /* --- Members --- */
+
+    private final File extractDir;
+    private final File stagingDir;
+    private final LayerCache layerCache;
+    private final PathClassifier pathClassifier;
+    private final Map<String, LayerContent> layers = new LinkedHashMap<>();
+    // the diff id of each layer, when it is known before the layer is read
+    private final Map<String, String> diffIds = new HashMap<>();
+    private final AtomicLong entriesSeen = new AtomicLong();
+    private final AtomicLong entriesExtracted = new AtomicLong();
+    private final AtomicLong bytesExtracted = new AtomicLong();
+    private volatile List<String> layerOrder;
+    private boolean hashInStream;
+    private boolean mergedScan;
+    private LayerDecompressor decompressor = new LayerDecompressor();
+
+    /* --- Constructors --- */
+
+    /**
+     * @param extractDir folder that receives the merged file system
+     * @param stagingDir folder for the per-layer files, must not be inside the extract folder
+     */
+    public ImageLayerExtractor(File extractDir, File stagingDir) {
+        this(extractDir, stagingDir, null);
+    }
+
+    /**
+     * @param layerCache cache of layer results, layers found in the cache are not scanned
+     */
+    public ImageLayerExtractor(File extractDir, File stagingDir, LayerCache layerCache) {
+        this(extractDir, stagingDir, layerCache, new PathClassifier());
+    }
+
+    /**
+     * @param pathClassifier decides which files are extracted, should match the configuration of the scanner
+     */
+    public ImageLayerExtractor(File extractDir, File stagingDir, LayerCache layerCache, PathClassifier pathClassifier) {
+        this.extractDir = extractDir;
+        this.stagingDir = stagingDir;
+        this.layerCache = layerCache;
+        this.pathClassifier = pathClassifier;
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Read a 'docker save' archive once, staging the layers as they stream past.
+     * The stream is not closed.
+     */
+    public void extract(InputStream imageStream) throws IOException {
+        TarArchiveInputStream tais = new TarArchiveInputStream(new CloseShieldInputStream(imageStream));
+        TarArchiveEntry entry = tais.getNextTarEntry();
+        while (entry != null) {
+            if (entry.isFile()) {
+                String entryName = normalize(entry.getName());
+                if (MANIFEST_FILE.equals(entryName)) {
+                    layerOrder = readManifest(tais);
+                } else if (isLayerCandidate(entryName)) {
+                    // the rest of a skipped layer is skipped by the next entry
+                    addLayerEntry(entryName, tais);
+                }
+            }
+            entry = tais.getNextTarEntry();
+        }
+    }
+
+    /**
+     * Read the layers of one image of a 'docker save' archive on disk, in manifest order, without reading the other
+     * entries of the archive.
+     */
+    public void extract(ImageArchive archive, ImageArchive.ImageManifest manifest) throws IOException {
+        extract(archive, manifest, null);
+    }
+
+    /**
+     * Read the layers of one image of a 'docker save' archive on disk, each layer on its own worker of the executor.
+     *
+     * @param executorService the executor of the layer reads, null to read the layers one by one on the calling thread
+     */
+    public void extract(ImageArchive archive, ImageArchive.ImageManifest manifest, ExecutorService executorService) throws IOException {
+        layerOrder = manifest.getLayers();
+        List<String> configDiffIds = archive.getDiffIds(manifest);
+        if (configDiffIds.size() == manifest.getLayers().size()) {
+            for (int i = 0; i < configDiffIds.size(); i++) {
+                diffIds.put(manifest.getLayers().get(i), configDiffIds.get(i));
+            }
+        }
+        addLayers(manifest.getLayers(), archive::open, executorService);
+    }
+
+    /**
+     * Read and stage layers that are stored separately, each layer on its own worker of the executor. Returns once all
+     * layers were read, the first error is thrown after that.
+     *
+     * @param executorService the executor of the layer reads, null to read the layers one by one on the calling thread
+     */
+    public void addLayers(List<String> layerIds, LayerSource layerSource, ExecutorService executorService) throws IOException {
+        List<String> newLayerIds = new ArrayList<>();
+        for (String layerId : new LinkedHashSet<>(layerIds)) {
+            if (!layers.containsKey(layerId)) {
+                newLayerIds.add(layerId);
+            }
+        }
+        if (executorService == null) {
+            for (String layerId : newLayerIds) {
+                readLayer(layerId, layerSource);
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>(newLayerIds.size());
+        for (String layerId : newLayerIds) {
+            futures.add(executorService.submit(() -> {
+                readLayer(layerId, layerSource);
+                return null;
+            }));
+        }
+        // wait for all layers before failing, a running worker must not write into a deleted staging folder
+        Throwable error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading layers");
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause();
+                }
+            }
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    /**
+     * Add a layer from the layer cache if it was scanned before, otherwise stage it from the stream.
+     * Compressed layers are decompressed by the {@link LayerDecompressor}, streams that are not tars (e.g. image configs
+     * in the blobs folder) are skipped. The stream is not closed.
+     * <p>
+     * The diff id of a layer tar of a 'docker save' stream is calculated while it is staged, a cached result then
+     * replaces the scan of the layer.
+     */
+    public void addLayerEntry(String layerId, InputStream entryStream) throws IOException {
+        String cacheKey = getCacheKey(layerId);
+        LayerCache.LayerResult cachedResult = layerCache == null || cacheKey == null || mergedScan ? null : layerCache.get(cacheKey);
+        if (cachedResult != null) {
+            addCachedLayer(layerId, cachedResult);
+            return;
+        }
+        MessageDigest diffIdDigest = layerCache != null && cacheKey == null ? DigestUtils.getSha256Digest() : null;
+        BufferedInputStream layerStream = new BufferedInputStream(diffIdDigest == null ? entryStream : new DigestInputStream(entryStream, diffIdDigest));
+        LayerContent layer;
+        if (isTar(layerStream)) {
+            layer = stageLayer(layerId, layerStream, EMPTY_STRING, null);
+            if (diffIdDigest != null) {
+                // the diff id covers the whole tar, including the blocks after its last entry
+                IOUtils.skip(layerStream, Long.MAX_VALUE);
+                cacheKey = DIFF_ID_PREFIX + Hex.encodeHexString(diffIdDigest.digest());
+                layer.cachedResult = mergedScan ? null : layerCache.get(cacheKey);
+            }
+        } else {
+            // the digest of a compressed layer tar of a stream is not its diff id, it keeps no cache key
+            InputStream decompressed = decompressor.decompress(layerStream);
+            if (decompressed == layerStream) {
+                return;
+            }
+            try {
+                BufferedInputStream decompressedStream = new BufferedInputStream(decompressed);
+                if (!isTar(decompressedStream)) {
+                    return;
+                }
+                layer = stageLayer(layerId, decompressedStream, EMPTY_STRING, null);
+            } finally {
+                decompressed.close();
+            }
+        }
+        layer.cacheKey = cacheKey;
+    }
+
+    /**
+     * Stage the matching files and whiteouts of a single uncompressed layer tar.
+     * The stream is not closed.
+     */
+    public void addLayer(String layerId, InputStream layerStream) throws IOException {
+        addLayer(layerId, layerStream, EMPTY_STRING, null);
+    }
+
+    /**
+     * Stage the matching files of a tar whose entries are relative to a folder of the image, e.g. a folder copied out
+     * of a container. The stream is not closed.
+     *
+     * @param pathPrefix folder of the entries relative to the image root, with a trailing separator
+     * @param pathFilter only paths matching the filter are staged, null for all paths
+     */
+    public void addLayer(String layerId, InputStream layerStream, String pathPrefix, Pattern pathFilter) throws IOException {
+        stageLayer(layerId, layerStream, pathPrefix, pathFilter);
+    }
+
+    /**
+     * Add a layer that was scanned before, without reading its content.
+     */
+    public void addCachedLayer(String layerId, LayerCache.LayerResult cachedResult) {
+        LayerContent layer = registerLayer(layerId);
+        layer.paths.addAll(cachedResult.getPaths());
+        layer.deletedPaths.addAll(cachedResult.getDeletedPaths());
+        layer.packages.putAll(cachedResult.getPackages());
+        layer.cachedResult = cachedResult;
+        logger.debug("Layer {} found in the layer cache", layerId);
+    }
+
+    /**
+     * Calculate the SHA-1 of plain binaries (see {@link PathClassifier#isPlainBinary}) while the layer streams past,
+     * instead of extracting them for the scanner. Their dependencies are returned by {@link #getHashedDependencies()}
+     * or, when the layers are scanned one by one, by {@link #scanLayers}.
+     */
+    public void setHashInStream(boolean hashInStream) {
+        this.hashInStream = hashInStream;
+    }
+
+    /**
+     * Stage the layers found in the layer cache too, because the merged file system is scanned instead of each layer.
+     * The layers still get their cache keys, the result of the image is cached under {@link #getImageCacheKey()}.
+     */
+    public void setMergedScan(boolean mergedScan) {
+        this.mergedScan = mergedScan;
+    }
+
+    /**
+     * Like the chain id of docker, the key covers the layer and every layer below it, so the merged result of one image
+     * is never reused for an image with other layers. Call after the image was extracted.
+     *
+     * @return the layer cache key of the merged file system, null if a layer has no cache key
+     */
+    public String getImageCacheKey() {
+        String chainId = null;
+        for (LayerContent layer : getOrderedLayers()) {
+            if (layer.cacheKey == null) {
+                return null;
+            }
+            chainId = chainId == null ? layer.cacheKey : DIFF_ID_PREFIX + DigestUtils.sha256Hex(chainId + CHAIN_SEPARATOR + layer.cacheKey);
+        }
+        return chainId == null ? null : IMAGE_KEY_PREFIX + chainId;
+    }
+
+    /**
+     * Replace the default decompression stage of compressed layers.
+     */
+    public void setDecompressor(LayerDecompressor decompressor) {
+        this.decompressor = decompressor;
+    }
+
+    /**
+     * Set the layer order (bottom layer first) when it is known from outside of the archive.
+     */
+    public void setLayerOrder(List<String> layerOrder) {
+        this.layerOrder = layerOrder;
+    }
+
+    /**
+     * Move the files that are visible in the final image from the staged layers into the extract folder
+     * and remove the staging folder.
+     *
+     * @return the number of files in the merged file system
+     */
+    public int merge() throws IOException {
+        int mergedFiles = 0;
+        try {
+            for (Map.Entry<LayerContent, Set<String>> visible : getVisiblePaths().entrySet()) {
+                File layerDir = visible.getKey().dir;
+                for (String path : visible.getValue()) {
+                    File source = new File(layerDir, path);
+                    if (source.isFile()) {
+                        File target = new File(extractDir, path);
+                        File parent = target.getParentFile();
+                        if (!parent.exists()) {
+                            parent.mkdirs();
+                        }
+                        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        mergedFiles++;
+                    }
+                }
+            }
+        } finally {
+            FileUtils.deleteQuietly(stagingDir);
+        }
+        logger.debug("Merged {} layers into {} files", layers.size(), mergedFiles);
+        return mergedFiles;
+    }
+
+    /**
+     * Scan every layer on its own (or take its result from the cache) and merge the results, keeping only the
+     * dependencies of files that are visible in the final image. The staging folder is removed.
+     *
+     * @return the dependencies of the image, with system paths relative to the container root
+     */
+    public List<DependencyInfo> scanLayers(LayerScanner layerScanner) {
+        return scanLayers(layerScanner, null);
+    }
+
+    /**
+     * Scan the layers that are not cached concurrently on the executor, then merge their results in layer order like
+     * {@link #scanLayers(LayerScanner)}. The scanner must be safe to call from several threads.
+     *
+     * @param executorService the executor of the layer scans, null to scan on the calling thread
+     * @return the dependencies of the image, with system paths relative to the container root
+     */
+    public List<DependencyInfo> scanLayers(LayerScanner layerScanner, ExecutorService executorService) {
+        List<DependencyInfo> dependencies = new ArrayList<>();
+        int cachedLayers = 0;
+        try {
+            Map<LayerContent, Set<String>> visiblePaths = getVisiblePaths();
+            Map<LayerContent, Future<LayerCache.LayerResult>> futures = new HashMap<>();
+            if (executorService != null) {
+                for (LayerContent layer : visiblePaths.keySet()) {
+                    if (layer.cachedResult == null) {
+                        futures.put(layer, executorService.submit(() -> scanLayer(layer, layerScanner)));
+                    }
+                }
+            }
+
+            for (Map.Entry<LayerContent, Set<String>> visible : visiblePaths.entrySet()) {
+                LayerContent layer = visible.getKey();
+                LayerCache.LayerResult result = layer.cachedResult;
+                if (result != null) {
+                    cachedLayers++;
+                } else if (futures.containsKey(layer)) {
+                    result = getLayerResult(futures.get(layer));
+                } else {
+                    result = scanLayer(layer, layerScanner);
+                }
+
+                for (DependencyInfo dependencyInfo : result.getDependencies()) {
+                    // a dependency found inside an archive is only visible as long as its archive is,
+                    // dependencies found by resolvers don't map to a layer path
+                    String path = dependencyInfo.getSystemPath() == null ? null : normalize(dependencyInfo.getSystemPath());
+                    if (path != null && !layer.paths.contains(path)) {
+                        path = result.getArchivePaths().get(dependencyInfo.getSystemPath());
+                    }
+                    if (path == null || visible.getValue().contains(path)) {
+                        dependencies.add(dependencyInfo);
+                    }
+                }
+            }
+        } finally {
+            FileUtils.deleteQuietly(stagingDir);
+        }
+        logger.info("Scanned {} new layers, {} layers taken from the layer cache", layers.size() - cachedLayers, cachedLayers);
+        return dependencies;
+    }
+
+    /**
+     * @return the number of entries in the layers that were read
+     */
+    public long getEntriesSeen() {
+        return entriesSeen.get();
+    }
+
+    /**
+     * @return the number of files written to the staging folder
+     */
+    public long getEntriesExtracted() {
+        return entriesExtracted.get();
+    }
+
+    /**
+     * @return the number of bytes written to the staging folder
+     */
+    public long getBytesExtracted() {
+        return bytesExtracted.get();
+    }
+
+    /**
+     * @return the number of files hashed in stream
+     */
+    public long getEntriesHashed() {
+        long entriesHashed = 0;
+        for (LayerContent layer : layers.values()) {
+            entriesHashed += layer.hashedDependencies.size();
+        }
+        return entriesHashed;
+    }
+
+    /**
+     * Get the dependencies of the files hashed in stream that are visible in the final image, with system paths relative
+     * to the container root. Call after the image was extracted.
+     */
+    public List<DependencyInfo> getHashedDependencies() {
+        List<DependencyInfo> dependencies = new ArrayList<>();
+        for (Map.Entry<LayerContent, Set<String>> visible : getVisiblePaths().entrySet()) {
+            for (Map.Entry<String, DependencyInfo> hashed : visible.getKey().hashedDependencies.entrySet()) {
+                if (visible.getValue().contains(hashed.getKey())) {
+                    dependencies.add(hashed.getValue());
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Get the OS packages from the package databases that are visible in the final image.
+     * Call after the image was extracted.
+     */
+    public Collection<DependencyInfo> getPackages() {
+        Collection<DependencyInfo> packages = new ArrayList<>();
+        for (Map.Entry<LayerContent, Set<String>> visible : getVisiblePaths().entrySet()) {
+            for (Map.Entry<String, Collection<DependencyInfo>> database : visible.getKey().packages.entrySet()) {
+                if (visible.getValue().contains(database.getKey())) {
+                    packages.addAll(database.getValue());
+                }
+            }
+        }
+        return ContainerPackageExtractor.resolveArchLinuxArchitecture(packages);
+    }
+
+    /**
+     * Resolve which staged paths of each layer survive in the final image.
+     * Upper layers win: a path is hidden if an upper layer holds the same path, a file at one of its parent folders or
+     * a file below it, or whites out the path or one of its parent folders (a whiteout on a folder also covers an
+     * opaque folder).
+     *
+     * @return the visible paths per layer, bottom layer first
+     */
+    public Map<LayerContent, Set<String>> getVisiblePaths() {
+        List<LayerContent> orderedLayers = getOrderedLayers();
+        Map<LayerContent, Set<String>> visiblePaths = new LinkedHashMap<>();
+        Set<String> upperPaths = new HashSet<>();
+        Set<String> upperFolders = new HashSet<>();
+        Set<String> upperDeletedPaths = new HashSet<>();
+        for (int i = orderedLayers.size() - 1; i >= 0; i--) {
+            LayerContent layer = orderedLayers.get(i);
+            Set<String> visible = new HashSet<>();
+            for (String path : layer.paths) {
+                // a file of an upper layer replaces a folder below it just like a whiteout, and a folder replaces a file
+                if (!isHidden(path, upperPaths) && !upperFolders.contains(path) && !isHidden(path, upperDeletedPaths)) {
+                    visible.add(path);
+                }
+            }
+            visiblePaths.put(layer, visible);
+            upperPaths.addAll(layer.paths);
+            for (String path : layer.paths) {
+                String parent = getParentPath(path);
+                while (!parent.isEmpty() && upperFolders.add(parent)) {
+                    parent = getParentPath(parent);
+                }
+            }
+            upperDeletedPaths.addAll(layer.deletedPaths);
+        }
+
+        // return bottom layer first
+        Map<LayerContent, Set<String>> result = new LinkedHashMap<>();
+        for (LayerContent layer : orderedLayers) {
+            result.put(layer, visiblePaths.get(layer));
+        }
+        return result;
+    }
+
+    /* --- Private methods --- */
+
+    private LayerContent stageLayer(String layerId, InputStream layerStream, String pathPrefix, Pattern pathFilter) throws IOException {
+        LayerContent layer = registerLayer(layerId);
+
+        TarArchiveInputStream tais = new TarArchiveInputStream(new CloseShieldInputStream(layerStream));
+        TarArchiveEntry entry = tais.getNextTarEntry();
+        while (entry != null) {
+            entriesSeen.incrementAndGet();
+            String path = pathPrefix + normalize(entry.getName());
+            if (!entry.isDirectory() && !path.isEmpty() && !isTraversal(path) && (pathFilter == null || pathFilter.matcher(path).matches())) {
+                String fileName = getFileName(path);
+                if (fileName.startsWith(WHITEOUT_PREFIX)) {
+                    String parent = getParent(path);
+                    if (OPAQUE_WHITEOUT.equals(fileName)) {
+                        // the folder stays, only the content of the lower layers is hidden
+                        layer.deletedPaths.add(parent.isEmpty() ? parent : parent.substring(0, parent.length() - 1));
+                    } else {
+                        layer.deletedPaths.add(parent + fileName.substring(WHITEOUT_PREFIX.length()));
+                    }
+                } else if (ContainerPackageExtractor.isPackageDatabase(path)) {
+                    layer.paths.add(path);
+                    if (entry.isFile()) {
+                        layer.packages.put(path, ContainerPackageExtractor.parsePackageDatabase(path, tais));
+                    }
+                } else if (pathClassifier.isMatchingFile(path)) {
+                    // links still hide the files below them, only regular files have content to extract
+                    layer.paths.add(path);
+                    if (entry.isFile() && hashInStream && pathClassifier.isPlainBinary(path)) {
+                        DependencyInfo dependencyInfo = new DependencyInfo(DigestUtils.sha1Hex(tais));
+                        dependencyInfo.setArtifactId(getFileName(path));
+                        dependencyInfo.setSystemPath(UNIX_FILE_SEPARATOR + path);
+                        layer.hashedDependencies.put(path, dependencyInfo);
+                    } else if (entry.isFile()) {
+                        File file = new File(layer.dir, path);
+                        File parent = file.getParentFile();
+                        if (!parent.exists()) {
+                            parent.mkdirs();
+                        }
+                        OutputStream out = new FileOutputStream(file);
+                        try {
+                            bytesExtracted.addAndGet(IOUtils.copyLarge(tais, out));
+                        } finally {
+                            out.close();
+                        }
+                        entriesExtracted.incrementAndGet();
+                    }
+                }
+            }
+            entry = tais.getNextTarEntry();
+        }
+        logger.debug("Layer {}: {} matching files ({} hashed in stream), {} whiteouts", layerId, layer.paths.size(),
+                layer.hashedDependencies.size(), layer.deletedPaths.size());
+        return layer;
+    }
+
+    private void readLayer(String layerId, LayerSource layerSource) throws IOException {
+        InputStream layerStream = layerSource.open(layerId);
+        if (layerStream == null) {
+            logger.warn("Layer {} listed in the manifest was not found", layerId);
+            return;
+        }
+        try {
+            addLayerEntry(layerId, layerStream);
+        } finally {
+            IOUtils.closeQuietly(layerStream);
+        }
+    }
+
+    private LayerCache.LayerResult scanLayer(LayerContent layer, LayerScanner layerScanner) {
+        List<DependencyInfo> layerDependencies = new ArrayList<>();
+        if (layer.dir.isDirectory()) {
+            layerDependencies.addAll(layerScanner.scan(layer.dir));
+        }
+        String layerRoot = layer.dir.getPath().replace(WINDOWS_FILE_SEPARATOR, UNIX_FILE_SEPARATOR);
+        for (DependencyInfo dependencyInfo : layerDependencies) {
+            String systemPath = dependencyInfo.getSystemPath();
+            if (systemPath != null) {
+                systemPath = systemPath.replace(WINDOWS_FILE_SEPARATOR, UNIX_FILE_SEPARATOR);
+                if (systemPath.startsWith(layerRoot)) {
+                    dependencyInfo.setSystemPath(systemPath.substring(layerRoot.length()));
+                }
+            }
+        }
+        Map<String, String> archivePaths = new HashMap<>();
+        for (DependencyInfo dependencyInfo : layerDependencies) {
+            String systemPath = dependencyInfo.getSystemPath();
+            String archivePath = systemPath == null ? null : getArchivePath(normalize(systemPath), layer.paths);
+            if (archivePath != null) {
+                archivePaths.put(systemPath, archivePath);
+            }
+        }
+        layerDependencies.addAll(layer.hashedDependencies.values());
+        LayerCache.LayerResult result = new LayerCache.LayerResult(layerDependencies, archivePaths, layer.packages, layer.paths,
+                layer.deletedPaths);
+        if (layerCache != null && layer.cacheKey != null) {
+            layerCache.put(layer.cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Find the archive of the layer that a dependency was extracted from. The scanner reports such a dependency below
+     * the archive path, or below a copy of the archive path in its extraction folder, e.g.
+     * "/tmp/extractor/123/usr/lib/app.war_extracted/WEB-INF/lib/library.jar" for "usr/lib/app.war".
+     *
+     * @return the longest layer path that starts a segment of the path and is followed by a separator or a suffix,
+     * null if the path is a file of the layer itself or no archive of the layer is found in it
+     */
+    public static String getArchivePath(String path, Set<String> layerPaths) {
+        if (layerPaths.contains(path)) {
+            return null;
+        }
+        String archivePath = null;
+        for (int start = 0; start >= 0 && start < path.length(); start = nextSegment(path, start)) {
+            for (int end = start + 1; end < path.length(); end++) {
+                if (!Character.isLetterOrDigit(path.charAt(end)) && (archivePath == null || end - start > archivePath.length())) {
+                    String candidate = path.substring(start, end);
+                    if (layerPaths.contains(candidate)) {
+                        archivePath = candidate;
+                    }
+                }
+            }
+        }
+        return archivePath;
+    }
+
+    private static int nextSegment(String path, int start) {
+        int separator = path.indexOf(UNIX_FILE_SEPARATOR, start);
+        return separator < 0 ? -1 : separator + 1;
+    }
+
+    private LayerCache.LayerResult getLayerResult(Future<LayerCache.LayerResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning layers", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Error scanning layer", cause);
+        }
+    }
+
+    /**
+     * @return the diff id of the layer if it is known before it is read, the digest of a blob of an OCI layout, or null
+     * for a layer tar of a stream
+     */
+    private String getCacheKey(String layerId) {
+        String diffId = diffIds.get(layerId);
+        if (diffId == null && !layerId.endsWith(LEGACY_LAYER_SUFFIX)) {
+            // the blobs of an OCI layout are named after their digest
+            return layerId;
+        }
+        return diffId;
+    }
+
+    private LayerContent registerLayer(String layerId) {
+        synchronized (layers) {
+            LayerContent layer = new LayerContent(layerId, new File(stagingDir, String.valueOf(layers.size())));
+            layers.put(layerId, layer);
+            return layer;
+        }
+    }
+
+    private List<LayerContent> getOrderedLayers() {
+        if (layerOrder == null) {
+            logger.warn("Image manifest not found, merging {} layers in archive order", layers.size());
+            return new ArrayList<>(layers.values());
+        }
+
+        List<LayerContent> orderedLayers = new ArrayList<>(layerOrder.size());
+        for (String layerId : layerOrder) {
+            LayerContent layer = layers.get(layerId);
+            if (layer != null) {
+                orderedLayers.add(layer);
+            } else {
+                logger.debug("Layer {} listed in the manifest was not found in the archive", layerId);
+            }
+        }
+        return orderedLayers;
+    }
+
+    private List<String> readManifest(InputStream manifestStream) throws IOException {
+        JsonNode manifest = new ObjectMapper().readTree(new CloseShieldInputStream(manifestStream));
+        List<String> order = new ArrayList<>();
+        if (manifest != null && manifest.size() > 0) {
+            // 'docker save' of a single image, use the first manifest
+            JsonNode manifestLayers = manifest.get(0).get(MANIFEST_LAYERS);
+            if (manifestLayers != null) {
+                for (JsonNode layer : manifestLayers) {
+                    order.add(normalize(layer.asText()));
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return true if the path or one of its parent folders is in the hiding paths
+     */
+    private boolean isHidden(String path, Set<String> hidingPaths) {
+        if (hidingPaths.isEmpty()) {
+            return false;
+        }
+        if (hidingPaths.contains(path) || hidingPaths.contains(EMPTY_STRING)) {
+            return true;
+        }
+        int index = path.indexOf(UNIX_FILE_SEPARATOR);
+        while (index > 0) {
+            if (hidingPaths.contains(path.substring(0, index))) {
+                return true;
+            }
+            index = path.indexOf(UNIX_FILE_SEPARATOR, index + 1);
+        }
+        return false;
+    }
+
+    private boolean isLayerCandidate(String entryName) {
+        return entryName.endsWith(LEGACY_LAYER_SUFFIX) || entryName.startsWith(BLOBS_PREFIX);
+    }
+
+    private boolean isTar(BufferedInputStream stream) throws IOException {
+        byte[] header = new byte[TAR_HEADER_SIZE];
+        stream.mark(TAR_HEADER_SIZE);
+        int read = IOUtils.read(stream, header);
+        stream.reset();
+        return TarArchiveInputStream.matches(header, read);
+    }
+
+    private boolean isTraversal(String path) {
+        for (String segment : path.split(UNIX_FILE_SEPARATOR)) {
+            if (PARENT_DIR.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String normalize(String entryName) {
+        String path = entryName;
+        while (path.startsWith(CURRENT_DIR_PREFIX)) {
+            path = path.substring(CURRENT_DIR_PREFIX.length());
+        }
+        while (path.startsWith(UNIX_FILE_SEPARATOR)) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    private static String getFileName(String path) {
+        return path.substring(path.lastIndexOf(UNIX_FILE_SEPARATOR) + 1);
+    }
+
+    private static String getParent(String path) {
+        // keep the trailing separator so it can be prefixed to a file name
+        return path.substring(0, path.lastIndexOf(UNIX_FILE_SEPARATOR) + 1);
+    }
+
+    private static String getParentPath(String path) {
+        int index = path.lastIndexOf(UNIX_FILE_SEPARATOR);
+        return index < 0 ? EMPTY_STRING : path.substring(0, index);
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * Opens the layers that are stored separately, e.g. the entries of an archive on disk or the blobs of a layout.
+     */
+    public interface LayerSource {
+
+        /**
+         * @return the stream of the layer, closed by the caller, or null if there is no such layer
+         */
+        InputStream open(String layerId) throws IOException;
+    }
+
+    /**
+     * Scans the staged files of a single layer.
+     */
+    public interface LayerScanner {
+
+        List<DependencyInfo> scan(File layerDir);
+    }
+
+    /**
+     * The matching paths and whiteouts of a single layer.
+     */
+    public static class LayerContent {
+
+        private final String id;
+        private final File dir;
+        private final Set<String> paths = new HashSet<>();
+        private final Set<String> deletedPaths = new HashSet<>();
+        private final Map<String, Collection<DependencyInfo>> packages = new HashMap<>();
+        private final Map<String, DependencyInfo> hashedDependencies = new HashMap<>();
+        private LayerCache.LayerResult cachedResult;
+        private String cacheKey;
+
+        private LayerContent(String id, File dir) {
+            this.id = id;
+            this.dir = dir;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getDir() {
+            return dir;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Result of scanning the file system of a single image.
+ */
+public class ImageScanResult {
+
+    /* --- Members --- */
+
+    private final Collection<DependencyInfo> dependencies;
+    private final Collection<DependencyInfo> packages;
+
+    /* --- Constructors --- */
+
+    public ImageScanResult() {
+        this(Collections.emptyList(), Collections.emptyList());
+    }
+
+    public ImageScanResult(Collection<DependencyInfo> dependencies, Collection<DependencyInfo> packages) {
+        this.dependencies = dependencies;
+        this.packages = packages;
+    }
+
+    /* --- Getters --- */
+
+    /**
+     * @return the dependencies found by scanning the files of the image
+     */
+    public Collection<DependencyInfo> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return the OS packages read from the package databases of the image
+     */
+    public Collection<DependencyInfo> getPackages() {
+        return packages;
+    }
+}
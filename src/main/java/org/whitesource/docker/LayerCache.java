@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * On-disk cache of layer scan results, keyed by the diff id of the layer.
+ * <p>
+ * Layers are content addressed, so a base layer shared by many images is scanned only once. When the merged file system
+ * of an image is scanned, its result is cached under the chain of the diff ids of its layers instead, see
+ * {@link ImageLayerExtractor#getImageCacheKey()}. Entries are written to a
+ * temporary file and atomically renamed, so concurrent agent runs on the same host never read a partial entry. Entries
+ * are plain JSON, nothing but the results is ever instantiated from a shared folder and unknown properties of newer
+ * agent versions are ignored.
+ * The cache is bounded by size and the least recently used entries are evicted under an inter-process file lock.
+ */
+public class LayerCache {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(LayerCache.class);
+
+    // bump when the cached format or the scan logic changes
+    private static final String CACHE_VERSION = "4";
+    private static final String ENTRY_SUFFIX = ".layer";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = ".lock";
+    private static final String RW_MODE = "rw";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /* --- Members --- */
+
+    private final File cacheDir;
+    private final long maxSize;
+    private final String namespace;
+
+    /* --- Constructors --- */
+
+    /**
+     * @param cacheDir  cache folder, may be shared by several agent runs
+     * @param maxSize   maximum total size of the cache entries in bytes
+     * @param namespace fingerprint of the scan configuration, results of a different configuration are never reused
+     */
+    public LayerCache(File cacheDir, long maxSize, String namespace) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.namespace = CACHE_VERSION + namespace;
+        cacheDir.mkdirs();
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @param diffId the diff id of the layer, i.e. the digest of its uncompressed tar, its blob digest in an OCI layout
+     *               or the key of a merged image
+     * @return the cached result of the layer or null if the layer was not scanned before
+     */
+    public LayerResult get(String diffId) {
+        File entryFile = getEntryFile(diffId);
+        if (!entryFile.isFile()) {
+            return null;
+        }
+
+        try {
+            LayerResult result = objectMapper.readValue(entryFile, LayerResult.class);
+            // keep recently used entries from eviction
+            entryFile.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (FileNotFoundException e) {
+            // evicted by another run in the meantime
+            return null;
+        } catch (IOException e) {
+            logger.warn("Dropping unreadable layer cache entry {}: {}", entryFile.getName(), e.getMessage());
+            FileUtils.deleteQuietly(entryFile);
+            return null;
+        }
+    }
+
+    /**
+     * Store the result of a scanned layer and evict old entries if the cache is too big.
+     */
+    public void put(String diffId, LayerResult result) {
+        File entryFile = getEntryFile(diffId);
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(entryFile.getName(), TEMP_SUFFIX, cacheDir);
+            objectMapper.writeValue(tempFile, result);
+            try {
+                Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Error writing layer cache entry for {}: {}", diffId, e.getMessage());
+        } finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+        evict();
+    }
+
+    /* --- Private methods --- */
+
+    private File getEntryFile(String diffId) {
+        return new File(cacheDir, DigestUtils.sha1Hex(namespace + diffId) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits its size.
+     */
+    private void evict() {
+        // the file lock guards against other processes, the monitor against other threads of this process
+        synchronized (LayerCache.class) {
+            RandomAccessFile lockFile = null;
+            FileLock lock = null;
+            try {
+                lockFile = new RandomAccessFile(new File(cacheDir, LOCK_FILE), RW_MODE);
+                FileChannel channel = lockFile.getChannel();
+                lock = channel.lock();
+
+                File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+                if (entries == null) {
+                    return;
+                }
+                long totalSize = 0;
+                for (File entry : entries) {
+                    totalSize += entry.length();
+                }
+                if (totalSize <= maxSize) {
+                    return;
+                }
+
+                Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+                for (File entry : entries) {
+                    if (totalSize <= maxSize) {
+                        break;
+                    }
+                    long size = entry.length();
+                    if (entry.delete()) {
+                        totalSize -= size;
+                        logger.debug("Evicted layer cache entry {}", entry.getName());
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Error evicting layer cache entries: {}", e.getMessage());
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException e) {
+                        logger.debug("Error releasing layer cache lock", e);
+                    }
+                }
+                IOUtils.closeQuietly(lockFile);
+            }
+        }
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * Scan result of a single layer, with the paths it needs to be merged with the other layers of an image.
+     */
+    public static class LayerResult {
+
+        private final ArrayList<DependencyInfo> dependencies;
+        private final HashMap<String, String> archivePaths;
+        private final HashMap<String, Collection<DependencyInfo>> packages;
+        private final HashSet<String> paths;
+        private final HashSet<String> deletedPaths;
+
+        @JsonCreator
+        public LayerResult(@JsonProperty("dependencies") Collection<DependencyInfo> dependencies,
+                           @JsonProperty("archivePaths") Map<String, String> archivePaths,
+                           @JsonProperty("packages") Map<String, Collection<DependencyInfo>> packages,
+                           @JsonProperty("paths") Collection<String> paths,
+                           @JsonProperty("deletedPaths") Collection<String> deletedPaths) {
+            this.dependencies = new ArrayList<>(dependencies);
+            this.archivePaths = new HashMap<>(archivePaths);
+            this.packages = new HashMap<>();
+            for (Map.Entry<String, Collection<DependencyInfo>> database : packages.entrySet()) {
+                this.packages.put(database.getKey(), new ArrayList<>(database.getValue()));
+            }
+            this.paths = new HashSet<>(paths);
+            this.deletedPaths = new HashSet<>(deletedPaths);
+        }
+
+        public List<DependencyInfo> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * @return the layer path of the archive that holds a dependency, by the system path of the dependency, for the
+         * dependencies found inside archives
+         */
+        public Map<String, String> getArchivePaths() {
+            return archivePaths;
+        }
+
+        /**
+         * @return the packages of each package database in the layer
+         */
+        public Map<String, Collection<DependencyInfo>> getPackages() {
+            return packages;
+        }
+
+        public Set<String> getPaths() {
+            return paths;
+        }
+
+        public Set<String> getDeletedPaths() {
+            return deletedPaths;
+        }
+    }
+}
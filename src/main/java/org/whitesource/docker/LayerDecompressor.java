@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompression stage of the layer streams.
+ * <p>
+ * The compression of a layer is recognised by its magic bytes, gzip and zstd are built in and more codecs can be
+ * added with {@link #addCodec}. Layers are decompressed as a stream, they are never written to disk compressed.
+ * <p>
+ * A gzip stream can't be split, every deflate block may refer to the 32 KB before it. Large layers are therefore
+ * inflated block by block on a separate thread, ahead of the tar walk that reads them, so that inflating and staging
+ * run on two cores. Concurrent layers already run on their own workers, see {@link ImageLayerExtractor#addLayers}.
+ */
+public class LayerDecompressor {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(LayerDecompressor.class);
+
+    private static final int MAGIC_SIZE = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD_BLOCKS = 8;
+    private static final long POLL_MILLIS = 100;
+    public static final long PIPELINE_THRESHOLD = 32 * 1024 * 1024;
+
+    public static final Codec GZIP = new Codec("gzip", new byte[]{(byte) 0x1f, (byte) 0x8b}) {
+        @Override
+        public InputStream open(InputStream compressed) throws IOException {
+            // the JDK inflater is native zlib, it also reads multi-member streams
+            return new GZIPInputStream(compressed, BUFFER_SIZE);
+        }
+    };
+
+    public static final Codec ZSTD = new Codec("zstd", new byte[]{(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd}) {
+        @Override
+        public InputStream open(InputStream compressed) throws IOException {
+            if (!ZstdUtils.isZstdCompressionAvailable()) {
+                throw new IOException("Can't read a zstd compressed layer, zstd-jni is not on the class path");
+            }
+            return new ZstdCompressorInputStream(compressed);
+        }
+    };
+
+    // inflater threads are only started for large layers, idle ones stop after a minute
+    private static final ExecutorService inflaterExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "layer-inflater");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* --- Members --- */
+
+    private final List<Codec> codecs = new ArrayList<>(Arrays.asList(GZIP, ZSTD));
+    private final long pipelineThreshold;
+
+    /* --- Constructors --- */
+
+    public LayerDecompressor() {
+        this(PIPELINE_THRESHOLD);
+    }
+
+    /**
+     * @param pipelineThreshold compressed size from which a layer is inflated on a separate thread, 0 to never do so
+     */
+    public LayerDecompressor(long pipelineThreshold) {
+        this.pipelineThreshold = pipelineThreshold;
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Add a codec, it is tried before the built in ones.
+     */
+    public void addCodec(Codec codec) {
+        codecs.add(0, codec);
+    }
+
+    /**
+     * @return the codec of the stream or null if its magic bytes are not known, the stream is not consumed
+     */
+    public Codec detect(BufferedInputStream stream) throws IOException {
+        byte[] magic = new byte[MAGIC_SIZE];
+        stream.mark(MAGIC_SIZE);
+        int read = IOUtils.read(stream, magic);
+        stream.reset();
+        for (Codec codec : codecs) {
+            if (codec.matches(magic, read)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decompress the stream if its compression is known. The available bytes of the stream are taken as its compressed
+     * size, a stream that doesn't know its size is decompressed on the calling thread.
+     * Closing the result doesn't close the stream.
+     *
+     * @return the decompressed stream, the stream itself if it is not compressed
+     */
+    public InputStream decompress(BufferedInputStream stream) throws IOException {
+        Codec codec = detect(stream);
+        if (codec == null) {
+            return stream;
+        }
+        InputStream decompressed = codec.open(new CloseShieldInputStream(stream));
+        long compressedSize = stream.available();
+        if (pipelineThreshold <= 0 || compressedSize < pipelineThreshold) {
+            return decompressed;
+        }
+        logger.debug("Decompressing {} of {} ahead of the tar walk", codec.getName(), compressedSize);
+        return new ReadAheadInputStream(decompressed, BLOCK_SIZE, READ_AHEAD_BLOCKS);
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * A compression recognised by its magic bytes.
+     */
+    public abstract static class Codec {
+
+        private final String name;
+        private final byte[] magic;
+
+        protected Codec(String name, byte[] magic) {
+            this.name = name;
+            this.magic = magic;
+        }
+
+        /**
+         * @return the decompressed stream, closing it must close the compressed stream
+         */
+        public abstract InputStream open(InputStream compressed) throws IOException;
+
+        public boolean matches(byte[] header, int length) {
+            if (length < magic.length) {
+                return false;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if (header[i] != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Reads its source in blocks on an inflater thread, up to a number of blocks ahead of the reader.
+     * The source is closed by the inflater thread once it stops, {@link #close} waits for that.
+     */
+    private static class ReadAheadInputStream extends InputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> blocks;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile boolean closed;
+        private volatile IOException error;
+        private byte[] block;
+        private int position;
+
+        private ReadAheadInputStream(InputStream source, int blockSize, int blockCount) {
+            this.blocks = new ArrayBlockingQueue<>(blockCount);
+            inflaterExecutor.execute(() -> {
+                try {
+                    while (!closed) {
+                        byte[] buffer = new byte[blockSize];
+                        int read = IOUtils.read(source, buffer);
+                        if (read == 0) {
+                            break;
+                        }
+                        if (!offer(read < blockSize ? Arrays.copyOf(buffer, read) : buffer)) {
+                            return;
+                        }
+                        if (read < blockSize) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    IOUtils.closeQuietly(source);
+                    offer(END);
+                    stopped.countDown();
+                }
+            });
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (block == null || position == block.length) {
+                if (block == END) {
+                    return -1;
+                }
+                nextBlock();
+                if (block == END) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+            }
+            int count = Math.min(len, block.length - position);
+            System.arraycopy(block, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return block == null || block == END ? 0 : block.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // a full queue would keep the inflater thread waiting for room
+            blocks.clear();
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void nextBlock() throws IOException {
+            try {
+                block = blocks.take();
+                position = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing a layer");
+            }
+        }
+
+        /**
+         * @return false if the stream was closed before the block was queued
+         */
+        private boolean offer(byte[] buffer) {
+            try {
+                while (!blocks.offer(buffer, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An OCI image layout folder, i.e. an index.json and the content addressed blobs it points to.
+ * <p>
+ * Every layer is a separate blob file, so the layers of an image can be read at the same time. The layers are named
+ * after their digests, which is also the key of their results in the layer cache.
+ */
+public class OciImageLayout {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(OciImageLayout.class);
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String BLOBS_FOLDER = "blobs";
+    private static final String MANIFESTS = "manifests";
+    private static final String MEDIA_TYPE = "mediaType";
+    private static final String DIGEST = "digest";
+    private static final String CONFIG = "config";
+    private static final String LAYERS = "layers";
+    private static final String ANNOTATIONS = "annotations";
+    private static final String PLATFORM = "platform";
+    private static final String OS = "os";
+    private static final String ARCHITECTURE = "architecture";
+    // the full image name is set by containerd and 'docker save', the ref name often holds only the tag
+    private static final String IMAGE_NAME_ANNOTATION = "io.containerd.image.name";
+    private static final String REF_NAME_ANNOTATION = "org.opencontainers.image.ref.name";
+    private static final String OCI_INDEX_TYPE = "application/vnd.oci.image.index.v1+json";
+    private static final String DOCKER_MANIFEST_LIST_TYPE = "application/vnd.docker.distribution.manifest.list.v2+json";
+    private static final String DEFAULT_OS = "linux";
+    private static final String DEFAULT_ARCHITECTURE = "amd64";
+    // attestation manifests of buildkit are listed with an unknown platform
+    private static final String UNKNOWN_PLATFORM = "unknown";
+    private static final String DIGEST_SEPARATOR = ":";
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[a-z0-9]+([+._-][a-z0-9]+)*:[a-zA-Z0-9=_-]+");
+
+    /* --- Members --- */
+
+    private final File dir;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /* --- Constructors --- */
+
+    public OciImageLayout(File dir) throws IOException {
+        if (!new File(dir, INDEX_FILE).isFile()) {
+            throw new FileNotFoundException("Not an OCI image layout, " + INDEX_FILE + " not found in " + dir.getPath());
+        }
+        this.dir = dir;
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Read the images of the layout. A nested index of a multi-platform image yields the image of the default platform
+     * (linux/amd64), or its first image if there is none.
+     *
+     * @return the images of the layout, config and layers are blob digests
+     */
+    public List<ImageArchive.ImageManifest> getManifests() throws IOException {
+        List<ImageArchive.ImageManifest> manifests = new ArrayList<>();
+        JsonNode index = objectMapper.readTree(new File(dir, INDEX_FILE));
+        if (index == null || index.get(MANIFESTS) == null) {
+            return manifests;
+        }
+        for (JsonNode descriptor : index.get(MANIFESTS)) {
+            List<String> refNames = getRefNames(descriptor);
+            JsonNode manifestDescriptor = isIndex(descriptor) ? selectPlatform(readBlob(getDigest(descriptor))) : descriptor;
+            if (manifestDescriptor == null) {
+                logger.warn("No image found in the index {} of {}", getDigest(descriptor), dir.getName());
+                continue;
+            }
+
+            JsonNode manifest = readBlob(getDigest(manifestDescriptor));
+            List<String> layers = new ArrayList<>();
+            JsonNode manifestLayers = manifest.get(LAYERS);
+            if (manifestLayers != null) {
+                for (JsonNode layer : manifestLayers) {
+                    layers.add(getDigest(layer));
+                }
+            }
+            JsonNode config = manifest.get(CONFIG);
+            manifests.add(new ImageArchive.ImageManifest(config == null ? null : getDigest(config), refNames, layers));
+        }
+        return manifests;
+    }
+
+    /**
+     * @return the blob file of the digest, it may not exist
+     */
+    public File getBlob(String digest) throws IOException {
+        // the digest becomes a path, never let it leave the blobs folder
+        if (digest == null || !DIGEST_PATTERN.matcher(digest).matches()) {
+            throw new IOException("Invalid blob digest: " + digest);
+        }
+        int index = digest.indexOf(DIGEST_SEPARATOR);
+        return new File(new File(new File(dir, BLOBS_FOLDER), digest.substring(0, index)), digest.substring(index + 1));
+    }
+
+    /**
+     * @return the content of the blob or null if the layout has no such blob
+     */
+    public InputStream open(String digest) throws IOException {
+        File blob = getBlob(digest);
+        return blob.isFile() ? new FileInputStream(blob) : null;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /* --- Private methods --- */
+
+    private JsonNode readBlob(String digest) throws IOException {
+        File blob = getBlob(digest);
+        if (!blob.isFile()) {
+            throw new FileNotFoundException("Blob " + digest + " not found in " + dir.getName());
+        }
+        JsonNode node = objectMapper.readTree(blob);
+        if (node == null) {
+            throw new IOException("Empty blob " + digest + " in " + dir.getName());
+        }
+        return node;
+    }
+
+    private JsonNode selectPlatform(JsonNode index) {
+        JsonNode first = null;
+        JsonNode manifests = index.get(MANIFESTS);
+        if (manifests == null) {
+            return null;
+        }
+        for (JsonNode descriptor : manifests) {
+            JsonNode platform = descriptor.get(PLATFORM);
+            String os = platform == null || platform.get(OS) == null ? null : platform.get(OS).asText();
+            String architecture = platform == null || platform.get(ARCHITECTURE) == null ? null : platform.get(ARCHITECTURE).asText();
+            if (isIndex(descriptor) || UNKNOWN_PLATFORM.equals(os)) {
+                continue;
+            }
+            if (DEFAULT_OS.equals(os) && DEFAULT_ARCHITECTURE.equals(architecture)) {
+                return descriptor;
+            }
+            if (first == null) {
+                first = descriptor;
+            }
+        }
+        return first;
+    }
+
+    private List<String> getRefNames(JsonNode descriptor) {
+        List<String> refNames = new ArrayList<>();
+        JsonNode annotations = descriptor.get(ANNOTATIONS);
+        if (annotations != null) {
+            for (String annotation : new String[]{IMAGE_NAME_ANNOTATION, REF_NAME_ANNOTATION}) {
+                JsonNode refName = annotations.get(annotation);
+                if (refName != null && !refName.asText().isEmpty()) {
+                    refNames.add(refName.asText());
+                }
+            }
+        }
+        return refNames;
+    }
+
+    private boolean isIndex(JsonNode descriptor) {
+        JsonNode mediaType = descriptor.get(MEDIA_TYPE);
+        return mediaType != null && (OCI_INDEX_TYPE.equals(mediaType.asText()) || DOCKER_MANIFEST_LIST_TYPE.equals(mediaType.asText()));
+    }
+
+    private String getDigest(JsonNode descriptor) throws IOException {
+        JsonNode digest = descriptor.get(DIGEST);
+        if (digest == null) {
+            throw new IOException("Descriptor without a digest in " + dir.getName());
+        }
+        return digest.asText();
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.whitesource.agent.api.model.DependencyInfo;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental parser of package manager output, used as the stdout stream of an exec.
+ * <p>
+ * Lines are parsed as the exec frames arrive, so the output is never buffered as a whole.
+ * Only printable ASCII is kept, like the package managers print it. UTF-8 multi-byte sequences never contain
+ * ASCII bytes, so the output is filtered byte by byte without decoding.
+ * <p>
+ * Each command writes one section, the output of the package list script switches sections with marker lines.
+ */
+public class PackageListParser extends OutputStream {
+
+    /* --- Static members --- */
+
+    public static final String SECTION_PREFIX = "@@whitesource:";
+    public static final String OS_RELEASE_SECTION = "os-release";
+    public static final String DEBIAN_SECTION = "dpkg";
+    public static final String RPM_SECTION = "rpm";
+    public static final String ALPINE_SECTION = "apk";
+    public static final String ARCH_LINUX_SECTION = "pacman";
+    public static final String ARCH_SECTION = "arch";
+
+    // reference: http://askubuntu.com/questions/18804/what-do-the-various-dpkg-flags-like-ii-rc-mean/18807#18807
+    private static final Pattern DEBIAN_INSTALLED_PACKAGE = Pattern.compile("ii +([^ ]+) +([^ ]+) +([^ ]+)");
+    private static final Pattern ARCH_LINUX_PACKAGE = Pattern.compile("([^ ]*) ([^ ]+) *");
+    private static final String ALPINE_PACKAGE_SPLIT_PATTERN = " - ";
+    private static final String OS_PRETTY_NAME = "PRETTY_NAME=";
+    private static final String QUOTE = "\"";
+    private static final String EMPTY_STRING = "";
+    private static final char COLON = ':';
+    private static final char UNDERSCORE = '_';
+    private static final char DASH = '-';
+    private static final String DEBIAN_PACKAGE_SUFFIX = ".deb";
+    private static final String RPM_PACKAGE_SUFFIX = ".rpm";
+    private static final String ALPINE_PACKAGE_SUFFIX = ".apk";
+    private static final String ARCH_LINUX_PACKAGE_SUFFIX = ".pkg.tar.xz";
+    private static final Set<String> SYSTEM_ARCHITECTURES = new HashSet<>(Arrays.asList("x86_64", "i686", "any"));
+
+    private static final byte NEW_LINE = '\n';
+    private static final byte FIRST_PRINTABLE = 0x20;
+    private static final byte LAST_PRINTABLE = 0x7e;
+    private static final int LINE_BUFFER_SIZE = 256;
+
+    /* --- Members --- */
+
+    private final boolean sectioned;
+    private final Matcher debianMatcher = DEBIAN_INSTALLED_PACKAGE.matcher(EMPTY_STRING);
+    private final Matcher archLinuxMatcher = ARCH_LINUX_PACKAGE.matcher(EMPTY_STRING);
+    private final List<DependencyInfo> packages = new ArrayList<>();
+    private final Map<String, Integer> sectionPackages = new LinkedHashMap<>();
+    private String section;
+    private String arch;
+    private String osName;
+    private byte[] line = new byte[LINE_BUFFER_SIZE];
+    private int lineLength;
+
+    /* --- Constructors --- */
+
+    /**
+     * Parse the output of the package list script, sections start with {@link #SECTION_PREFIX} lines.
+     */
+    public PackageListParser() {
+        this.sectioned = true;
+        this.arch = EMPTY_STRING;
+    }
+
+    /**
+     * Parse the output of a single command.
+     *
+     * @param section the section of the command
+     * @param arch    the system architecture, required for Arch Linux packages
+     */
+    public PackageListParser(String section, String arch) {
+        this.sectioned = false;
+        this.section = section;
+        this.arch = arch == null ? EMPTY_STRING : arch;
+        sectionPackages.put(section, 0);
+    }
+
+    /* --- Public methods --- */
+
+    @Override
+    public void write(int b) {
+        if (b == NEW_LINE) {
+            parseLine();
+        } else if (b >= FIRST_PRINTABLE && b <= LAST_PRINTABLE) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Parse the last line if the output didn't end with a new line.
+     */
+    @Override
+    public void close() {
+        if (lineLength > 0) {
+            parseLine();
+        }
+    }
+
+    /**
+     * @return the packages of all sections, in the order of the output
+     */
+    public List<DependencyInfo> getPackages() {
+        return packages;
+    }
+
+    /**
+     * @return true if the section was found in the output
+     */
+    public boolean hasSection(String section) {
+        return sectionPackages.containsKey(section);
+    }
+
+    /**
+     * @return the number of packages found in each section
+     */
+    public Map<String, Integer> getSectionPackages() {
+        return sectionPackages;
+    }
+
+    /**
+     * @return the architecture of the system if it is known to Arch Linux, empty otherwise
+     */
+    public String getArch() {
+        return arch;
+    }
+
+    /**
+     * @return the pretty name of the distribution or null if there is no os-release
+     */
+    public String getOsName() {
+        return osName;
+    }
+
+    /* --- Private methods --- */
+
+    private void parseLine() {
+        String text = new String(line, 0, lineLength, StandardCharsets.US_ASCII);
+        lineLength = 0;
+
+        if (sectioned) {
+            String trimmed = text.trim();
+            if (trimmed.startsWith(SECTION_PREFIX)) {
+                section = trimmed.substring(SECTION_PREFIX.length());
+                sectionPackages.put(section, 0);
+                return;
+            }
+        }
+        if (section == null) {
+            return;
+        }
+
+        DependencyInfo dependencyInfo = null;
+        switch (section) {
+            case DEBIAN_SECTION:
+                dependencyInfo = parseDebianLine(text);
+                break;
+            case RPM_SECTION:
+                if (!text.trim().isEmpty()) {
+                    dependencyInfo = new DependencyInfo(null, text + RPM_PACKAGE_SUFFIX, null);
+                }
+                break;
+            case ALPINE_SECTION:
+                int splitIndex = text.indexOf(ALPINE_PACKAGE_SPLIT_PATTERN);
+                if (splitIndex >= 0) {
+                    dependencyInfo = new DependencyInfo(null, text.substring(0, splitIndex) + ALPINE_PACKAGE_SUFFIX, null);
+                }
+                break;
+            case ARCH_LINUX_SECTION:
+                // the script prints the architecture first, without it the packages can't be named
+                if (!arch.isEmpty() && archLinuxMatcher.reset(text).matches()) {
+                    dependencyInfo = new DependencyInfo(null, archLinuxMatcher.group(1) + DASH + archLinuxMatcher.group(2) +
+                            DASH + arch + ARCH_LINUX_PACKAGE_SUFFIX, null);
+                }
+                break;
+            case ARCH_SECTION:
+                String trimmedArch = text.trim();
+                if (SYSTEM_ARCHITECTURES.contains(trimmedArch)) {
+                    arch = trimmedArch;
+                }
+                break;
+            case OS_RELEASE_SECTION:
+                if (text.startsWith(OS_PRETTY_NAME)) {
+                    osName = text.substring(OS_PRETTY_NAME.length()).replace(QUOTE, EMPTY_STRING);
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (dependencyInfo != null) {
+            packages.add(dependencyInfo);
+            sectionPackages.put(section, sectionPackages.get(section) + 1);
+        }
+    }
+
+    /**
+     * Parse an installed package line of "dpkg -l".
+     */
+    private DependencyInfo parseDebianLine(String text) {
+        if (!debianMatcher.reset(text).lookingAt()) {
+            return null;
+        }
+        // names may contain the arch (i.e. package_name:amd64) - remove it
+        String name = debianMatcher.group(1);
+        int nameColon = name.indexOf(COLON);
+        if (nameColon >= 0) {
+            name = name.substring(0, nameColon);
+        }
+
+        // versions may contain an epoch
+        String version = debianMatcher.group(2);
+        int versionColon = version.indexOf(COLON);
+        if (versionColon >= 0) {
+            version = version.substring(versionColon + 1);
+        }
+
+        String arch = debianMatcher.group(3);
+        return new DependencyInfo(null, name + UNDERSCORE + version + UNDERSCORE + arch + DEBIAN_PACKAGE_SUFFIX, version);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.whitesource.agent.hash.FileExtensions;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files of an image are extracted for the File System Agent.
+ * <p>
+ * A file is extracted if it has a known source, binary or archive extension and the scanner will consider it: it is
+ * included and not excluded by the agent globs, or it is an archive that the scanner will unpack.
+ * Everything is compiled once. Extension globs ("**&#47;*.jar") and the extension patterns become hash lookups of the
+ * file name suffixes, the other globs are compiled to a single pattern.
+ */
+public class PathClassifier {
+
+    /* --- Static members --- */
+
+    private static final String[] ALL_FILES = new String[]{"**/*"};
+    private static final String ANY_FOLDER_EXTENSION_PREFIX = "**/*.";
+    private static final String ANY_FOLDER = "**";
+    private static final String REGEX_ANY_PREFIX = ".*\\.";
+    private static final String REGEX_ESCAPED_DOT = "\\.";
+    private static final String REGEX_OR = "|";
+    private static final String EMPTY_STRING = "";
+    private static final String GLOB_SPECIAL_CHARS = "*?[]{}";
+    private static final String REGEX_SPECIAL_CHARS = "\\[](){}*+?^$|";
+    private static final char UNIX_FILE_SEPARATOR = '/';
+    private static final char DOT = '.';
+
+    /* --- Members --- */
+
+    private final String[] includes;
+    private final String[] excludes;
+    private final boolean globCaseSensitive;
+    private final boolean extractArchives;
+    private final SuffixMatcher knownFiles;
+    private final SuffixMatcher archiveFiles;
+    private final SuffixMatcher binaryFiles;
+    private final SuffixMatcher includedFiles;
+    private final SuffixMatcher excludedFiles;
+    private final SuffixMatcher archiveIncludedFiles;
+    private final SuffixMatcher archiveExcludedFiles;
+
+    /* --- Constructors --- */
+
+    /**
+     * Extract every file with a known extension.
+     */
+    public PathClassifier() {
+        this(ALL_FILES, new String[0], false, 1);
+    }
+
+    /**
+     * @param includes               agent include globs
+     * @param excludes               agent exclude globs
+     * @param globCaseSensitive      true if the globs are case sensitive
+     * @param archiveExtractionDepth the archive extraction depth of the scanner, archives are only needed if it is positive
+     */
+    public PathClassifier(String[] includes, String[] excludes, boolean globCaseSensitive, int archiveExtractionDepth) {
+        this.includes = includes == null ? ALL_FILES : includes;
+        this.excludes = excludes == null ? new String[0] : excludes;
+        this.globCaseSensitive = globCaseSensitive;
+        this.extractArchives = archiveExtractionDepth > 0;
+        this.knownFiles = fromRegex(FileExtensions.SOURCE_FILE_PATTERN, FileExtensions.BINARY_FILE_PATTERN, FileExtensions.ARCHIVE_FILE_PATTERN);
+        this.archiveFiles = fromRegex(FileExtensions.ARCHIVE_FILE_PATTERN);
+        this.binaryFiles = fromRegex(FileExtensions.BINARY_FILE_PATTERN);
+        this.includedFiles = fromGlobs(this.includes, globCaseSensitive);
+        this.excludedFiles = fromGlobs(this.excludes, globCaseSensitive);
+        this.archiveIncludedFiles = fromGlobs(FileExtensions.ARCHIVE_INCLUDES, globCaseSensitive);
+        this.archiveExcludedFiles = fromGlobs(FileExtensions.ARCHIVE_EXCLUDES, globCaseSensitive);
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @param path file path relative to the image root, with '/' separators
+     * @return true if the scanner will consider the file
+     */
+    public boolean isMatchingFile(String path) {
+        String lowerCasePath = path.toLowerCase(Locale.ENGLISH);
+        if (!knownFiles.matches(lowerCasePath)) {
+            return false;
+        }
+        String globPath = globCaseSensitive ? path : lowerCasePath;
+        if (includedFiles.matches(globPath) && !excludedFiles.matches(globPath)) {
+            return true;
+        }
+        // archives are unpacked by the scanner regardless of the includes
+        return extractArchives && archiveFiles.matches(lowerCasePath) &&
+                archiveIncludedFiles.matches(globPath) && !archiveExcludedFiles.matches(globPath);
+    }
+
+    /**
+     * @param path file path relative to the image root of a matching file
+     * @return true if the scanner only calculates the SHA-1 of the file, it doesn't need to be written to disk
+     */
+    public boolean isPlainBinary(String path) {
+        String lowerCasePath = path.toLowerCase(Locale.ENGLISH);
+        return binaryFiles.matches(lowerCasePath) && !(extractArchives && archiveFiles.matches(lowerCasePath));
+    }
+
+    public String[] getIncludes() {
+        return includes;
+    }
+
+    public String[] getExcludes() {
+        return excludes;
+    }
+
+    public boolean isGlobCaseSensitive() {
+        return globCaseSensitive;
+    }
+
+    /* --- Private methods --- */
+
+    /**
+     * Compile extension patterns (".*\.jar|.*\.war" or ".*\.(jar|war)") to a suffix lookup, other patterns are compiled as is.
+     */
+    private static SuffixMatcher fromRegex(String... regexes) {
+        Set<String> suffixes = new HashSet<>();
+        List<String> patterns = new ArrayList<>();
+        for (String regex : regexes) {
+            Set<String> regexSuffixes = toSuffixes(regex);
+            if (regexSuffixes == null) {
+                patterns.add(regex);
+            } else {
+                suffixes.addAll(regexSuffixes);
+            }
+        }
+        return new SuffixMatcher(suffixes, patterns.isEmpty() ? null : Pattern.compile(join(patterns)));
+    }
+
+    /**
+     * @return the file name suffixes matched by the regex or null if it is not a plain list of extensions
+     */
+    private static Set<String> toSuffixes(String regex) {
+        List<String> alternatives = new ArrayList<>();
+        if (regex.startsWith(REGEX_ANY_PREFIX + "(") && regex.endsWith(")")) {
+            String group = regex.substring(REGEX_ANY_PREFIX.length() + 1, regex.length() - 1);
+            for (String extension : group.split(Pattern.quote(REGEX_OR))) {
+                alternatives.add(REGEX_ANY_PREFIX + extension);
+            }
+        } else {
+            alternatives.addAll(Arrays.asList(regex.split(Pattern.quote(REGEX_OR))));
+        }
+
+        Set<String> suffixes = new HashSet<>();
+        for (String alternative : alternatives) {
+            if (!alternative.startsWith(REGEX_ANY_PREFIX)) {
+                return null;
+            }
+            String escapedExtension = alternative.substring(REGEX_ANY_PREFIX.length());
+            String literal = escapedExtension.replace(REGEX_ESCAPED_DOT, EMPTY_STRING);
+            // anything but letters, digits and escaped dots needs the regex engine
+            if (literal.isEmpty() || containsAny(literal, REGEX_SPECIAL_CHARS + DOT)) {
+                return null;
+            }
+            suffixes.add(DOT + escapedExtension.replace(REGEX_ESCAPED_DOT, String.valueOf(DOT)));
+        }
+        return suffixes;
+    }
+
+    /**
+     * Compile Ant style globs, "**&#47;*.ext" globs become a suffix lookup.
+     */
+    private static SuffixMatcher fromGlobs(String[] globs, boolean caseSensitive) {
+        Set<String> suffixes = new HashSet<>();
+        List<String> patterns = new ArrayList<>();
+        for (String glob : globs) {
+            String normalized = glob.trim().replace('\\', UNIX_FILE_SEPARATOR);
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            if (!caseSensitive) {
+                normalized = normalized.toLowerCase(Locale.ENGLISH);
+            }
+            String extension = normalized.startsWith(ANY_FOLDER_EXTENSION_PREFIX) ? normalized.substring(ANY_FOLDER_EXTENSION_PREFIX.length()) : null;
+            if (extension != null && !extension.isEmpty() && !containsAny(extension, GLOB_SPECIAL_CHARS + UNIX_FILE_SEPARATOR)) {
+                suffixes.add(DOT + extension);
+            } else {
+                patterns.add(globToRegex(normalized));
+            }
+        }
+        return new SuffixMatcher(suffixes, patterns.isEmpty() ? null : Pattern.compile(join(patterns)));
+    }
+
+    /**
+     * Convert an Ant style glob to a regex: "**" matches any number of folders, "*" and "?" stay inside a folder.
+     */
+    private static String globToRegex(String glob) {
+        if (glob.endsWith(String.valueOf(UNIX_FILE_SEPARATOR))) {
+            // a trailing separator matches everything below the folder
+            glob += ANY_FOLDER;
+        }
+        if (glob.startsWith(String.valueOf(UNIX_FILE_SEPARATOR))) {
+            glob = glob.substring(1);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            if (glob.startsWith(ANY_FOLDER + UNIX_FILE_SEPARATOR, i)) {
+                sb.append("(?:.*/)?");
+                i += ANY_FOLDER.length() + 1;
+                continue;
+            } else if (glob.startsWith(ANY_FOLDER, i)) {
+                sb.append(".*");
+                i += ANY_FOLDER.length();
+                continue;
+            } else if (c == '*') {
+                sb.append("[^/]*");
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if (REGEX_SPECIAL_CHARS.indexOf(c) >= 0 || c == DOT) {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(c);
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+
+    private static String join(List<String> patterns) {
+        StringBuilder sb = new StringBuilder();
+        for (String pattern : patterns) {
+            if (sb.length() > 0) {
+                sb.append(REGEX_OR);
+            }
+            sb.append("(?:").append(pattern).append(')');
+        }
+        return sb.toString();
+    }
+
+    private static boolean containsAny(String s, String chars) {
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* --- Nested classes --- */
+
+    /**
+     * File name suffix lookup, with a compiled pattern for whatever can't be expressed as a suffix.
+     */
+    private static class SuffixMatcher {
+
+        private final Set<String> suffixes;
+        private final Pattern pattern;
+
+        private SuffixMatcher(Set<String> suffixes, Pattern pattern) {
+            this.suffixes = suffixes;
+            this.pattern = pattern;
+        }
+
+        private boolean matches(String path) {
+            if (!suffixes.isEmpty()) {
+                // try every suffix of the file name that starts with a dot (i.e. "a.tar.gz" tries ".tar.gz" and ".gz")
+                int fileNameStart = path.lastIndexOf(UNIX_FILE_SEPARATOR) + 1;
+                int dot = path.indexOf(DOT, fileNameStart);
+                while (dot >= 0) {
+                    if (suffixes.contains(path.substring(dot))) {
+                        return true;
+                    }
+                    dot = path.indexOf(DOT, dot + 1);
+                }
+            }
+            return pattern != null && pattern.matcher(path).matches();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.fs.StatusCode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sends the projects to the WhiteSource service in batches while the scan goes on.
+ * <p>
+ * A full batch is handed to a sender thread and the scan continues with the next one. The scan only waits when the
+ * previous batch is still being sent, so at most two batches are held in memory. A batch that fails with a connection
+ * or server failure is sent again after a delay, a batch that still fails is dropped and its status is returned by
+ * {@link #close()}.
+ */
+public class ProjectBatchSender implements Consumer<AgentProjectInfo> {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectBatchSender.class);
+
+    private static final String SENDER_THREAD_NAME = "project-batch-sender";
+
+    /* --- Members --- */
+
+    private final Function<Collection<AgentProjectInfo>, StatusCode> sender;
+    private final int batchSize;
+    private final int retries;
+    private final long retryDelayMillis;
+    private final ExecutorService senderExecutor;
+    private List<AgentProjectInfo> batch;
+    private Future<StatusCode> pendingBatch;
+    private StatusCode statusCode = StatusCode.SUCCESS;
+    private int batchCount;
+
+    /* --- Constructors --- */
+
+    /**
+     * @param sender           sends a batch and returns its status
+     * @param batchSize        number of projects per request
+     * @param retries          number of times a failed batch is sent again
+     * @param retryDelayMillis delay before the first retry, doubled for every further retry
+     */
+    public ProjectBatchSender(Function<Collection<AgentProjectInfo>, StatusCode> sender, int batchSize, int retries, long retryDelayMillis) {
+        this.sender = sender;
+        this.batchSize = Math.max(1, batchSize);
+        this.retries = Math.max(0, retries);
+        this.retryDelayMillis = retryDelayMillis;
+        this.batch = new ArrayList<>(this.batchSize);
+        this.senderExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, SENDER_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Add a completed project, the batch is sent once it is full.
+     */
+    @Override
+    public synchronized void accept(AgentProjectInfo projectInfo) {
+        batch.add(projectInfo);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the last batch and wait for all batches to be sent.
+     *
+     * @return the status of the first batch that failed, success if all batches were sent
+     */
+    public synchronized StatusCode close() {
+        try {
+            // without any project a single empty request is sent, like a run without batches does
+            if (!batch.isEmpty() || batchCount == 0) {
+                flush();
+            }
+            awaitPendingBatch();
+        } finally {
+            senderExecutor.shutdownNow();
+        }
+        logger.info("Sent {} batches", batchCount);
+        return statusCode;
+    }
+
+    /* --- Private methods --- */
+
+    private void flush() {
+        awaitPendingBatch();
+        List<AgentProjectInfo> projects = batch;
+        batch = new ArrayList<>(batchSize);
+        int batchNumber = ++batchCount;
+        pendingBatch = senderExecutor.submit(() -> send(projects, batchNumber));
+    }
+
+    private void awaitPendingBatch() {
+        if (pendingBatch == null) {
+            return;
+        }
+        StatusCode batchStatus;
+        try {
+            batchStatus = pendingBatch.get();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while sending projects");
+            Thread.currentThread().interrupt();
+            batchStatus = StatusCode.CLIENT_FAILURE;
+        } catch (ExecutionException e) {
+            logger.error("Error sending projects: {}", e.getCause().getMessage());
+            batchStatus = StatusCode.CLIENT_FAILURE;
+        }
+        pendingBatch = null;
+        if (statusCode == StatusCode.SUCCESS) {
+            statusCode = batchStatus;
+        }
+    }
+
+    private StatusCode send(List<AgentProjectInfo> projects, int batchNumber) throws InterruptedException {
+        long delayMillis = retryDelayMillis;
+        for (int attempt = 0; ; attempt++) {
+            logger.info("Sending batch {} with {} projects", batchNumber, projects.size());
+            StatusCode batchStatus;
+            try {
+                batchStatus = sender.apply(projects);
+            } catch (RuntimeException e) {
+                logger.error("Error sending batch {}: {}", batchNumber, e.getMessage());
+                logger.debug("Error sending batch {}", batchNumber, e);
+                batchStatus = StatusCode.CONNECTION_FAILURE;
+            }
+            if (!isTransient(batchStatus) || attempt >= retries) {
+                if (batchStatus != StatusCode.SUCCESS) {
+                    logger.error("Batch {} failed with {}, {} projects were not sent", batchNumber, batchStatus, projects.size());
+                }
+                return batchStatus;
+            }
+            logger.warn("Batch {} failed with {}, sending it again in {} ms", batchNumber, batchStatus, delayMillis);
+            Thread.sleep(delayMillis);
+            delayMillis *= 2;
+        }
+    }
+
+    private boolean isTransient(StatusCode batchStatus) {
+        return batchStatus == StatusCode.CONNECTION_FAILURE || batchStatus == StatusCode.SERVER_FAILURE;
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and counters of an agent run, per phase and per image / container.
+ * <p>
+ * Phases that run more than once for the same subject are summed. The metrics are written as a JSON report and as a
+ * Prometheus textfile collector file, both are replaced atomically.
+ */
+public class ScanMetrics {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ScanMetrics.class);
+
+    // subjects
+    public static final String RUN = "run";
+    public static final String IMAGE = "image";
+    public static final String CONTAINER = "container";
+    public static final String RUN_ID = "total";
+
+    // phases
+    public static final String PULL = "pull";
+    public static final String PACKAGES = "packages";
+    public static final String DIFF = "diff";
+    public static final String EXPORT = "export";
+    public static final String EXTRACT = "extract";
+    public static final String SCAN = "scan";
+    public static final String CREATE_PROJECTS = "create_projects";
+    public static final String SEND = "send";
+
+    // counters
+    public static final String EXPORTED_BYTES = "exported_bytes";
+    public static final String ENTRIES_SEEN = "entries_seen";
+    public static final String ENTRIES_EXTRACTED = "entries_extracted";
+    public static final String ENTRIES_HASHED = "entries_hashed";
+    public static final String EXTRACTED_BYTES = "extracted_bytes";
+    public static final String DEPENDENCIES = "dependencies";
+    public static final String PACKAGES_FOUND = "packages";
+    public static final String PEAK_SCRATCH_BYTES = "peak_scratch_reserved_bytes";
+
+    private static final String METRIC_PREFIX = "whitesource_docker_";
+    private static final String PHASE_METRIC = METRIC_PREFIX + "phase_seconds";
+    private static final String COUNTER_METRIC = METRIC_PREFIX + "counter";
+    private static final String RUN_METRIC = METRIC_PREFIX + "run_duration_seconds";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String NEW_LINE = "\n";
+    private static final String KEY_SEPARATOR = "/";
+    private static final double MILLIS_PER_SECOND = 1000;
+
+    /* --- Members --- */
+
+    private final String agentVersion;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Subject> subjects = new LinkedHashMap<>();
+
+    /* --- Constructors --- */
+
+    public ScanMetrics(String agentVersion) {
+        this.agentVersion = agentVersion;
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * @return the start of a phase, to pass to {@link #addPhase}
+     */
+    public long startPhase() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since the start of the phase to the phase of the subject.
+     */
+    public void addPhase(String scope, String id, String phase, long phaseStart) {
+        addPhaseMillis(scope, id, phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStart));
+    }
+
+    public synchronized void addPhaseMillis(String scope, String id, String phase, long millis) {
+        Map<String, Long> phases = getSubject(scope, id).phases;
+        Long current = phases.get(phase);
+        phases.put(phase, current == null ? millis : current + millis);
+    }
+
+    public synchronized void addCounter(String scope, String id, String counter, long value) {
+        Map<String, Long> counters = getSubject(scope, id).counters;
+        Long current = counters.get(counter);
+        counters.put(counter, current == null ? value : current + value);
+    }
+
+    public synchronized void maxCounter(String scope, String id, String counter, long value) {
+        Map<String, Long> counters = getSubject(scope, id).counters;
+        Long current = counters.get(counter);
+        counters.put(counter, current == null ? value : Math.max(current, value));
+    }
+
+    /**
+     * Write the JSON report, if a path is given.
+     */
+    public void writeReport(String path) {
+        if (path == null || path.trim().isEmpty()) {
+            return;
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        synchronized (this) {
+            report.put("agentVersion", agentVersion);
+            report.put("startTime", startTime);
+            report.put("durationMillis", getDurationMillis());
+            for (Subject subject : subjects.values()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> scope = (Map<String, Object>) report.computeIfAbsent(subject.scope + "s", key -> new LinkedHashMap<>());
+                Map<String, Object> values = new LinkedHashMap<>();
+                values.put("phaseMillis", new LinkedHashMap<>(subject.phases));
+                values.put("counters", new LinkedHashMap<>(subject.counters));
+                scope.put(subject.id, values);
+            }
+        }
+        try {
+            writeAtomically(new File(path), new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+            logger.info("Scan metrics report written to {}", path);
+        } catch (IOException e) {
+            logger.warn("Error writing scan metrics report {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format, if a path is given (it should end with ".prom").
+     */
+    public void writePrometheus(String path) {
+        if (path == null || path.trim().isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            String version = escape(agentVersion);
+            sb.append("# HELP ").append(RUN_METRIC).append(" Duration of the agent run.").append(NEW_LINE);
+            sb.append("# TYPE ").append(RUN_METRIC).append(" gauge").append(NEW_LINE);
+            sb.append(RUN_METRIC).append("{version=\"").append(version).append("\"} ")
+                    .append(toSeconds(getDurationMillis())).append(NEW_LINE);
+
+            sb.append("# HELP ").append(PHASE_METRIC).append(" Time spent in each phase of the scan.").append(NEW_LINE);
+            sb.append("# TYPE ").append(PHASE_METRIC).append(" gauge").append(NEW_LINE);
+            for (Subject subject : subjects.values()) {
+                for (Map.Entry<String, Long> phase : subject.phases.entrySet()) {
+                    sb.append(PHASE_METRIC).append(getLabels(version, subject, "phase", phase.getKey())).append(' ')
+                            .append(toSeconds(phase.getValue())).append(NEW_LINE);
+                }
+            }
+
+            sb.append("# HELP ").append(COUNTER_METRIC).append(" Bytes, entries and dependencies counted during the scan.").append(NEW_LINE);
+            sb.append("# TYPE ").append(COUNTER_METRIC).append(" gauge").append(NEW_LINE);
+            for (Subject subject : subjects.values()) {
+                for (Map.Entry<String, Long> counter : subject.counters.entrySet()) {
+                    sb.append(COUNTER_METRIC).append(getLabels(version, subject, "counter", counter.getKey())).append(' ')
+                            .append(counter.getValue()).append(NEW_LINE);
+                }
+            }
+        }
+        try {
+            writeAtomically(new File(path), sb.toString());
+            logger.info("Scan metrics written to {}", path);
+        } catch (IOException e) {
+            logger.warn("Error writing scan metrics {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the images and containers, the run totals are kept.
+     */
+    public synchronized void resetSubjects() {
+        subjects.values().removeIf(subject -> !RUN.equals(subject.scope));
+    }
+
+    public synchronized Map<String, Long> getPhases(String scope, String id) {
+        return new LinkedHashMap<>(getSubject(scope, id).phases);
+    }
+
+    public synchronized Map<String, Long> getCounters(String scope, String id) {
+        return new LinkedHashMap<>(getSubject(scope, id).counters);
+    }
+
+    /* --- Private methods --- */
+
+    private Subject getSubject(String scope, String id) {
+        return subjects.computeIfAbsent(scope + KEY_SEPARATOR + id, key -> new Subject(scope, id));
+    }
+
+    private long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private String getLabels(String version, Subject subject, String name, String value) {
+        return "{version=\"" + version + "\",scope=\"" + subject.scope + "\",id=\"" + escape(subject.id) + "\"," +
+                name + "=\"" + value + "\"}";
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue == null ? "" : labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String toSeconds(long millis) {
+        return String.format(Locale.ENGLISH, "%.3f", millis / MILLIS_PER_SECOND);
+    }
+
+    /**
+     * Collectors may read the file at any time, so it is replaced in a single rename.
+     */
+    private static void writeAtomically(File file, String content) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        FileUtils.writeStringToFile(tempFile, content, StandardCharsets.UTF_8);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /* --- Nested classes --- */
+
+    private static class Subject {
+
+        private final String scope;
+        private final String id;
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+        private final Map<String, Long> counters = new LinkedHashMap<>();
+
+        private Subject(String scope, String id) {
+            this.scope = scope;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2016 WhiteSource Ltd.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.whitesource.docker;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Temporary disk space of a single agent run.
+ * <p>
+ * Every run gets its own folder under the scratch root and every scan its own folder inside it, so agent runs on the
+ * same host never touch each other's files. Scans reserve their estimated size before they write anything and wait
+ * while the quota is used up. Scan folders are deleted in the background, their space is released once they are gone.
+ */
+public class ScratchSpace {
+
+    /* --- Static members --- */
+
+    private static final Logger logger = LoggerFactory.getLogger(ScratchSpace.class);
+
+    private static final String RUN_FOLDER_PREFIX = "WhiteSource-Docker-";
+    private static final String CLEANUP_THREAD_NAME = "scratch-cleanup";
+    private static final String DASH = "-";
+    private static final long CLEANUP_TIMEOUT_MINUTES = 10;
+
+    /* --- Members --- */
+
+    private final File runDir;
+    private final long quota;
+    private final ExecutorService cleanupExecutor;
+    private long reserved;
+    private long peakReserved;
+
+    /* --- Constructors --- */
+
+    /**
+     * @param rootDir folder that holds the run folder, may be shared by several agent runs
+     * @param quota   maximum number of bytes reserved at the same time, 0 for no limit
+     */
+    public ScratchSpace(File rootDir, long quota) throws IOException {
+        rootDir.mkdirs();
+        this.runDir = Files.createTempDirectory(rootDir.toPath(), RUN_FOLDER_PREFIX).toFile();
+        this.quota = quota;
+        this.cleanupExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, CLEANUP_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* --- Public methods --- */
+
+    /**
+     * Create a unique folder for a scan.
+     */
+    public File createScanDir(String name) throws IOException {
+        return Files.createTempDirectory(runDir.toPath(), name + DASH).toFile();
+    }
+
+    /**
+     * Reserve disk space for a scan, waiting while other scans hold the quota.
+     * A scan bigger than the quota may still run on its own.
+     */
+    public synchronized void reserve(long bytes) throws InterruptedException {
+        if (quota > 0) {
+            boolean waited = false;
+            while (reserved > 0 && reserved + bytes > quota) {
+                if (!waited) {
+                    logger.info("Waiting for scratch space ({} MB reserved of {} MB)", reserved / FileUtils.ONE_MB, quota / FileUtils.ONE_MB);
+                    waited = true;
+                }
+                wait();
+            }
+        }
+        reserved += bytes;
+        peakReserved = Math.max(peakReserved, reserved);
+    }
+
+    /**
+     * Release reserved disk space without deleting anything.
+     */
+    public synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+        notifyAll();
+    }
+
+    /**
+     * Delete folders and files in the background and release their reserved space once they are deleted.
+     */
+    public void deleteAsync(long reservedBytes, File... files) {
+        try {
+            cleanupExecutor.submit(() -> {
+                try {
+                    for (File file : files) {
+                        FileUtils.deleteQuietly(file);
+                    }
+                } finally {
+                    release(reservedBytes);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the cleanup thread is gone, delete in place
+            logger.debug("Deleting in place: {}", e.getMessage());
+            for (File file : files) {
+                FileUtils.deleteQuietly(file);
+            }
+            release(reservedBytes);
+        }
+    }
+
+    /**
+     * Wait for the pending deletions and delete the run folder.
+     */
+    public void close() {
+        cleanupExecutor.shutdown();
+        try {
+            if (!cleanupExecutor.awaitTermination(CLEANUP_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Scratch space cleanup did not finish in {} minutes", CLEANUP_TIMEOUT_MINUTES);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the scratch space cleanup");
+            Thread.currentThread().interrupt();
+        }
+        FileUtils.deleteQuietly(runDir);
+    }
+
+    /**
+     * @return the most bytes that were reserved at the same time
+     */
+    public synchronized long getPeakReserved() {
+        return peakReserved;
+    }
+
+    public File getRunDir() {
+        return runDir;
+    }
+}
@@ -0,0 +1,188 @@
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.ContainerDiffCmd;
+import com.github.dockerjava.api.command.CopyArchiveFromContainerCmd;
+import com.github.dockerjava.api.model.ChangeLog;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.docker.ContainerDiffScanner;
+import org.whitesource.docker.ContainerStateStore;
+import org.whitesource.docker.ImageLayerExtractor;
+import org.whitesource.docker.PathClassifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class ContainerDiffScannerTest {
+
+    public static final String CONTAINER_ID = "0123456789ab";
+    // kinds of the container diff
+    public static final int MODIFIED = 0;
+    public static final int ADDED = 1;
+    public static final int DELETED = 2;
+
+    private File tempDir;
+    private final ContainerDiffScanner diffScanner = new ContainerDiffScanner(
+            new PathClassifier(new String[]{"**/*.jar"}, new String[0], false, 0));
+    private final AtomicInteger layerScans = new AtomicInteger();
+    private final ImageLayerExtractor.LayerScanner layerScanner = dir -> {
+        layerScans.incrementAndGet();
+        List<DependencyInfo> dependencies = new ArrayList<>();
+        for (File file : FileUtils.listFiles(dir, null, true)) {
+            DependencyInfo dependencyInfo = new DependencyInfo(file.getName());
+            dependencyInfo.setSystemPath(file.getPath());
+            dependencies.add(dependencyInfo);
+        }
+        return dependencies;
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("container-diff").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void shouldReuseTheLastResultOfUnchangedFiles() throws Exception {
+        List<String> copiedPaths = new ArrayList<>();
+        DockerClient dockerClient = createDockerClient(copiedPaths,
+                createChanges(ADDED, "/opt/app", ADDED, "/opt/app/lib.jar", MODIFIED, "/usr/share/app.jar", DELETED, "/usr/lib/old.jar"),
+                "app/lib.jar", 1000L, "app.jar", 2000L);
+
+        ContainerDiffScanner.DiffResult result = diffScanner.scan(dockerClient, CONTAINER_ID, new File(tempDir, "first"), null, layerScanner);
+        // an added folder is copied as a whole
+        Assert.assertEquals(Arrays.asList("/opt/app", "/usr/share/app.jar"), copiedPaths);
+        Assert.assertEquals(4 + ":" + 1000L, result.getFingerprint().get("opt/app/lib.jar"));
+        Assert.assertEquals(4 + ":" + 2000L, result.getFingerprint().get("usr/share/app.jar"));
+        Assert.assertEquals(2, result.getDependencies().size());
+        Assert.assertEquals(1, layerScans.get());
+        Assert.assertFalse(result.isReused());
+        Assert.assertFalse(result.isPackagesChanged());
+        Assert.assertTrue(result.hides(createDependency("/usr/lib/old.jar")));
+        Assert.assertTrue(result.hides(createDependency("usr/share/app.jar")));
+        Assert.assertFalse(result.hides(createDependency("usr/lib/guava.jar")));
+
+        ContainerStateStore.ContainerState lastState = new ContainerStateStore.ContainerState("sha256:image",
+                result.getDependencies(), result.getFingerprint());
+        ContainerDiffScanner.DiffResult unchanged = diffScanner.scan(dockerClient, CONTAINER_ID, new File(tempDir, "second"), lastState, layerScanner);
+        Assert.assertTrue(unchanged.isReused());
+        Assert.assertEquals(2, unchanged.getDependencies().size());
+        Assert.assertEquals(1, layerScans.get());
+
+        // a file written again is scanned again, even with the same size
+        DockerClient touched = createDockerClient(new ArrayList<>(),
+                createChanges(ADDED, "/opt/app", ADDED, "/opt/app/lib.jar", MODIFIED, "/usr/share/app.jar"),
+                "app/lib.jar", 1000L, "app.jar", 3000L);
+        ContainerDiffScanner.DiffResult changed = diffScanner.scan(touched, CONTAINER_ID, new File(tempDir, "third"), lastState, layerScanner);
+        Assert.assertFalse(changed.isReused());
+        Assert.assertEquals(2, layerScans.get());
+    }
+
+    @Test
+    public void shouldDetectAChangedPackageDatabase() throws Exception {
+        List<String> copiedPaths = new ArrayList<>();
+        DockerClient dockerClient = createDockerClient(copiedPaths,
+                createChanges(MODIFIED, "/var/lib/dpkg/status", ADDED, "/var/lib/dpkg/info/curl.list", ADDED, "/tmp/app.log"));
+
+        ContainerDiffScanner.DiffResult result = diffScanner.scan(dockerClient, CONTAINER_ID, tempDir, null, layerScanner);
+        Assert.assertTrue(result.isPackagesChanged());
+        // nothing to copy or scan
+        Assert.assertTrue(copiedPaths.isEmpty());
+        Assert.assertTrue(result.getFingerprint().isEmpty());
+        Assert.assertEquals(0, layerScans.get());
+
+        ContainerDiffScanner.DiffResult untouched = diffScanner.scan(createDockerClient(copiedPaths,
+                createChanges(ADDED, "/tmp/app.log", MODIFIED, "/var/lib/dpkg/status-old")), CONTAINER_ID, tempDir, null, layerScanner);
+        Assert.assertFalse(untouched.isPackagesChanged());
+    }
+
+    private DependencyInfo createDependency(String systemPath) {
+        DependencyInfo dependencyInfo = new DependencyInfo("0123456789abcdef0123456789abcdef01234567");
+        dependencyInfo.setSystemPath(systemPath);
+        return dependencyInfo;
+    }
+
+    /**
+     * @param kindsAndPaths pairs of change kind and path, as listed by the container diff
+     */
+    private List<ChangeLog> createChanges(Object... kindsAndPaths) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < kindsAndPaths.length; i += 2) {
+            json.append(i == 0 ? "" : ",").append("{\"Kind\":").append(kindsAndPaths[i])
+                    .append(",\"Path\":\"").append(kindsAndPaths[i + 1]).append("\"}");
+        }
+        return new ObjectMapper().readValue(json.append("]").toString(), new TypeReference<List<ChangeLog>>() { });
+    }
+
+    /**
+     * @param copiedPaths      collects the paths copied out of the container
+     * @param namesAndModTimes pairs of tar entry name and modification time, each copy finds the entries below the
+     *                         copied path
+     */
+    private DockerClient createDockerClient(Collection<String> copiedPaths, List<ChangeLog> changes, Object... namesAndModTimes) {
+        return (DockerClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DockerClient.class}, (proxy, method, args) -> {
+            if ("containerDiffCmd".equals(method.getName())) {
+                return createCommand(ContainerDiffCmd.class, diffArgs -> changes);
+            } else if ("copyArchiveFromContainerCmd".equals(method.getName())) {
+                String resource = (String) args[1];
+                copiedPaths.add(resource);
+                String name = resource.substring(resource.lastIndexOf('/') + 1);
+                return createCommand(CopyArchiveFromContainerCmd.class, copyArgs -> createTar(name, namesAndModTimes));
+            }
+            throw new IllegalStateException("Unexpected command " + method.getName());
+        });
+    }
+
+    private ByteArrayInputStream createTar(String name, Object... namesAndModTimes) {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream taos = new TarArchiveOutputStream(tar)) {
+            for (int i = 0; i < namesAndModTimes.length; i += 2) {
+                String entryName = (String) namesAndModTimes[i];
+                if (entryName.equals(name) || entryName.startsWith(name + "/")) {
+                    byte[] content = "jar!".getBytes(StandardCharsets.UTF_8);
+                    TarArchiveEntry entry = new TarArchiveEntry(entryName);
+                    entry.setSize(content.length);
+                    entry.setModTime(new Date((Long) namesAndModTimes[i + 1]));
+                    taos.putArchiveEntry(entry);
+                    taos.write(content);
+                    taos.closeArchiveEntry();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new ByteArrayInputStream(tar.toByteArray());
+    }
+
+    private <T> T createCommand(Class<T> commandClass, Function<Object[], Object> exec) {
+        return commandClass.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{commandClass}, (proxy, method, args) -> {
+            if ("exec".equals(method.getName())) {
+                return exec.apply(args);
+            }
+            return method.getReturnType().isInstance(proxy) ? proxy : null;
+        }));
+    }
+}
@@ -0,0 +1,124 @@
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.command.ExecCreateCmd;
+import com.github.dockerjava.api.command.ExecCreateCmdResponse;
+import com.github.dockerjava.api.command.ExecStartCmd;
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.StreamType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.whitesource.docker.ContainerPathResolver;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+public class ContainerPathResolverTest {
+
+    public static final String CONTAINER_ID = "0123456789ab";
+    public static final String SITE_PACKAGES = "/usr/local/lib/python*/site-packages";
+
+    @Test
+    public void shouldIgnoreUnsafePaths() {
+        ContainerPathResolver resolver = new ContainerPathResolver(Arrays.asList("usr/lib", "/opt/my app", "/opt/app;rm", "/opt/$HOME", " "));
+        Assert.assertTrue(resolver.isEmpty());
+    }
+
+    @Test
+    public void shouldLeaveOutNestedFolders() {
+        ContainerPathResolver resolver = new ContainerPathResolver(Arrays.asList("/opt", "/opt/app/", "/usr/lib", "/usr/lib", "/usr/libexec"));
+        List<ContainerPathResolver.ExportPath> exportPaths = resolver.resolve(null, CONTAINER_ID);
+
+        Assert.assertEquals(Arrays.asList("/opt", "/usr/lib", "/usr/libexec"), getPaths(exportPaths));
+        Assert.assertEquals("usr/", exportPaths.get(1).getEntryPrefix());
+        Assert.assertNull(exportPaths.get(1).getFilter());
+
+        resolver = new ContainerPathResolver(Arrays.asList("/", "/opt"));
+        Assert.assertEquals(Arrays.asList("/"), getPaths(resolver.resolve(null, CONTAINER_ID)));
+    }
+
+    @Test
+    public void shouldCopyTheFoldersExpandedByTheShell() {
+        ContainerPathResolver resolver = new ContainerPathResolver(Arrays.asList(SITE_PACKAGES, "/usr/local/lib/python3.6/site-packages/app"));
+        DockerClient dockerClient = createDockerClient("/usr/local/lib/python3.6/site-packages\n/usr/local/lib/python3.7/site-packages/\n#end\n");
+
+        List<ContainerPathResolver.ExportPath> exportPaths = resolver.resolve(dockerClient, CONTAINER_ID);
+        Assert.assertEquals(Arrays.asList("/usr/local/lib/python3.6/site-packages", "/usr/local/lib/python3.7/site-packages"), getPaths(exportPaths));
+        Assert.assertNull(exportPaths.get(0).getFilter());
+    }
+
+    @Test
+    public void shouldFilterTheStaticPrefixWithoutAShell() {
+        ContainerPathResolver resolver = new ContainerPathResolver(Arrays.asList(SITE_PACKAGES));
+        // the output ends without the end marker, e.g. the shell died
+        List<ContainerPathResolver.ExportPath> exportPaths = resolver.resolve(createDockerClient("/usr/local/lib/python3.6/site-packages\n"), CONTAINER_ID);
+
+        Assert.assertEquals(Arrays.asList("/usr/local/lib"), getPaths(exportPaths));
+        Assert.assertEquals("usr/local/", exportPaths.get(0).getEntryPrefix());
+        Assert.assertTrue(matches(exportPaths.get(0), "usr/local/lib/python3.6/site-packages/six.py"));
+        Assert.assertTrue(matches(exportPaths.get(0), "usr/local/lib/python3.6/site-packages"));
+        Assert.assertFalse(matches(exportPaths.get(0), "usr/local/lib/python3.6/dist-packages/six.py"));
+        Assert.assertFalse(matches(exportPaths.get(0), "usr/local/lib/python3/6/site-packages/six.py"));
+    }
+
+    @Test
+    public void shouldMatchBracketGlobsLikeTheShell() {
+        ContainerPathResolver resolver = new ContainerPathResolver(Arrays.asList("/opt/[!t]*/lib", "/srv/app[0-9]", "/data/[x"));
+        List<ContainerPathResolver.ExportPath> exportPaths = resolver.resolve(createDockerClient(null), CONTAINER_ID);
+        Assert.assertEquals(Arrays.asList("/opt", "/srv", "/data"), getPaths(exportPaths));
+
+        Assert.assertTrue(matches(exportPaths.get(0), "opt/app/lib/app.jar"));
+        Assert.assertFalse(matches(exportPaths.get(0), "opt/tmp/lib/app.jar"));
+        Assert.assertFalse(matches(exportPaths.get(0), "opt//lib/app.jar"));
+
+        Assert.assertTrue(matches(exportPaths.get(1), "srv/app1/app.jar"));
+        Assert.assertFalse(matches(exportPaths.get(1), "srv/appx/app.jar"));
+
+        // a bracket without its end is a plain character
+        Assert.assertTrue(matches(exportPaths.get(2), "data/[x/app.jar"));
+    }
+
+    private boolean matches(ContainerPathResolver.ExportPath exportPath, String path) {
+        return exportPath.getFilter().matcher(path).matches();
+    }
+
+    private List<String> getPaths(List<ContainerPathResolver.ExportPath> exportPaths) {
+        List<String> paths = new ArrayList<>();
+        for (ContainerPathResolver.ExportPath exportPath : exportPaths) {
+            paths.add(exportPath.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * @param execOutput the output of every exec, null for a container whose exec fails
+     */
+    private DockerClient createDockerClient(String execOutput) {
+        return (DockerClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DockerClient.class}, (proxy, method, args) -> {
+            if (execOutput != null && "execCreateCmd".equals(method.getName())) {
+                return createCommand(ExecCreateCmd.class, execArgs -> new ExecCreateCmdResponse());
+            } else if (execOutput != null && "execStartCmd".equals(method.getName())) {
+                return createCommand(ExecStartCmd.class, execArgs -> {
+                    @SuppressWarnings("unchecked")
+                    ResultCallback<Frame> callback = (ResultCallback<Frame>) execArgs[0];
+                    callback.onNext(new Frame(StreamType.STDOUT, execOutput.getBytes(StandardCharsets.UTF_8)));
+                    callback.onComplete();
+                    return callback;
+                });
+            }
+            throw new IllegalStateException("No shell in the container");
+        });
+    }
+
+    private <T> T createCommand(Class<T> commandClass, Function<Object[], Object> exec) {
+        return commandClass.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{commandClass}, (proxy, method, args) -> {
+            if ("exec".equals(method.getName())) {
+                return exec.apply(args);
+            }
+            return method.getReturnType().isInstance(proxy) ? proxy : null;
+        }));
+    }
+}
@@ -0,0 +1,88 @@
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.docker.ContainerStateStore;
+import org.whitesource.docker.ImageScanResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class ContainerStateStoreTest {
+
+    public static final String IMAGE_ID = "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    public static final String FIRST_CONTAINER_ID = "0123456789ab";
+    public static final String SECOND_CONTAINER_ID = "ba9876543210";
+
+    private File stateDir;
+
+    @Before
+    public void setUp() throws IOException {
+        stateDir = Files.createTempDirectory("container-state").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(stateDir);
+    }
+
+    @Test
+    public void shouldStoreTheImageResultOncePerImage() throws IOException {
+        ContainerStateStore stateStore = new ContainerStateStore(stateDir, "scan");
+        ImageScanResult imageResult = new ImageScanResult(Arrays.asList(new DependencyInfo("guava-19.0.jar")),
+                Arrays.asList(new DependencyInfo(null, "libc6", "2.24-11")));
+        stateStore.put(FIRST_CONTAINER_ID, new ContainerStateStore.ContainerState(IMAGE_ID,
+                Arrays.asList(new DependencyInfo("app.jar")), Collections.singletonMap("opt/app.jar", "3:1000")), imageResult);
+        stateStore.put(SECOND_CONTAINER_ID, new ContainerStateStore.ContainerState(IMAGE_ID,
+                Collections.emptyList(), Collections.emptyMap()), imageResult);
+
+        // the containers keep their own diff, the image result is written once
+        Assert.assertEquals(1, stateDir.listFiles((dir, name) -> name.endsWith(".image")).length);
+        Assert.assertEquals(2, stateDir.listFiles((dir, name) -> name.endsWith(".container")).length);
+        // plain JSON, nothing but the states is read back from the folder
+        Assert.assertTrue(FileUtils.readFileToString(new File(stateDir, FIRST_CONTAINER_ID + ".container"), StandardCharsets.UTF_8)
+                .startsWith("{"));
+
+        ContainerStateStore nextRun = new ContainerStateStore(stateDir, "scan");
+        ContainerStateStore.ContainerState state = nextRun.get(FIRST_CONTAINER_ID);
+        Assert.assertEquals(IMAGE_ID, state.getImageId());
+        Assert.assertEquals("app.jar", state.getLayerDependencies().get(0).getSha1());
+        Assert.assertEquals("3:1000", state.getLayerFingerprint().get("opt/app.jar"));
+        Assert.assertTrue(nextRun.get(SECOND_CONTAINER_ID).getLayerDependencies().isEmpty());
+
+        ImageScanResult lastImageResult = nextRun.getImageResult(state.getImageId());
+        Assert.assertEquals("guava-19.0.jar", lastImageResult.getDependencies().iterator().next().getSha1());
+        Assert.assertEquals("libc6", lastImageResult.getPackages().iterator().next().getArtifactId());
+
+        // a different scan configuration never reuses the state
+        ContainerStateStore otherConfig = new ContainerStateStore(stateDir, "other");
+        Assert.assertNull(otherConfig.get(FIRST_CONTAINER_ID));
+        Assert.assertNull(otherConfig.getImageResult(IMAGE_ID));
+    }
+
+    @Test
+    public void shouldRemoveTheStatesOfRemovedContainersAndUnusedImages() {
+        ContainerStateStore stateStore = new ContainerStateStore(stateDir, "scan");
+        ImageScanResult imageResult = new ImageScanResult(Arrays.asList(new DependencyInfo("guava-19.0.jar")), Collections.emptyList());
+        stateStore.put(FIRST_CONTAINER_ID, new ContainerStateStore.ContainerState(IMAGE_ID,
+                Collections.emptyList(), Collections.emptyMap()), imageResult);
+        stateStore.put(SECOND_CONTAINER_ID, new ContainerStateStore.ContainerState(IMAGE_ID,
+                Collections.emptyList(), Collections.emptyMap()), imageResult);
+
+        stateStore.retain(new HashSet<>(Arrays.asList(SECOND_CONTAINER_ID)));
+        Assert.assertNull(stateStore.get(FIRST_CONTAINER_ID));
+        Assert.assertNotNull(stateStore.getImageResult(IMAGE_ID));
+
+        stateStore.retain(Collections.emptySet());
+        Assert.assertNull(stateStore.get(SECOND_CONTAINER_ID));
+        Assert.assertNull(stateStore.getImageResult(IMAGE_ID));
+        Assert.assertEquals(0, stateDir.listFiles().length);
+    }
+}
@@ -0,0 +1,43 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.docker.DependencyPool;
+
+import java.util.ArrayList;
+
+public class DependencyPoolTest {
+
+    @Test
+    public void shouldShareTheSameDependenciesOfSeveralProjects() {
+        DependencyPool dependencyPool = new DependencyPool();
+        AgentProjectInfo first = createProject("libc6_2.24-11_amd64.deb", "/usr/lib/app/lib.jar");
+        AgentProjectInfo second = createProject("libc6_2.24-11_amd64.deb", "/usr/lib/app/lib.jar");
+        AgentProjectInfo moved = createProject("libc6_2.24-11_amd64.deb", "/opt/app/lib.jar");
+        dependencyPool.intern(first);
+        dependencyPool.intern(second);
+        dependencyPool.intern(moved);
+
+        Assert.assertSame(get(first, 0), get(second, 0));
+        Assert.assertSame(get(first, 1), get(second, 1));
+        Assert.assertSame(get(first, 0), get(moved, 0));
+        // the same file at another path stays a dependency of its own
+        Assert.assertNotSame(get(first, 1), get(moved, 1));
+        Assert.assertEquals("/opt/app/lib.jar", get(moved, 1).getSystemPath());
+        Assert.assertEquals(3, dependencyPool.size());
+    }
+
+    private DependencyInfo get(AgentProjectInfo projectInfo, int index) {
+        return new ArrayList<>(projectInfo.getDependencies()).get(index);
+    }
+
+    private AgentProjectInfo createProject(String packageName, String jarPath) {
+        AgentProjectInfo projectInfo = new AgentProjectInfo();
+        projectInfo.getDependencies().add(new DependencyInfo(null, packageName, "2.24-11"));
+        DependencyInfo jar = new DependencyInfo("0123456789abcdef0123456789abcdef01234567");
+        jar.setArtifactId("lib.jar");
+        jar.setSystemPath(jarPath);
+        projectInfo.getDependencies().add(jar);
+        return projectInfo;
+    }
+}
@@ -0,0 +1,79 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.docker.ExtractProgressIndicator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public class ExtractProgressIndicatorTest {
+
+    private Locale defaultLocale;
+
+    @Before
+    public void setUp() {
+        defaultLocale = Locale.getDefault();
+        // a decimal comma must not end up in the progress bar
+        Locale.setDefault(Locale.GERMANY);
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void shouldCalculateTheRateAndEtaOfTheExport() throws Exception {
+        ExtractProgressIndicator progressIndicator = new ExtractProgressIndicator(
+                new ByteArrayInputStream(new byte[(int) FileUtils.ONE_MB]), 4 * FileUtils.ONE_MB, false);
+        Assert.assertEquals(-1, progressIndicator.getEtaSeconds());
+
+        Thread.sleep(100);
+        IOUtils.toByteArray(progressIndicator);
+        progressIndicator.finished();
+
+        // the clock stops with the stream
+        long elapsedMillis = progressIndicator.getElapsedMillis();
+        Thread.sleep(20);
+        Assert.assertEquals(elapsedMillis, progressIndicator.getElapsedMillis());
+        Assert.assertTrue(elapsedMillis >= 100);
+
+        double bytesPerSecond = progressIndicator.getBytesPerSecond();
+        Assert.assertEquals(FileUtils.ONE_MB, progressIndicator.getBytesRead());
+        Assert.assertEquals(FileUtils.ONE_MB * 1000.0 / elapsedMillis, bytesPerSecond, 0.001);
+        Assert.assertEquals((long) (3 * FileUtils.ONE_MB / bytesPerSecond), progressIndicator.getEtaSeconds());
+    }
+
+    @Test
+    public void shouldNotEstimateWithoutAnExpectedSize() throws IOException {
+        ExtractProgressIndicator unknownSize = new ExtractProgressIndicator(new ByteArrayInputStream(new byte[1024]), 0, false);
+        IOUtils.toByteArray(unknownSize);
+        Assert.assertEquals(-1, unknownSize.getEtaSeconds());
+
+        // the export may be bigger than the image
+        ExtractProgressIndicator biggerThanExpected = new ExtractProgressIndicator(new ByteArrayInputStream(new byte[1024]), 512, false);
+        IOUtils.toByteArray(biggerThanExpected);
+        Assert.assertEquals(-1, biggerThanExpected.getEtaSeconds());
+    }
+
+    @Test
+    public void shouldDrawTheRateWithADecimalPoint() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        ExtractProgressIndicator progressIndicator = new ExtractProgressIndicator(new ByteArrayInputStream(new byte[2048]),
+                4096, true, new PrintStream(console, true, "UTF-8"));
+        Thread.sleep(ExtractProgressIndicator.REFRESH_RATE + 50);
+        Assert.assertEquals(1024, progressIndicator.read(new byte[1024]));
+
+        String progressBar = new String(console.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(progressBar, progressBar.contains("25% - "));
+        Assert.assertTrue(progressBar, progressBar.matches("(?s).* \\d+\\.\\d MB/s.*"));
+        progressIndicator.close();
+    }
+}
@@ -0,0 +1,551 @@
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.docker.ImageArchive;
+import org.whitesource.docker.ImageLayerExtractor;
+import org.whitesource.docker.LayerCache;
+import org.whitesource.docker.LayerDecompressor;
+import org.whitesource.docker.OciImageLayout;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+public class ImageLayerExtractorTest {
+
+    public static final String BASE_LAYER = "aaa/layer.tar";
+    public static final String APP_LAYER = "bbb/layer.tar";
+    public static final String MANIFEST = "[{\"Config\":\"ccc.json\",\"RepoTags\":[\"test:latest\"],\"Layers\":[\"aaa/layer.tar\",\"bbb/layer.tar\"]}]";
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("image-layer-extractor").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void shouldExtractOnlyTheMergedFileSystem() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/removed.jar", "removed");
+        baseFiles.put("usr/lib/replaced.jar", "old");
+        baseFiles.put("opt/cleared/old.jar", "cleared");
+        baseFiles.put("usr/lib/kept.jar", "kept");
+        baseFiles.put("etc/hostname", "not matching");
+
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/.wh.removed.jar", "");
+        appFiles.put("usr/lib/replaced.jar", "new");
+        appFiles.put("opt/cleared/.wh..wh..opq", "");
+        appFiles.put("opt/cleared/new.jar", "new");
+
+        // the manifest is written last, like 'docker save' does
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        File extractDir = new File(tempDir, "extract");
+        File layersDir = new File(tempDir, "layers");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, layersDir);
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(image)));
+        int mergedFiles = extractor.merge();
+
+        Assert.assertEquals(3, mergedFiles);
+        Assert.assertFalse(new File(extractDir, "usr/lib/removed.jar").exists());
+        Assert.assertFalse(new File(extractDir, "opt/cleared/old.jar").exists());
+        Assert.assertFalse(new File(extractDir, "etc/hostname").exists());
+        Assert.assertTrue(new File(extractDir, "usr/lib/kept.jar").exists());
+        Assert.assertTrue(new File(extractDir, "opt/cleared/new.jar").exists());
+        Assert.assertEquals("new", FileUtils.readFileToString(new File(extractDir, "usr/lib/replaced.jar"), StandardCharsets.UTF_8));
+        Assert.assertFalse(layersDir.exists());
+    }
+
+    @Test
+    public void shouldReplaceFoldersAndFilesOfLowerLayers() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("opt/app.jar/lib/exploded.jar", "exploded");
+        baseFiles.put("opt/app.jar/lib/other.jar", "exploded");
+        baseFiles.put("usr/lib/plugins.jar", "file");
+
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        // a file where the lower layer had a folder and the other way around
+        appFiles.put("opt/app.jar", "packed");
+        appFiles.put("usr/lib/plugins.jar/plugin.jar", "plugin");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        File extractDir = new File(tempDir, "extract");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"));
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(image)));
+        for (Set<String> visiblePaths : extractor.getVisiblePaths().values()) {
+            Assert.assertFalse(visiblePaths.contains("opt/app.jar/lib/exploded.jar"));
+            Assert.assertFalse(visiblePaths.contains("usr/lib/plugins.jar"));
+        }
+
+        Assert.assertEquals(2, extractor.merge());
+        Assert.assertEquals("packed", FileUtils.readFileToString(new File(extractDir, "opt/app.jar"), StandardCharsets.UTF_8));
+        Assert.assertEquals("plugin", FileUtils.readFileToString(new File(extractDir, "usr/lib/plugins.jar/plugin.jar"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldScanCachedLayersOnlyOnce() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/base.jar", "base");
+        baseFiles.put("usr/lib/replaced.jar", "old");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/replaced.jar", "new");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        byte[] imageTar = createBinaryTar(image);
+
+        LayerCache layerCache = new LayerCache(new File(tempDir, "cache"), FileUtils.ONE_MB, "test");
+        List<File> scannedLayers = new ArrayList<>();
+        ImageLayerExtractor.LayerScanner layerScanner = layerDir -> {
+            scannedLayers.add(layerDir);
+            List<DependencyInfo> dependencies = new ArrayList<>();
+            for (File file : FileUtils.listFiles(layerDir, null, true)) {
+                DependencyInfo dependencyInfo = new DependencyInfo(file.getName());
+                dependencyInfo.setSystemPath(file.getPath());
+                dependencies.add(dependencyInfo);
+            }
+            return dependencies;
+        };
+
+        for (int run = 0; run < 2; run++) {
+            ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"), layerCache);
+            extractor.extract(new ByteArrayInputStream(imageTar));
+            List<DependencyInfo> dependencies = extractor.scanLayers(layerScanner);
+
+            Set<String> systemPaths = new HashSet<>();
+            for (DependencyInfo dependency : dependencies) {
+                systemPaths.add(dependency.getSystemPath());
+            }
+            Assert.assertEquals(2, dependencies.size());
+            Assert.assertEquals(new HashSet<>(Arrays.asList("/usr/lib/base.jar", "/usr/lib/replaced.jar")), systemPaths);
+        }
+        Assert.assertEquals(2, scannedLayers.size());
+    }
+
+    @Test
+    public void shouldCacheLayersByTheirDiffIds() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/base.jar", "base");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/app.jar", "app");
+        byte[] baseLayer = createTar(baseFiles);
+        byte[] appLayer = createTar(appFiles);
+
+        Map<String, byte[]> streamedImage = new LinkedHashMap<>();
+        streamedImage.put(BASE_LAYER, baseLayer);
+        streamedImage.put(APP_LAYER, appLayer);
+        streamedImage.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        // the same base layer below another parent gets another v1 id in 'docker save'
+        String config = "{\"rootfs\":{\"type\":\"layers\",\"diff_ids\":[\"sha256:" + DigestUtils.sha256Hex(baseLayer) +
+                "\",\"sha256:" + DigestUtils.sha256Hex("other") + "\"]}}";
+        Map<String, String> otherFiles = new LinkedHashMap<>();
+        otherFiles.put("usr/lib/other.jar", "other");
+        Map<String, byte[]> otherImage = new LinkedHashMap<>();
+        otherImage.put("manifest.json", "[{\"Config\":\"fff.json\",\"Layers\":[\"ddd/layer.tar\",\"eee/layer.tar\"]}]".getBytes(StandardCharsets.UTF_8));
+        otherImage.put("fff.json", config.getBytes(StandardCharsets.UTF_8));
+        otherImage.put("ddd/layer.tar", baseLayer);
+        otherImage.put("eee/layer.tar", createTar(otherFiles));
+        File archiveFile = new File(tempDir, "other.tar");
+        FileUtils.writeByteArrayToFile(archiveFile, createBinaryTar(otherImage));
+        ImageArchive archive = new ImageArchive(archiveFile);
+        Assert.assertEquals(Arrays.asList("sha256:" + DigestUtils.sha256Hex(baseLayer), "sha256:" + DigestUtils.sha256Hex("other")),
+                archive.getDiffIds(archive.getManifests().get(0)));
+
+        LayerCache layerCache = new LayerCache(new File(tempDir, "cache"), FileUtils.ONE_MB, "test");
+        List<String> scannedFiles = new ArrayList<>();
+        ImageLayerExtractor.LayerScanner layerScanner = layerDir -> {
+            List<DependencyInfo> dependencies = new ArrayList<>();
+            for (File file : FileUtils.listFiles(layerDir, null, true)) {
+                scannedFiles.add(file.getName());
+                DependencyInfo dependencyInfo = new DependencyInfo(file.getName());
+                dependencyInfo.setSystemPath(file.getPath());
+                dependencies.add(dependencyInfo);
+            }
+            return dependencies;
+        };
+
+        ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"), layerCache);
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(streamedImage)));
+        Assert.assertEquals(2, extractor.scanLayers(layerScanner).size());
+        Assert.assertEquals(Arrays.asList("base.jar", "app.jar"), scannedFiles);
+
+        scannedFiles.clear();
+        extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"), layerCache);
+        extractor.extract(archive, archive.getManifests().get(0));
+        List<DependencyInfo> dependencies = extractor.scanLayers(layerScanner);
+
+        Set<String> systemPaths = new HashSet<>();
+        for (DependencyInfo dependency : dependencies) {
+            systemPaths.add(dependency.getSystemPath());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("/usr/lib/base.jar", "/usr/lib/other.jar")), systemPaths);
+        Assert.assertEquals(Collections.singletonList("other.jar"), scannedFiles);
+    }
+
+    @Test
+    public void shouldStageCachedLayersForAMergedScan() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/base.jar", "base");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/app.jar", "app");
+        byte[] baseLayer = createTar(baseFiles);
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, baseLayer);
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        byte[] imageTar = createBinaryTar(image);
+
+        LayerCache layerCache = new LayerCache(new File(tempDir, "cache"), FileUtils.ONE_MB, "test");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"), layerCache);
+        extractor.extract(new ByteArrayInputStream(imageTar));
+        extractor.scanLayers(layerDir -> new ArrayList<>());
+
+        // the layers are in the cache now, the merged scan still gets the whole file system
+        File extractDir = new File(tempDir, "merged");
+        extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"), layerCache);
+        extractor.setMergedScan(true);
+        extractor.extract(new ByteArrayInputStream(imageTar));
+        String imageCacheKey = extractor.getImageCacheKey();
+        Assert.assertEquals(2, extractor.merge());
+        Assert.assertTrue(new File(extractDir, "usr/lib/base.jar").isFile());
+
+        // the key covers all layers in their order and never equals the key of a single layer
+        Map<String, byte[]> baseImage = new LinkedHashMap<>();
+        baseImage.put(BASE_LAYER, baseLayer);
+        baseImage.put("manifest.json", "[{\"Layers\":[\"aaa/layer.tar\"]}]".getBytes(StandardCharsets.UTF_8));
+        ImageLayerExtractor baseExtractor = new ImageLayerExtractor(new File(tempDir, "base"), new File(tempDir, "base-layers"), layerCache);
+        baseExtractor.setMergedScan(true);
+        baseExtractor.extract(new ByteArrayInputStream(createBinaryTar(baseImage)));
+        Assert.assertNotNull(imageCacheKey);
+        Assert.assertNotNull(baseExtractor.getImageCacheKey());
+        Assert.assertNotEquals(imageCacheKey, baseExtractor.getImageCacheKey());
+        Assert.assertNotEquals("sha256:" + DigestUtils.sha256Hex(baseLayer), baseExtractor.getImageCacheKey());
+
+        // without a cache there are no keys
+        ImageLayerExtractor uncached = new ImageLayerExtractor(new File(tempDir, "uncached"), new File(tempDir, "uncached-layers"));
+        uncached.extract(new ByteArrayInputStream(imageTar));
+        Assert.assertNull(uncached.getImageCacheKey());
+    }
+
+    @Test
+    public void shouldHideTheDependenciesOfRemovedArchives() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/removed.war", "removed");
+        baseFiles.put("usr/lib/replaced.war", "old");
+        baseFiles.put("usr/lib/kept.war", "kept");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/.wh.removed.war", "");
+        appFiles.put("usr/lib/replaced.war", "new");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        // the libraries of each archive are reported from the extraction folder of the scanner
+        String extractorDir = new File(tempDir, "archive-extractor").getPath();
+        ImageLayerExtractor.LayerScanner layerScanner = layerDir -> {
+            List<DependencyInfo> dependencies = new ArrayList<>();
+            for (File file : FileUtils.listFiles(layerDir, null, true)) {
+                String path = layerDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                DependencyInfo dependencyInfo = new DependencyInfo(layerDir.getName() + file.getName());
+                dependencyInfo.setSystemPath(extractorDir + "/" + path + "_extracted/WEB-INF/lib/library.jar");
+                dependencies.add(dependencyInfo);
+            }
+            return dependencies;
+        };
+
+        ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"));
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(image)));
+        List<DependencyInfo> dependencies = extractor.scanLayers(layerScanner);
+
+        Set<String> systemPaths = new HashSet<>();
+        for (DependencyInfo dependency : dependencies) {
+            systemPaths.add(dependency.getSystemPath());
+        }
+        Assert.assertEquals(2, dependencies.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                extractorDir + "/usr/lib/kept.war_extracted/WEB-INF/lib/library.jar",
+                extractorDir + "/usr/lib/replaced.war_extracted/WEB-INF/lib/library.jar")), systemPaths);
+        Assert.assertEquals("usr/lib/app.war", ImageLayerExtractor.getArchivePath(
+                "tmp/extractor/123/usr/lib/app.war_extracted/lib/a.jar", new HashSet<>(Arrays.asList("usr/lib/app.war", "lib/a.jar"))));
+        Assert.assertNull(ImageLayerExtractor.getArchivePath("usr/lib/app.jar", new HashSet<>(Arrays.asList("usr/lib/app.jar"))));
+    }
+
+    @Test
+    public void shouldHashPlainBinariesInStream() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/libold.so", "old");
+        baseFiles.put("usr/lib/libkept.so", "kept");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/.wh.libold.so", "");
+        appFiles.put("usr/lib/app.jar", "app");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        File extractDir = new File(tempDir, "extract");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"));
+        extractor.setHashInStream(true);
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(image)));
+
+        // archives are still extracted for the scanner
+        Assert.assertEquals(1, extractor.merge());
+        Assert.assertTrue(new File(extractDir, "usr/lib/app.jar").exists());
+        Assert.assertFalse(new File(extractDir, "usr/lib/libkept.so").exists());
+
+        List<DependencyInfo> hashed = extractor.getHashedDependencies();
+        Assert.assertEquals(1, hashed.size());
+        Assert.assertEquals("/usr/lib/libkept.so", hashed.get(0).getSystemPath());
+        Assert.assertEquals("libkept.so", hashed.get(0).getArtifactId());
+        Assert.assertEquals(DigestUtils.sha1Hex("kept"), hashed.get(0).getSha1());
+    }
+
+    @Test
+    public void shouldReadThePackageDatabaseOfTheFinalImage() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("var/lib/dpkg/status", "Package: libc6\nStatus: install ok installed\nArchitecture: amd64\nVersion: 2.24-11\n\n");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("var/lib/dpkg/status", "Package: libc6\nStatus: install ok installed\nArchitecture: amd64\nVersion: 2.24-11\n\n" +
+                "Package: curl\nStatus: install ok installed\nArchitecture: amd64\nVersion: 1:7.52.1-5\n\n" +
+                "Package: removed\nStatus: deinstall ok config-files\nArchitecture: amd64\nVersion: 1.0\n");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put(BASE_LAYER, createTar(baseFiles));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+
+        ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"));
+        extractor.extract(new ByteArrayInputStream(createBinaryTar(image)));
+
+        Set<String> packages = new HashSet<>();
+        for (DependencyInfo dependency : extractor.getPackages()) {
+            packages.add(dependency.getArtifactId());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("libc6_2.24-11_amd64.deb", "curl_7.52.1-5_amd64.deb")), packages);
+    }
+
+    @Test
+    public void shouldReadTheLayersOfAnImageArchiveOnDisk() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/base.jar", "base");
+        baseFiles.put("usr/lib/replaced.jar", "old");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/replaced.jar", "new");
+
+        // the layer that is not in the manifest is never read
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put("ddd/layer.tar", new byte[]{1, 2, 3});
+        image.put(BASE_LAYER, createTar(baseFiles));
+        File archiveFile = new File(tempDir, "image.tar");
+        FileUtils.writeByteArrayToFile(archiveFile, createBinaryTar(image));
+
+        ImageArchive archive = new ImageArchive(archiveFile);
+        List<ImageArchive.ImageManifest> manifests = archive.getManifests();
+        Assert.assertEquals(1, manifests.size());
+        Assert.assertEquals(Collections.singletonList("test:latest"), manifests.get(0).getRepoTags());
+        Assert.assertEquals(Arrays.asList(BASE_LAYER, APP_LAYER), manifests.get(0).getLayers());
+
+        File extractDir = new File(tempDir, "extract");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"));
+        extractor.extract(archive, manifests.get(0));
+
+        Assert.assertEquals(2, extractor.merge());
+        Assert.assertTrue(new File(extractDir, "usr/lib/base.jar").exists());
+        Assert.assertEquals("new", FileUtils.readFileToString(new File(extractDir, "usr/lib/replaced.jar"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldReadTheLayersOfAnImageArchiveConcurrently() throws IOException {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/removed.jar", "removed");
+        baseFiles.put("opt/cleared/old.jar", "cleared");
+        baseFiles.put("usr/lib/replaced.jar", "old");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/.wh.removed.jar", "");
+        appFiles.put("opt/cleared/.wh..wh..opq", "");
+        appFiles.put("usr/lib/replaced.jar", "new");
+
+        Map<String, byte[]> image = new LinkedHashMap<>();
+        image.put("manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        image.put(APP_LAYER, createTar(appFiles));
+        image.put(BASE_LAYER, createTar(baseFiles));
+        File archiveFile = new File(tempDir, "image.tar");
+        FileUtils.writeByteArrayToFile(archiveFile, createBinaryTar(image));
+        ImageArchive archive = new ImageArchive(archiveFile);
+
+        File extractDir = new File(tempDir, "extract");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"));
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            extractor.extract(archive, archive.getManifests().get(0), executorService);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assert.assertEquals(1, extractor.merge());
+        Assert.assertFalse(new File(extractDir, "usr/lib/removed.jar").exists());
+        Assert.assertFalse(new File(extractDir, "opt/cleared/old.jar").exists());
+        Assert.assertEquals("new", FileUtils.readFileToString(new File(extractDir, "usr/lib/replaced.jar"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldScanTheLayerBlobsOfAnOciLayoutConcurrently() throws Exception {
+        Map<String, String> baseFiles = new LinkedHashMap<>();
+        baseFiles.put("usr/lib/removed.jar", "removed");
+        baseFiles.put("usr/lib/replaced.jar", "old");
+        Map<String, String> appFiles = new LinkedHashMap<>();
+        appFiles.put("usr/lib/.wh.removed.jar", "");
+        appFiles.put("usr/lib/replaced.jar", "new");
+        appFiles.put("usr/lib/app.jar", "app");
+
+        File layoutDir = new File(tempDir, "layout");
+        String baseLayer = writeBlob(layoutDir, gzip(createTar(baseFiles)));
+        // layers may also be uncompressed
+        String appLayer = writeBlob(layoutDir, createTar(appFiles));
+        String config = writeBlob(layoutDir, "{}".getBytes(StandardCharsets.UTF_8));
+        String manifest = writeBlob(layoutDir, ("{\"schemaVersion\":2,\"config\":{\"digest\":\"" + config + "\"},\"layers\":[" +
+                "{\"digest\":\"" + baseLayer + "\"},{\"digest\":\"" + appLayer + "\"}]}").getBytes(StandardCharsets.UTF_8));
+        FileUtils.writeStringToFile(new File(layoutDir, "index.json"), "{\"schemaVersion\":2,\"manifests\":[{\"digest\":\"" + manifest +
+                "\",\"annotations\":{\"org.opencontainers.image.ref.name\":\"1.0\"}}]}", StandardCharsets.UTF_8);
+
+        List<ImageArchive.ImageManifest> manifests = new OciImageLayout(layoutDir).getManifests();
+        Assert.assertEquals(1, manifests.size());
+        Assert.assertEquals(config, manifests.get(0).getConfig());
+        Assert.assertEquals(Collections.singletonList("1.0"), manifests.get(0).getRepoTags());
+        Assert.assertEquals(Arrays.asList(baseLayer, appLayer), manifests.get(0).getLayers());
+
+        ImageLayerExtractor extractor = new ImageLayerExtractor(new File(tempDir, "extract"), new File(tempDir, "layers"));
+        extractor.setLayerOrder(manifests.get(0).getLayers());
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            // the app layer is added first, the manifest order decides the merge
+            List<Future<?>> futures = new ArrayList<>();
+            for (String layer : Arrays.asList(appLayer, baseLayer)) {
+                futures.add(executorService.submit(() -> {
+                    try (InputStream blobStream = new FileInputStream(new OciImageLayout(layoutDir).getBlob(layer))) {
+                        extractor.addLayerEntry(layer, blobStream);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            Map<String, String> contents = new HashMap<>();
+            ImageLayerExtractor.LayerScanner layerScanner = layerDir -> {
+                List<DependencyInfo> dependencies = new ArrayList<>();
+                for (File file : FileUtils.listFiles(layerDir, null, true)) {
+                    DependencyInfo dependencyInfo = new DependencyInfo(file.getName());
+                    dependencyInfo.setSystemPath(file.getPath());
+                    dependencies.add(dependencyInfo);
+                    try {
+                        synchronized (contents) {
+                            // both layers hold the replaced jar, the layer folder keeps their keys apart
+                            contents.put(file.getPath(), FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return dependencies;
+            };
+            Set<String> systemPaths = new HashSet<>();
+            for (DependencyInfo dependency : extractor.scanLayers(layerScanner, executorService)) {
+                Assert.assertTrue(systemPaths.add(dependency.getSystemPath()));
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList("/usr/lib/replaced.jar", "/usr/lib/app.jar")), systemPaths);
+            Assert.assertTrue(contents.containsValue("new"));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldDecompressLargeLayersAheadOfTheTarWalk() throws IOException {
+        // larger than the blocks of the read-ahead inflater
+        byte[] content = new byte[3 * 1024 * 1024 + 7];
+        new Random(1).nextBytes(content);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("usr/lib/large.jar", content);
+        byte[] layer = gzip(createBinaryTar(files));
+
+        File extractDir = new File(tempDir, "extract");
+        ImageLayerExtractor extractor = new ImageLayerExtractor(extractDir, new File(tempDir, "layers"));
+        extractor.setDecompressor(new LayerDecompressor(1));
+        extractor.setLayerOrder(Collections.singletonList("layer"));
+        extractor.addLayerEntry("layer", new ByteArrayInputStream(layer));
+
+        Assert.assertEquals(1, extractor.merge());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(new File(extractDir, "usr/lib/large.jar")));
+    }
+
+    private String writeBlob(File layoutDir, byte[] content) throws IOException {
+        String hex = DigestUtils.sha256Hex(content);
+        FileUtils.writeByteArrayToFile(new File(layoutDir, "blobs/sha256/" + hex), content);
+        return "sha256:" + hex;
+    }
+
+    private byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] createTar(Map<String, String> files) throws IOException {
+        Map<String, byte[]> binaryFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            binaryFiles.put(file.getKey(), file.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return createBinaryTar(binaryFiles);
+    }
+
+    private byte[] createBinaryTar(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TarArchiveOutputStream taos = new TarArchiveOutputStream(bytes);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+            entry.setSize(file.getValue().length);
+            taos.putArchiveEntry(entry);
+            taos.write(file.getValue());
+            taos.closeArchiveEntry();
+        }
+        taos.close();
+        return bytes.toByteArray();
+    }
+}
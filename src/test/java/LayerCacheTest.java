@@ -0,0 +1,85 @@
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.agent.api.model.ChecksumType;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.agent.api.model.DependencyType;
+import org.whitesource.docker.LayerCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+public class LayerCacheTest {
+
+    public static final String DIFF_ID = "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("layer-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    @Test
+    public void shouldStoreTheLayerResultAsJson() throws IOException {
+        DependencyInfo library = new DependencyInfo("0123456789abcdef0123456789abcdef01234567");
+        library.setArtifactId("app.war");
+        library.setSystemPath("/usr/lib/app.war");
+        library.setDependencyType(DependencyType.MAVEN);
+        library.getChecksums().put(ChecksumType.SHA1_OTHER_PLATFORM, "76543210fedcba9876543210fedcba9876543210");
+        DependencyInfo child = new DependencyInfo(null, "guava", "19.0");
+        library.getChildren().add(child);
+        DependencyInfo dpkg = new DependencyInfo(null, "libc6", "2.24-11");
+
+        LayerCache layerCache = new LayerCache(cacheDir, FileUtils.ONE_MB, "scan");
+        layerCache.put(DIFF_ID, new LayerCache.LayerResult(Arrays.asList(library),
+                Collections.singletonMap("/tmp/app.war_extracted/WEB-INF/lib/guava.jar", "usr/lib/app.war"),
+                Collections.singletonMap("var/lib/dpkg/status", Arrays.asList(dpkg)),
+                Arrays.asList("usr/lib/app.war", "var/lib/dpkg/status"), Arrays.asList("usr/lib/old.war")));
+
+        File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(".layer"));
+        Assert.assertEquals(1, entries.length);
+        Assert.assertTrue(FileUtils.readFileToString(entries[0], StandardCharsets.UTF_8).startsWith("{"));
+
+        LayerCache.LayerResult result = new LayerCache(cacheDir, FileUtils.ONE_MB, "scan").get(DIFF_ID);
+        DependencyInfo cachedLibrary = result.getDependencies().get(0);
+        Assert.assertEquals(library, cachedLibrary);
+        Assert.assertEquals("/usr/lib/app.war", cachedLibrary.getSystemPath());
+        Assert.assertEquals(DependencyType.MAVEN, cachedLibrary.getDependencyType());
+        Assert.assertEquals("76543210fedcba9876543210fedcba9876543210", cachedLibrary.getChecksums().get(ChecksumType.SHA1_OTHER_PLATFORM));
+        Assert.assertEquals("guava", cachedLibrary.getChildren().iterator().next().getArtifactId());
+        Assert.assertEquals("usr/lib/app.war", result.getArchivePaths().get("/tmp/app.war_extracted/WEB-INF/lib/guava.jar"));
+        Collection<DependencyInfo> packages = result.getPackages().get("var/lib/dpkg/status");
+        Assert.assertEquals("libc6", packages.iterator().next().getArtifactId());
+        Assert.assertTrue(result.getPaths().contains("var/lib/dpkg/status"));
+        Assert.assertTrue(result.getDeletedPaths().contains("usr/lib/old.war"));
+
+        // another scan configuration never sees the entry
+        Assert.assertNull(new LayerCache(cacheDir, FileUtils.ONE_MB, "other").get(DIFF_ID));
+    }
+
+    @Test
+    public void shouldDropUnreadableEntries() throws IOException {
+        LayerCache layerCache = new LayerCache(cacheDir, FileUtils.ONE_MB, "scan");
+        layerCache.put(DIFF_ID, new LayerCache.LayerResult(Collections.emptyList(), Collections.emptyMap(), Collections.emptyMap(),
+                Collections.emptyList(), Collections.emptyList()));
+        File entry = cacheDir.listFiles((dir, name) -> name.endsWith(".layer"))[0];
+        // e.g. an entry written with java serialization by an older agent
+        FileUtils.writeByteArrayToFile(entry, new byte[]{(byte) 0xac, (byte) 0xed, 0x00, 0x05, 0x73, 0x72});
+
+        Assert.assertNull(layerCache.get(DIFF_ID));
+        Assert.assertFalse(entry.exists());
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.whitesource.agent.api.model.DependencyInfo;
+import org.whitesource.docker.PackageListParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PackageListParserTest {
+
+    @Test
+    public void shouldParseLinesSplitAcrossFrames() {
+        String output = "Desired=Unknown/Install/Remove/Purge/Hold\n" +
+                "||/ Name           Version        Architecture Description\n" +
+                "ii  libc6:amd64    2.24-11        amd64        GNU C Library: Shared libraries \u2013 \u00e9\n" +
+                "rc  removed        1.0            amd64        removed package\n" +
+                "ii  curl           1:7.52.1-5     amd64        command line tool\r\n" +
+                "ii  tzdata         2018e-0        all          time zone data";
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+
+        // every frame boundary splits a line, or a multi-byte character
+        PackageListParser parser = new PackageListParser(PackageListParser.DEBIAN_SECTION, null);
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            parser.write(bytes, offset, Math.min(7, bytes.length - offset));
+        }
+        parser.close();
+
+        Assert.assertEquals(Arrays.asList("libc6_2.24-11_amd64.deb", "curl_7.52.1-5_amd64.deb", "tzdata_2018e-0_all.deb"),
+                getArtifactIds(parser.getPackages()));
+        Assert.assertEquals("7.52.1-5", parser.getPackages().get(1).getVersion());
+    }
+
+    @Test
+    public void shouldParseTheSectionsOfThePackageListScript() {
+        String output = "\u0001\u0000\u0000\u0000\u0000\u0000\u0000\u0010@@whitesource:os-release\n" +
+                "NAME=\"Arch Linux\"\n" +
+                "PRETTY_NAME=\"Arch Linux\"\n" +
+                "@@whitesource:arch\n" +
+                "x86_64\n" +
+                "@@whitesource:pacman\n" +
+                "bash 4.4.019-1\n" +
+                "not a package line\n" +
+                "glibc 2.26-11\n";
+        PackageListParser parser = new PackageListParser();
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        parser.write(bytes, 0, bytes.length);
+        parser.close();
+
+        Assert.assertEquals("Arch Linux", parser.getOsName());
+        Assert.assertEquals("x86_64", parser.getArch());
+        Assert.assertFalse(parser.hasSection(PackageListParser.DEBIAN_SECTION));
+        Assert.assertEquals(Integer.valueOf(2), parser.getSectionPackages().get(PackageListParser.ARCH_LINUX_SECTION));
+        Assert.assertEquals(Arrays.asList("bash-4.4.019-1-x86_64.pkg.tar.xz", "glibc-2.26-11-x86_64.pkg.tar.xz"),
+                getArtifactIds(parser.getPackages()));
+    }
+
+    private List<String> getArtifactIds(List<DependencyInfo> packages) {
+        List<String> artifactIds = new ArrayList<>();
+        for (DependencyInfo dependencyInfo : packages) {
+            artifactIds.add(dependencyInfo.getArtifactId());
+        }
+        return artifactIds;
+    }
+}
@@ -0,0 +1,34 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.whitesource.docker.PathClassifier;
+
+public class PathClassifierTest {
+
+    @Test
+    public void shouldExtractOnlyFilesTheScannerConsiders() {
+        PathClassifier pathClassifier = new PathClassifier(new String[]{"**/*.java", "opt/app/**/*.jar"},
+                new String[]{"**/test/**"}, false, 1);
+
+        Assert.assertTrue(pathClassifier.isMatchingFile("usr/src/Main.java"));
+        Assert.assertTrue(pathClassifier.isMatchingFile("usr/src/Upper.JAVA"));
+        Assert.assertTrue(pathClassifier.isMatchingFile("opt/app/lib/library.jar"));
+        Assert.assertFalse(pathClassifier.isMatchingFile("usr/src/test/MainTest.java"));
+        Assert.assertFalse(pathClassifier.isMatchingFile("etc/hostname"));
+        Assert.assertFalse(pathClassifier.isMatchingFile("usr/src/Main.java.txt"));
+
+        // archives outside the includes are still unpacked by the scanner
+        Assert.assertTrue(pathClassifier.isMatchingFile("usr/share/java/library.jar"));
+        Assert.assertFalse(new PathClassifier(new String[]{"**/*.java"}, new String[0], false, 0)
+                .isMatchingFile("usr/share/java/library.jar"));
+    }
+
+    @Test
+    public void shouldHonourGlobCaseSensitivity() {
+        PathClassifier pathClassifier = new PathClassifier(new String[]{"**/*.java"}, new String[]{"**/Generated*"}, true, 0);
+
+        Assert.assertTrue(pathClassifier.isMatchingFile("usr/src/Main.java"));
+        Assert.assertTrue(pathClassifier.isMatchingFile("usr/src/generated/Main.java"));
+        Assert.assertFalse(pathClassifier.isMatchingFile("usr/src/Upper.JAVA"));
+        Assert.assertFalse(pathClassifier.isMatchingFile("usr/src/GeneratedMain.java"));
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.whitesource.agent.api.model.AgentProjectInfo;
+import org.whitesource.docker.ProjectBatchSender;
+import org.whitesource.fs.StatusCode;
+
+import java.util.*;
+
+public class ProjectBatchSenderTest {
+
+    @Test
+    public void shouldSendFullBatchesAndTheRestOnClose() {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        ProjectBatchSender batchSender = new ProjectBatchSender(projects -> {
+            batchSizes.add(projects.size());
+            return StatusCode.SUCCESS;
+        }, 2, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            batchSender.accept(new AgentProjectInfo());
+        }
+
+        Assert.assertEquals(StatusCode.SUCCESS, batchSender.close());
+        Assert.assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+    }
+
+    @Test
+    public void shouldRetryOnlyTransientFailures() {
+        Deque<StatusCode> results = new ArrayDeque<>(Arrays.asList(StatusCode.CONNECTION_FAILURE, StatusCode.SUCCESS, StatusCode.CLIENT_FAILURE));
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        ProjectBatchSender batchSender = new ProjectBatchSender(projects -> {
+            batchSizes.add(projects.size());
+            return results.poll();
+        }, 1, 2, 1);
+        batchSender.accept(new AgentProjectInfo());
+        batchSender.accept(new AgentProjectInfo());
+
+        // the first batch succeeds with its retry, the client failure of the second one is not retried
+        Assert.assertEquals(StatusCode.CLIENT_FAILURE, batchSender.close());
+        Assert.assertEquals(Arrays.asList(1, 1, 1), batchSizes);
+        Assert.assertTrue(results.isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.docker.ScanMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public class ScanMetricsTest {
+
+    public static final String IMAGE_ID = "0123456789ab";
+    public static final String CONTAINER_ID = "my \"app\"";
+
+    private File tempDir;
+    private Locale defaultLocale;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("scan-metrics").toFile();
+        defaultLocale = Locale.getDefault();
+        // the Prometheus format only knows decimal points
+        Locale.setDefault(Locale.GERMANY);
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void shouldWriteThePhasesAndCountersAsJson() throws IOException {
+        ScanMetrics metrics = createMetrics();
+        File report = new File(tempDir, "reports/metrics.json");
+        metrics.writeReport(report.getPath());
+
+        JsonNode json = new ObjectMapper().readTree(report);
+        Assert.assertEquals("1.0.0", json.get("agentVersion").asText());
+        JsonNode image = json.get("images").get(IMAGE_ID);
+        // phases of the same subject are summed
+        Assert.assertEquals(1500, image.get("phaseMillis").get(ScanMetrics.EXPORT).asLong());
+        Assert.assertEquals(250, image.get("phaseMillis").get(ScanMetrics.SCAN).asLong());
+        Assert.assertEquals(3072, image.get("counters").get(ScanMetrics.EXPORTED_BYTES).asLong());
+        Assert.assertEquals(7, json.get("containers").get(CONTAINER_ID).get("counters").get(ScanMetrics.PACKAGES_FOUND).asLong());
+        Assert.assertEquals(4096, json.get("runs").get(ScanMetrics.RUN_ID).get("counters").get(ScanMetrics.PEAK_SCRATCH_BYTES).asLong());
+    }
+
+    @Test
+    public void shouldWriteThePhasesAndCountersForPrometheus() throws IOException {
+        ScanMetrics metrics = createMetrics();
+        File prometheusFile = new File(tempDir, "metrics.prom");
+        metrics.writePrometheus(prometheusFile.getPath());
+
+        List<String> lines = FileUtils.readLines(prometheusFile, StandardCharsets.UTF_8);
+        Assert.assertTrue(lines.contains("# TYPE whitesource_docker_phase_seconds gauge"));
+        Assert.assertTrue(lines.contains("whitesource_docker_phase_seconds{version=\"1.0.0\",scope=\"image\",id=\"0123456789ab\",phase=\"export\"} 1.500"));
+        Assert.assertTrue(lines.contains("whitesource_docker_counter{version=\"1.0.0\",scope=\"image\",id=\"0123456789ab\",counter=\"exported_bytes\"} 3072"));
+        // label values are escaped
+        Assert.assertTrue(lines.contains("whitesource_docker_counter{version=\"1.0.0\",scope=\"container\",id=\"my \\\"app\\\"\",counter=\"packages\"} 7"));
+        Assert.assertTrue(lines.contains("whitesource_docker_counter{version=\"1.0.0\",scope=\"run\",id=\"total\",counter=\"peak_scratch_reserved_bytes\"} 4096"));
+        for (String line : lines) {
+            Assert.assertTrue(line, line.startsWith("#") || line.matches("whitesource_docker_\\w+\\{.*} \\d+(\\.\\d+)?"));
+        }
+    }
+
+    @Test
+    public void shouldReplaceTheFilesAtomically() throws IOException {
+        File prometheusFile = new File(tempDir, "metrics.prom");
+        FileUtils.writeStringToFile(prometheusFile, "stale metrics of the last run\n", StandardCharsets.UTF_8);
+
+        ScanMetrics metrics = createMetrics();
+        metrics.resetSubjects();
+        metrics.writePrometheus(prometheusFile.getPath());
+
+        String content = FileUtils.readFileToString(prometheusFile, StandardCharsets.UTF_8);
+        Assert.assertFalse(content.contains("stale"));
+        // the run totals survive a reset, the images and containers are gone
+        Assert.assertTrue(content.contains("scope=\"run\""));
+        Assert.assertFalse(content.contains("scope=\"image\""));
+        // only the final file is left, the collector never sees a partial one
+        Assert.assertEquals(Arrays.asList("metrics.prom"), Arrays.asList(tempDir.list()));
+
+        // no path, no file
+        metrics.writeReport(" ");
+        metrics.writePrometheus(null);
+        Assert.assertEquals(1, tempDir.list().length);
+    }
+
+    private ScanMetrics createMetrics() {
+        ScanMetrics metrics = new ScanMetrics("1.0.0");
+        metrics.addPhaseMillis(ScanMetrics.IMAGE, IMAGE_ID, ScanMetrics.EXPORT, 1000);
+        metrics.addPhaseMillis(ScanMetrics.IMAGE, IMAGE_ID, ScanMetrics.EXPORT, 500);
+        metrics.addPhaseMillis(ScanMetrics.IMAGE, IMAGE_ID, ScanMetrics.SCAN, 250);
+        metrics.addCounter(ScanMetrics.IMAGE, IMAGE_ID, ScanMetrics.EXPORTED_BYTES, 1024);
+        metrics.addCounter(ScanMetrics.IMAGE, IMAGE_ID, ScanMetrics.EXPORTED_BYTES, 2048);
+        metrics.addCounter(ScanMetrics.CONTAINER, CONTAINER_ID, ScanMetrics.PACKAGES_FOUND, 7);
+        metrics.maxCounter(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.PEAK_SCRATCH_BYTES, 4096);
+        metrics.maxCounter(ScanMetrics.RUN, ScanMetrics.RUN_ID, ScanMetrics.PEAK_SCRATCH_BYTES, 1024);
+        return metrics;
+    }
+}
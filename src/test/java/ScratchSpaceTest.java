@@ -0,0 +1,73 @@
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.whitesource.docker.ScratchSpace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ScratchSpaceTest {
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("scratch-space").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void shouldWaitForTheQuotaUntilSpaceIsReleased() throws Exception {
+        ScratchSpace scratchSpace = new ScratchSpace(tempDir, 100);
+        scratchSpace.reserve(60);
+
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                scratchSpace.reserve(60);
+                reserved.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        Assert.assertFalse(reserved.await(200, TimeUnit.MILLISECONDS));
+
+        scratchSpace.release(60);
+        Assert.assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(60, scratchSpace.getPeakReserved());
+
+        // a scan bigger than the quota runs once nothing else is reserved
+        scratchSpace.release(60);
+        scratchSpace.reserve(500);
+        Assert.assertEquals(500, scratchSpace.getPeakReserved());
+        scratchSpace.close();
+    }
+
+    @Test
+    public void shouldReleaseTheSpaceOnceTheScanIsDeleted() throws Exception {
+        ScratchSpace scratchSpace = new ScratchSpace(tempDir, 100);
+        scratchSpace.reserve(100);
+        File scanDir = scratchSpace.createScanDir("image");
+        FileUtils.writeStringToFile(new File(scanDir, "extract/usr/lib/app.jar"), "app", StandardCharsets.UTF_8);
+        Assert.assertEquals(scratchSpace.getRunDir(), scanDir.getParentFile());
+
+        scratchSpace.deleteAsync(100, scanDir);
+        // only returns once the deletion released the space
+        scratchSpace.reserve(100);
+        Assert.assertFalse(scanDir.exists());
+
+        scratchSpace.close();
+        Assert.assertFalse(scratchSpace.getRunDir().exists());
+    }
+}
@@ -0,0 +1,44 @@
+package org.whitesource.docker;
+
+import com.github.dockerjava.jaxrs.JerseyDockerCmdExecFactory;
+import com.github.dockerjava.netty.NettyDockerCmdExecFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class DockerAgentTest {
+
+    @Test
+    public void shouldUseTheJerseyTransportByDefault() {
+        Properties config = new Properties();
+        config.setProperty(DockerAgent.DOCKER_SCAN_THREADS, "8");
+        config.setProperty(DockerAgent.DOCKER_MAX_PER_ROUTE_CONNECTIONS, "4");
+        DockerAgent dockerAgent = new DockerAgent(config);
+
+        Assert.assertTrue(dockerAgent.createDockerCmdExecFactory() instanceof JerseyDockerCmdExecFactory);
+        // every worker holds a pooled connection
+        Assert.assertEquals(4, dockerAgent.getScanThreads());
+    }
+
+    @Test
+    public void shouldSelectTheNettyTransport() {
+        Properties config = new Properties();
+        config.setProperty(DockerAgent.DOCKER_TRANSPORT, " Netty ");
+        config.setProperty(DockerAgent.DOCKER_SCAN_THREADS, "8");
+        config.setProperty(DockerAgent.DOCKER_MAX_PER_ROUTE_CONNECTIONS, "4");
+        DockerAgent dockerAgent = new DockerAgent(config);
+
+        Assert.assertTrue(dockerAgent.createDockerCmdExecFactory() instanceof NettyDockerCmdExecFactory);
+        Assert.assertEquals(8, dockerAgent.getScanThreads());
+    }
+
+    @Test
+    public void shouldRejectAnUnknownTransport() {
+        Properties config = new Properties();
+        config.setProperty(DockerAgent.DOCKER_TRANSPORT, "okhttp");
+        DockerAgent dockerAgent = new DockerAgent(config);
+
+        Assert.assertNull(dockerAgent.createDockerCmdExecFactory());
+    }
+}